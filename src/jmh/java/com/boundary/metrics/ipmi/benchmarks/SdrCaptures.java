@@ -0,0 +1,65 @@
+package com.boundary.metrics.ipmi.benchmarks;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Full Sensor Records (type 01h, see section 43.1 of the IPMI specification ver. 2.0) as returned by GetSdr on a
+ * typical server board.
+ */
+public final class SdrCaptures {
+
+    private SdrCaptures() { }
+
+    /**
+     * Processor temperature, 1 degree C per count, unsigned readings.
+     */
+    public static final byte[] CPU_TEMP = record(new int[] {
+            0x05, 0x00, 0x51, 0x01, 0x33, 0x20, 0x00, 0x86, 0x03, 0x01, 0x7f, 0x68, 0x01, 0x01,
+            0x80, 0x0a, 0x7a, 0x28, 0x3f, 0x3f,
+            0x00, 0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x07,
+            0x28, 0x50, 0x0a, 0x7f, 0x00, 0x69, 0x64, 0x5f, 0x00, 0x05, 0x0a, 0x02, 0x02,
+            0x00, 0x00, 0x00, 0xc8}, "CPU Temp");
+
+    /**
+     * Processor fan, 60 RPM per count.
+     */
+    public static final byte[] CPU_FAN = record(new int[] {
+            0x31, 0x00, 0x51, 0x01, 0x33, 0x20, 0x00, 0x31, 0x1d, 0x01, 0x7f, 0x68, 0x04, 0x01,
+            0x95, 0x0a, 0x95, 0x0a, 0x12, 0x12,
+            0x00, 0x12, 0x00, 0x00, 0x3c, 0x00, 0x00, 0x00, 0x00, 0x00, 0x07,
+            0x50, 0xc8, 0x0a, 0xff, 0x00, 0x00, 0x00, 0x00, 0x03, 0x05, 0x08, 0x02, 0x02,
+            0x00, 0x00, 0x00, 0xc8}, "CPU Fan1");
+
+    /**
+     * 12V rail, 62 mV per count (M = 62, R exponent = -3).
+     */
+    public static final byte[] RAIL_12V = record(new int[] {
+            0x10, 0x00, 0x51, 0x01, 0x33, 0x20, 0x00, 0x10, 0x07, 0x01, 0x7f, 0x68, 0x02, 0x01,
+            0x95, 0x7a, 0x95, 0x7a, 0x3f, 0x3f,
+            0x00, 0x04, 0x00, 0x00, 0x3e, 0x00, 0x00, 0x00, 0x00, 0xd0, 0x07,
+            0xc1, 0xd3, 0xaf, 0xff, 0x00, 0xe0, 0xdb, 0xd6, 0xa0, 0xa5, 0xab, 0x02, 0x02,
+            0x00, 0x00, 0x00, 0xc8}, "12V Rail");
+
+    public static byte[] forName(String name) {
+        switch (name) {
+            case "CPU_TEMP":
+                return CPU_TEMP;
+            case "CPU_FAN":
+                return CPU_FAN;
+            case "RAIL_12V":
+                return RAIL_12V;
+            default:
+                throw new IllegalArgumentException("Unknown SDR capture " + name);
+        }
+    }
+
+    private static byte[] record(int[] fields, String id) {
+        byte[] name = id.getBytes(Charsets.ISO_8859_1);
+        byte[] record = new byte[fields.length + name.length];
+        for (int i = 0; i < fields.length; i++) {
+            record[i] = (byte) fields[i];
+        }
+        System.arraycopy(name, 0, record, fields.length, name.length);
+        return record;
+    }
+}
@@ -0,0 +1,37 @@
+package com.boundary.metrics.ipmi.benchmarks;
+
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.SensorRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of raw SDR records, done for every record on discovery and on every load from the SDR cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SdrParsingBenchmark {
+
+    @Param({"CPU_TEMP", "CPU_FAN", "RAIL_12V"})
+    public String capture;
+
+    private byte[] record;
+
+    @Setup
+    public void setUp() {
+        record = SdrCaptures.forName(capture);
+    }
+
+    @Benchmark
+    public SensorRecord populateSensorRecord() {
+        return SensorRecord.populateSensorRecord(record);
+    }
+}
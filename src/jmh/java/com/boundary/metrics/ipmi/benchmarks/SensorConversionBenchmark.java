@@ -0,0 +1,51 @@
+package com.boundary.metrics.ipmi.benchmarks;
+
+import com.boundary.metrics.ipmi.poller.SensorConverter;
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.FullSensorRecord;
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.SensorRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a raw reading to its value, done for every sensor on every poll.
+ * GetSensorReadingResponseData#getSensorReading delegates to FullSensorRecord#calcFormula, which is measured here
+ * since response data can only be built by decoding a whole RMCP+ message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SensorConversionBenchmark {
+
+    @Param({"CPU_TEMP", "CPU_FAN", "RAIL_12V"})
+    public String capture;
+
+    private FullSensorRecord record;
+    private SensorConverter converter;
+    private int raw;
+
+    @Setup
+    public void setUp() {
+        record = (FullSensorRecord) SensorRecord.populateSensorRecord(SdrCaptures.forName(capture));
+        converter = SensorConverter.compile(record);
+    }
+
+    @Benchmark
+    public double calcFormula() {
+        raw = (raw + 1) & 0xff;
+        return record.calcFormula(raw);
+    }
+
+    @Benchmark
+    public double compiledConverter() {
+        raw = (raw + 1) & 0xff;
+        return converter.convert(raw);
+    }
+}
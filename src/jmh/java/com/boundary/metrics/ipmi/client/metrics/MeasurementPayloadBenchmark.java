@@ -0,0 +1,57 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing the /v1/measurements payload of one entity, as done by MetricsClient#addMeasurements on every poll.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MeasurementPayloadBenchmark {
+
+    @Param({"8", "64"})
+    public int sensors;
+
+    private final MeasurementSerializer plain = new MeasurementSerializer(false);
+    private final MeasurementSerializer gzipped = new MeasurementSerializer(true);
+    private List<MonitoredMetric> metrics;
+    private double[] readings;
+
+    @Setup
+    public void setUp() {
+        metrics = Lists.newArrayList();
+        readings = new double[sensors];
+        for (int i = 0; i < sensors; i++) {
+            IPMIPollerConfiguration.SensorConfiguration s = new IPMIPollerConfiguration.SensorConfiguration();
+            s.sensorId = i;
+            s.metric = "IPMI_SENSOR_" + (i % 4);
+            metrics.add(new MonitoredMetric(s, new MonitoredMetric.Metric(s), "server01_sensor" + i));
+            readings[i] = 20.0 + i;
+        }
+    }
+
+    @Benchmark
+    public Optional<byte[]> serializePayload() throws Exception {
+        return plain.serialize(metrics, readings, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public Optional<byte[]> serializeGzippedPayload() throws Exception {
+        return gzipped.serialize(metrics, readings, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,237 @@
+package com.boundary.metrics.ipmi.simulator;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.net.InetAddresses;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a fleet of {@link SimulatedBmc}s, each listening on its own address, all served by one selector thread. The
+ * poller talks to port 623 of its BMCs, so every BMC needs an address of its own: consecutive loopback addresses,
+ * which Linux routes to lo without any setup. Binding port 623 takes root or CAP_NET_BIND_SERVICE.
+ *
+ * Responses are delayed by the configured latency and jitter, and requests are lost at the configured rate, before
+ * the BMC sees them, as if lost on the way.
+ */
+public class BmcSimulator implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BmcSimulator.class);
+
+    public static class Behaviour {
+        public int sensors = 20;
+        public long latencyMicros;
+        public long jitterMicros;
+        /**
+         * Fraction of the requests dropped
+         */
+        public double lossRate;
+        /**
+         * Largest GetSdr read answered, larger ones get Cannot Return Requested Number Of Bytes. 0 for no limit.
+         */
+        public int maxReadSize;
+        /**
+         * Fraction of the GetSdr requests that cancel the current reservation, as a repository change would
+         */
+        public double reservationCancelRate;
+    }
+
+    private final Behaviour behaviour;
+    private final Selector selector;
+    private final Map<DatagramChannel, SimulatedBmc> bmcs = Maps.newHashMap();
+    private final ScheduledExecutorService delays;
+    private final Random random = new Random();
+    private final Thread thread;
+
+    final AtomicLong received = new AtomicLong();
+    final AtomicLong lost = new AtomicLong();
+    final AtomicLong answered = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public BmcSimulator(List<InetAddress> addresses, int port, Behaviour behaviour) throws IOException {
+        this.behaviour = behaviour;
+        this.selector = Selector.open();
+        long seed = 0;
+        for (InetAddress address : addresses) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(address, port));
+            channel.register(selector, SelectionKey.OP_READ);
+            bmcs.put(channel, new SimulatedBmc(behaviour, seed++));
+        }
+        this.delays = Executors.newSingleThreadScheduledExecutor();
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "bmc-simulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Consecutive addresses from the given one
+     */
+    public static List<InetAddress> addresses(InetAddress first, int count) {
+        ImmutableList.Builder<InetAddress> addresses = ImmutableList.builder();
+        InetAddress address = first;
+        for (int i = 0; i < count; i++) {
+            addresses.add(address);
+            address = InetAddresses.increment(address);
+        }
+        return addresses.build();
+    }
+
+    public int size() {
+        return bmcs.size();
+    }
+
+    private void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        while (running) {
+            try {
+                selector.select(100);
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    SocketAddress from;
+                    while ((from = channel.receive(buffer)) != null) {
+                        received.incrementAndGet();
+                        if (behaviour.lossRate > 0 && random.nextDouble() < behaviour.lossRate) {
+                            lost.incrementAndGet();
+                        } else {
+                            byte[] response = bmcs.get(channel).handle(buffer.array(), buffer.position());
+                            if (response != null) {
+                                respond(channel, from, response);
+                            }
+                        }
+                        buffer.clear();
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    LOG.error("Simulator selector loop failed", e);
+                }
+            }
+        }
+    }
+
+    private void respond(final DatagramChannel channel, final SocketAddress to, final byte[] response) {
+        long delay = behaviour.latencyMicros;
+        if (behaviour.jitterMicros > 0) {
+            delay += (long) ((random.nextDouble() * 2 - 1) * behaviour.jitterMicros);
+        }
+        if (delay <= 0) {
+            send(channel, to, response);
+            return;
+        }
+        delays.schedule(new Runnable() {
+            @Override
+            public void run() {
+                send(channel, to, response);
+            }
+        }, delay, TimeUnit.MICROSECONDS);
+    }
+
+    private void send(DatagramChannel channel, SocketAddress to, byte[] response) {
+        try {
+            channel.send(ByteBuffer.wrap(response), to);
+            answered.incrementAndGet();
+        } catch (IOException e) {
+            // the poller retries
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        delays.shutdownNow();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (DatagramChannel channel : bmcs.keySet()) {
+            channel.close();
+        }
+        selector.close();
+    }
+
+    static void addArguments(ArgumentParser parser) {
+        parser.addArgument("--first").setDefault("127.1.0.1").help("address of the first BMC");
+        parser.addArgument("--bmcs").type(Integer.class).setDefault(100).help("number of BMCs");
+        parser.addArgument("--port").type(Integer.class).setDefault(623);
+        parser.addArgument("--sensors").type(Integer.class).setDefault(20).help("sensors per BMC, at most 256");
+        parser.addArgument("--latency").type(Long.class).setDefault(0L).help("response latency, in microseconds");
+        parser.addArgument("--jitter").type(Long.class).setDefault(0L).help("latency jitter, in microseconds");
+        parser.addArgument("--loss").type(Double.class).setDefault(0.0).help("fraction of requests lost");
+        parser.addArgument("--max-read-size").type(Integer.class).setDefault(0)
+                .help("largest GetSdr read answered, 0 for no limit");
+        parser.addArgument("--cancel-rate").type(Double.class).setDefault(0.0)
+                .help("fraction of GetSdr requests cancelling the reservation");
+    }
+
+    static Behaviour behaviour(Namespace ns) {
+        Behaviour b = new Behaviour();
+        b.sensors = ns.getInt("sensors");
+        b.latencyMicros = ns.getLong("latency");
+        b.jitterMicros = ns.getLong("jitter");
+        b.lossRate = ns.getDouble("loss");
+        b.maxReadSize = ns.getInt("max_read_size");
+        b.reservationCancelRate = ns.getDouble("cancel_rate");
+        return b;
+    }
+
+    static BmcSimulator start(Namespace ns) throws IOException {
+        return new BmcSimulator(addresses(InetAddresses.forString(ns.getString("first")), ns.getInt("bmcs")),
+                ns.getInt("port"), behaviour(ns));
+    }
+
+    /**
+     * Runs simulated BMCs until killed, for a poller running in another process
+     */
+    public static void main(String[] args) throws Exception {
+        ArgumentParser parser = ArgumentParsers.newArgumentParser("BmcSimulator");
+        addArguments(parser);
+        Namespace ns;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+            return;
+        }
+        BmcSimulator simulator = start(ns);
+        System.out.printf("Simulating %d BMCs from %s%n", simulator.size(), ns.getString("first"));
+        while (true) {
+            long received = simulator.received.get();
+            Thread.sleep(10000);
+            System.out.printf("%.0f requests/s%n", (simulator.received.get() - received) / 10.0);
+        }
+    }
+}
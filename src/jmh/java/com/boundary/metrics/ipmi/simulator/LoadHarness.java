@@ -0,0 +1,198 @@
+package com.boundary.metrics.ipmi.simulator;
+
+import com.boundary.metrics.ipmi.IPMIPoller;
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.net.InetAddresses;
+import io.dropwizard.setup.Environment;
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Polls a fleet of simulated BMCs with the poller, in this process, and reports every interval:
+ * <ul>
+ * <li>poll cycles completed per second, their mean and worst 99th percentile duration</li>
+ * <li>sensors that didn't answer in time and request timeouts</li>
+ * <li>process CPU, which includes the simulated BMCs unless they run in another process (--external)</li>
+ * <li>heap per entity, above the heap used before the poller started, measured after a full GC</li>
+ * <li>measurement requests, measurements and bytes per second received by a local stand-in for the metrics API</li>
+ * </ul>
+ * Entities discover their sensors with a rule matching all of them.
+ */
+public class LoadHarness {
+
+    private static final String POLL_TIMER = "-poll-timer";
+
+    public static void main(String[] args) throws Exception {
+        ArgumentParser parser = ArgumentParsers.newArgumentParser("LoadHarness");
+        BmcSimulator.addArguments(parser);
+        parser.addArgument("--external").action(Arguments.storeTrue())
+                .help("poll BMCs simulated by another process");
+        parser.addArgument("--poll-frequency").setDefault("5s");
+        parser.addArgument("--engine").choices("sync", "async").setDefault("async");
+        parser.addArgument("--connectors").type(Integer.class).setDefault(1);
+        parser.addArgument("--batch").action(Arguments.storeTrue()).help("batch measurements of all entities");
+        parser.addArgument("--gzip").action(Arguments.storeTrue());
+        parser.addArgument("--duration").type(Integer.class).setDefault(300).help("seconds");
+        parser.addArgument("--interval").type(Integer.class).setDefault(10).help("seconds between reports");
+        Namespace ns;
+        try {
+            ns = parser.parseArgs(args);
+        } catch (ArgumentParserException e) {
+            parser.handleError(e);
+            System.exit(1);
+            return;
+        }
+
+        MetricsApiStandIn api = new MetricsApiStandIn();
+        BmcSimulator simulator = ns.getBoolean("external") ? null : BmcSimulator.start(ns);
+        try {
+            run(ns, api, simulator);
+        } finally {
+            api.close();
+            if (simulator != null) {
+                simulator.close();
+            }
+        }
+        // the poller's threads don't stop by themselves
+        System.exit(0);
+    }
+
+    private static void run(Namespace ns, MetricsApiStandIn api, BmcSimulator simulator) throws Exception {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        memory.gc();
+        long baseline = memory.getHeapMemoryUsage().getUsed();
+
+        final AtomicReference<MetricRegistry> registry = new AtomicReference<MetricRegistry>();
+        new IPMIPoller() {
+            @Override
+            public void run(IPMIPollerConfiguration config, Environment environment) throws Exception {
+                super.run(config, environment);
+                registry.set(environment.metrics());
+            }
+        }.run(new String[] {"server", configuration(ns, api).getPath()});
+
+        int bmcs = ns.getInt("bmcs");
+        long interval = TimeUnit.SECONDS.toNanos(ns.getInt("interval"));
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(ns.getInt("duration"));
+        Sample previous = new Sample(registry.get(), api);
+        System.out.printf("%8s %10s %10s %10s %8s %8s %6s %10s %8s %10s %10s%n", "time", "polls/s", "mean ms",
+                "p99 ms", "missed", "timeouts", "cpu%", "heap/bmc", "posts/s", "values/s", "KB/s");
+        while (System.nanoTime() < end) {
+            TimeUnit.NANOSECONDS.sleep(interval);
+            memory.gc();
+            long heap = memory.getHeapMemoryUsage().getUsed() - baseline;
+            Sample sample = new Sample(registry.get(), api);
+            double seconds = (sample.nanos - previous.nanos) / 1e9;
+            double cpu = (sample.cpuNanos - previous.cpuNanos) / 1e9 / seconds
+                    / Runtime.getRuntime().availableProcessors();
+            System.out.printf("%8.0f %10.1f %10.2f %10.2f %8d %8d %6.1f %10d %8.1f %10.1f %10.1f%n",
+                    (sample.nanos - start) / 1e9,
+                    (sample.polls - previous.polls) / seconds, sample.meanMillis, sample.p99Millis,
+                    sample.missed - previous.missed, sample.timeouts - previous.timeouts, cpu * 100,
+                    heap / bmcs, (sample.posts - previous.posts) / seconds,
+                    (sample.measurements - previous.measurements) / seconds,
+                    (sample.bytes - previous.bytes) / seconds / 1024);
+            previous = sample;
+        }
+        if (simulator != null) {
+            System.out.printf("Simulator received %d requests, lost %d, answered %d%n", simulator.received.get(),
+                    simulator.lost.get(), simulator.answered.get());
+        }
+        System.out.printf("Metrics API got %d metric definitions and %d events, rejected %d measurement posts%n",
+                api.definitions.get(), api.events.get(), api.rejected.get());
+    }
+
+    private static class Sample {
+        final long nanos = System.nanoTime();
+        final long cpuNanos = ((com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+        long polls;
+        double meanMillis;
+        double p99Millis;
+        long missed;
+        long timeouts;
+        final long posts;
+        final long measurements;
+        final long bytes;
+
+        Sample(MetricRegistry registry, MetricsApiStandIn api) {
+            int timers = 0;
+            for (Map.Entry<String, Timer> e : registry.getTimers().entrySet()) {
+                if (e.getKey().endsWith(POLL_TIMER)) {
+                    Snapshot snapshot = e.getValue().getSnapshot();
+                    polls += e.getValue().getCount();
+                    meanMillis += snapshot.getMean() / 1e6;
+                    p99Millis = Math.max(p99Millis, snapshot.get99thPercentile() / 1e6);
+                    timers++;
+                }
+            }
+            meanMillis = timers > 0 ? meanMillis / timers : 0;
+            for (Map.Entry<String, Counter> e : registry.getCounters().entrySet()) {
+                if (e.getKey().endsWith("-sensors-not-answered")) {
+                    missed += e.getValue().getCount();
+                } else if (e.getKey().endsWith("-request-timeouts")) {
+                    timeouts += e.getValue().getCount();
+                }
+            }
+            posts = api.posts.get();
+            measurements = api.measurements.get();
+            bytes = api.bytes.get();
+        }
+    }
+
+    private static File configuration(Namespace ns, MetricsApiStandIn api) throws Exception {
+        List<Map<String, Object>> entities = Lists.newArrayList();
+        for (InetAddress address : BmcSimulator.addresses(InetAddresses.forString(ns.getString("first")),
+                ns.getInt("bmcs"))) {
+            entities.add(ImmutableMap.<String, Object>of("host", address.getHostAddress(), "username", "admin",
+                    "password", "admin", "discoverSensors", true));
+        }
+        Map<String, Object> metricsClient = Maps.newLinkedHashMap();
+        metricsClient.put("baseUri", api.uri().toString());
+        metricsClient.put("apiUser", "harness");
+        metricsClient.put("apiToken", "harness");
+        metricsClient.put("gzip", ns.getBoolean("gzip"));
+        if (ns.getBoolean("batch")) {
+            metricsClient.put("batch", ImmutableMap.of());
+        }
+
+        Map<String, Object> config = Maps.newLinkedHashMap();
+        config.put("server", ImmutableMap.of(
+                "applicationConnectors", ImmutableList.of(ImmutableMap.of("type", "http", "port", 0)),
+                "adminConnectors", ImmutableList.of(ImmutableMap.of("type", "http", "port", 0))));
+        config.put("logging", ImmutableMap.of("level", "WARN"));
+        config.put("metricsClient", metricsClient);
+        config.put("pollFrequency", ns.getString("poll_frequency"));
+        config.put("engine", ImmutableMap.of("mode", ns.getString("engine"), "connectors", ns.getInt("connectors")));
+        config.put("sensorRules", ImmutableList.of(ImmutableMap.of("namePattern", ".*", "metric", "SIM_{name}")));
+        config.put("monitoredEntities", entities);
+
+        File file = File.createTempFile("load-harness", ".yml");
+        file.deleteOnExit();
+        new ObjectMapper(new YAMLFactory()).writeValue(file, config);
+        return file;
+    }
+}
@@ -0,0 +1,136 @@
+package com.boundary.metrics.ipmi.simulator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the metrics API: accepts metric definitions, measurements and events, and counts them.
+ * Measurements are counted from the request bodies, decoded as their Content-Encoding says. Like the API, it answers
+ * 400 to a body that doesn't parse.
+ */
+public class MetricsApiStandIn implements Closeable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private final JsonFactory json = new JsonFactory();
+
+    final AtomicLong definitions = new AtomicLong();
+    final AtomicLong posts = new AtomicLong();
+    final AtomicLong measurements = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong events = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+
+    public MetricsApiStandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        server.setExecutor(executor);
+        server.createContext("/v1/metrics/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                drain(exchange);
+                definitions.incrementAndGet();
+                respond(exchange);
+            }
+        });
+        server.createContext("/v1/measurements", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = drain(exchange);
+                long count;
+                try {
+                    count = count(body, exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                } catch (IOException e) {
+                    rejected.incrementAndGet();
+                    respond(exchange, 400);
+                    return;
+                }
+                posts.incrementAndGet();
+                bytes.addAndGet(body.length);
+                measurements.addAndGet(count);
+                respond(exchange);
+            }
+        });
+        server.createContext("/v1/events", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                drain(exchange);
+                events.incrementAndGet();
+                respond(exchange);
+            }
+        });
+        server.start();
+    }
+
+    public URI uri() {
+        return URI.create("http://" + server.getAddress().getAddress().getHostAddress() + ":"
+                + server.getAddress().getPort() + "/");
+    }
+
+    private static byte[] drain(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        respond(exchange, 200);
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    /**
+     * Entries of the top level array, [source, metric, value, timestamp] each
+     *
+     * @param encoding Content-Encoding of the request, null if none
+     * @throws IOException if the body isn't such an array in that encoding
+     */
+    private long count(byte[] body, String encoding) throws IOException {
+        InputStream in = new ByteArrayInputStream(body);
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            in = new GZIPInputStream(in);
+        } else if (encoding != null && !"identity".equalsIgnoreCase(encoding)) {
+            throw new IOException("Unsupported Content-Encoding " + encoding);
+        }
+        long count = 0;
+        try (JsonParser parser = json.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Measurements are not an array");
+            }
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.START_ARRAY) {
+                parser.skipChildren();
+                count++;
+            }
+            if (token != JsonToken.END_ARRAY || parser.nextToken() != null) {
+                throw new IOException("Unexpected " + token + " in measurements");
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
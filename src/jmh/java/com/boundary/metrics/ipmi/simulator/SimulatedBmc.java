@@ -0,0 +1,410 @@
+package com.boundary.metrics.ipmi.simulator;
+
+import com.boundary.metrics.ipmi.benchmarks.SdrCaptures;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * One BMC speaking enough IPMI 2.0 over RMCP+ for the poller to run against it: cipher suite discovery, session setup
+ * with cipher suite 0 (no authentication, integrity or confidentiality), SDR repository reads with reservations and
+ * partial reads, and sensor readings. See sections 13 and 22 of the IPMI specification ver. 2.0.
+ *
+ * Sensors are made from the {@link SdrCaptures} records, numbered from 0, and their readings take a random walk.
+ * Not thread safe, a {@link BmcSimulator} handles the packets of a BMC on one thread.
+ */
+final class SimulatedBmc {
+
+    private static final int RMCP_PLUS = 0x06;
+    private static final int PAYLOAD_IPMI = 0x00;
+    private static final int PAYLOAD_OPEN_SESSION_REQUEST = 0x10;
+    private static final int PAYLOAD_OPEN_SESSION_RESPONSE = 0x11;
+    private static final int PAYLOAD_RAKP_1 = 0x12;
+    private static final int PAYLOAD_RAKP_2 = 0x13;
+    private static final int PAYLOAD_RAKP_3 = 0x14;
+    private static final int PAYLOAD_RAKP_4 = 0x15;
+
+    private static final int NETFN_SENSOR = 0x04;
+    private static final int NETFN_APP = 0x06;
+    private static final int NETFN_STORAGE = 0x0a;
+
+    private static final int CC_OK = 0x00;
+    private static final int CC_INVALID_COMMAND = 0xc1;
+    private static final int CC_RESERVATION_CANCELLED = 0xc5;
+    private static final int CC_CANNOT_RETURN_BYTES = 0xca;
+    private static final int CC_NOT_PRESENT = 0xcb;
+
+    /**
+     * Cipher suite 0: RAKP-none, no integrity, no confidentiality
+     */
+    private static final byte[] CIPHER_SUITE_RECORDS = {(byte) 0xc0, 0x00, 0x00, 0x40, (byte) 0x80};
+
+    /**
+     * Fields of the captured records before their ID string, whose type/length byte is the last one
+     */
+    private static final int RECORD_FIELDS = 48;
+    private static final String[] TEMPLATES = {"CPU_TEMP", "CPU_FAN", "RAIL_12V"};
+    private static final String[] NAMES = {"CPU Temp", "CPU Fan", "12V Rail"};
+    /**
+     * Raw reading range of each template: 30-60 C, 2400-4800 RPM, 11.8-12.2 V
+     */
+    private static final int[][] RANGES = {{30, 60}, {40, 80}, {190, 196}};
+
+    private static class Session {
+        final int remoteId;
+        boolean active;
+        int sequence;
+
+        Session(int remoteId) {
+            this.remoteId = remoteId;
+        }
+    }
+
+    private final BmcSimulator.Behaviour behaviour;
+    private final Random random;
+    private final byte[][] records;
+    private final int[] readings;
+    private final int[] lows;
+    private final int[] highs;
+    private final Map<Integer, Session> sessions = Maps.newHashMap();
+    private final int addTimestamp = (int) (System.currentTimeMillis() / 1000);
+    private int nextSessionId = 1;
+    private int reservation;
+
+    SimulatedBmc(BmcSimulator.Behaviour behaviour, long seed) {
+        this.behaviour = behaviour;
+        this.random = new Random(seed);
+        int sensors = Math.min(behaviour.sensors, 256);
+        records = new byte[sensors][];
+        readings = new int[sensors];
+        lows = new int[sensors];
+        highs = new int[sensors];
+        for (int i = 0; i < sensors; i++) {
+            int t = i % TEMPLATES.length;
+            records[i] = record(SdrCaptures.forName(TEMPLATES[t]), i, NAMES[t] + " " + (i / TEMPLATES.length + 1));
+            lows[i] = RANGES[t][0];
+            highs[i] = RANGES[t][1];
+            readings[i] = lows[i] + random.nextInt(highs[i] - lows[i] + 1);
+        }
+    }
+
+    private static byte[] record(byte[] template, int sensor, String name) {
+        byte[] id = name.getBytes(Charsets.ISO_8859_1);
+        byte[] record = Arrays.copyOf(template, RECORD_FIELDS + id.length);
+        // record IDs start at 1, 0 asks for the first record
+        record[0] = (byte) (sensor + 1);
+        record[1] = (byte) ((sensor + 1) >> 8);
+        record[4] = (byte) (RECORD_FIELDS - 5 + id.length);
+        record[7] = (byte) sensor;
+        record[RECORD_FIELDS - 1] = (byte) (0xc0 | id.length);
+        System.arraycopy(id, 0, record, RECORD_FIELDS, id.length);
+        return record;
+    }
+
+    /**
+     * Answer an RMCP packet
+     *
+     * @return the response, null if there's none
+     */
+    byte[] handle(byte[] packet, int length) {
+        if (length < 5 || (packet[0] & 0xff) != 0x06 || (packet[3] & 0xff) != 0x07) {
+            return null;
+        }
+        return (packet[4] & 0xff) == RMCP_PLUS ? handleV20(packet, length) : handleV15(packet, length);
+    }
+
+    /**
+     * IPMI 1.5 session-less messages, like the Get Channel Authentication Capabilities opening every session setup
+     */
+    private byte[] handleV15(byte[] packet, int length) {
+        int offset = 13 + (packet[4] != 0 ? 16 : 0);
+        if (length < offset + 1 || packet[offset] + offset + 1 > length) {
+            return null;
+        }
+        byte[] response = ipmi(packet, offset + 1, packet[offset] & 0xff);
+        if (response == null) {
+            return null;
+        }
+        byte[] out = new byte[14 + response.length];
+        out[0] = 0x06;
+        out[2] = (byte) 0xff;
+        out[3] = 0x07;
+        out[13] = (byte) response.length;
+        System.arraycopy(response, 0, out, 14, response.length);
+        return out;
+    }
+
+    private byte[] handleV20(byte[] packet, int length) {
+        if (length < 16) {
+            return null;
+        }
+        int type = packet[5] & 0x3f;
+        int sessionId = int32(packet, 6);
+        int payloadLength = int16(packet, 14);
+        if (16 + payloadLength > length) {
+            return null;
+        }
+        switch (type) {
+            case PAYLOAD_IPMI:
+                Session session = null;
+                if (sessionId != 0) {
+                    session = sessions.get(sessionId);
+                    if (session == null || !session.active) {
+                        return null;
+                    }
+                }
+                byte[] response = ipmi(packet, 16, payloadLength);
+                if (response == null) {
+                    return null;
+                }
+                return v20(PAYLOAD_IPMI, session != null ? session.remoteId : 0,
+                        session != null ? ++session.sequence : 0, response);
+            case PAYLOAD_OPEN_SESSION_REQUEST:
+                return openSession(packet, 16, payloadLength);
+            case PAYLOAD_RAKP_1:
+                return rakp1(packet, 16, payloadLength);
+            case PAYLOAD_RAKP_3:
+                return rakp3(packet, 16, payloadLength);
+            default:
+                return null;
+        }
+    }
+
+    private byte[] openSession(byte[] p, int o, int length) {
+        if (length < 32) {
+            return null;
+        }
+        int remoteId = int32(p, o + 4);
+        int auth = p[o + 12] & 0x3f;
+        int integrity = p[o + 20] & 0x3f;
+        int confidentiality = p[o + 28] & 0x3f;
+        byte[] r = new byte[36];
+        r[0] = p[o];
+        put32(r, 4, remoteId);
+        if (auth != 0 || integrity != 0 || confidentiality != 0) {
+            // only cipher suite 0 is offered
+            r[1] = (byte) (auth != 0 ? 0x11 : integrity != 0 ? 0x12 : 0x13);
+            return v20(PAYLOAD_OPEN_SESSION_RESPONSE, 0, 0, Arrays.copyOf(r, 8));
+        }
+        int managedId = nextSessionId++;
+        sessions.put(managedId, new Session(remoteId));
+        r[2] = (byte) ((p[o + 1] & 0x0f) == 0 ? 4 : p[o + 1] & 0x0f);
+        put32(r, 8, managedId);
+        r[15] = 0x08;
+        r[20] = 0x01;
+        r[23] = 0x08;
+        r[28] = 0x02;
+        r[31] = 0x08;
+        return v20(PAYLOAD_OPEN_SESSION_RESPONSE, 0, 0, r);
+    }
+
+    private byte[] rakp1(byte[] p, int o, int length) {
+        if (length < 28) {
+            return null;
+        }
+        Session session = sessions.get(int32(p, o + 4));
+        byte[] r = new byte[40];
+        r[0] = p[o];
+        if (session == null) {
+            r[1] = 0x02;
+            return v20(PAYLOAD_RAKP_2, 0, 0, Arrays.copyOf(r, 8));
+        }
+        put32(r, 4, session.remoteId);
+        byte[] randomAndGuid = new byte[32];
+        random.nextBytes(randomAndGuid);
+        System.arraycopy(randomAndGuid, 0, r, 8, 32);
+        return v20(PAYLOAD_RAKP_2, 0, 0, r);
+    }
+
+    private byte[] rakp3(byte[] p, int o, int length) {
+        if (length < 8) {
+            return null;
+        }
+        Session session = sessions.get(int32(p, o + 4));
+        byte[] r = new byte[8];
+        r[0] = p[o];
+        if (session == null) {
+            r[1] = 0x02;
+            return v20(PAYLOAD_RAKP_4, 0, 0, r);
+        }
+        session.active = p[o + 1] == 0;
+        put32(r, 4, session.remoteId);
+        return v20(PAYLOAD_RAKP_4, 0, 0, r);
+    }
+
+    /**
+     * Answer an IPMI message: rsSA, netFn/rsLUN, checksum, rqSA, rqSeq/rqLUN, command, data, checksum
+     */
+    private byte[] ipmi(byte[] p, int o, int length) {
+        if (length < 7) {
+            return null;
+        }
+        int netFn = (p[o + 1] & 0xff) >> 2;
+        int command = p[o + 5] & 0xff;
+        byte[] data = Arrays.copyOfRange(p, o + 6, o + length - 1);
+        byte[] body = command(netFn, command, data);
+
+        byte[] r = new byte[7 + body.length];
+        r[0] = p[o + 3];
+        r[1] = (byte) (((netFn + 1) << 2) | (p[o + 4] & 0x03));
+        r[2] = checksum(r, 0, 2);
+        r[3] = p[o];
+        r[4] = (byte) (p[o + 4] & 0xfc);
+        r[5] = (byte) command;
+        System.arraycopy(body, 0, r, 6, body.length);
+        r[r.length - 1] = checksum(r, 3, r.length - 1);
+        return r;
+    }
+
+    /**
+     * @return the completion code followed by the response data
+     */
+    private byte[] command(int netFn, int command, byte[] data) {
+        switch (netFn << 8 | command) {
+            case NETFN_APP << 8 | 0x38:
+                // Get Channel Authentication Capabilities: none, null user names, IPMI 2.0
+                return bytes(CC_OK, 0x01, 0x81, 0x06, 0x02, 0, 0, 0, 0);
+            case NETFN_APP << 8 | 0x54:
+                return cipherSuites(data);
+            case NETFN_APP << 8 | 0x3b:
+                // Set Session Privilege Level, 0 asks for the current one
+                return bytes(CC_OK, data.length > 0 && (data[0] & 0x0f) != 0 ? data[0] & 0x0f : 4);
+            case NETFN_APP << 8 | 0x3c:
+                if (data.length >= 4) {
+                    sessions.remove(int32(data, 0));
+                }
+                return bytes(CC_OK);
+            case NETFN_STORAGE << 8 | 0x20:
+                return repositoryInfo();
+            case NETFN_STORAGE << 8 | 0x22:
+                reservation = (reservation + 1) & 0xffff;
+                if (reservation == 0) {
+                    reservation = 1;
+                }
+                return bytes(CC_OK, reservation & 0xff, reservation >> 8);
+            case NETFN_STORAGE << 8 | 0x23:
+                return getSdr(data);
+            case NETFN_SENSOR << 8 | 0x2d:
+                return sensorReading(data);
+            default:
+                return bytes(CC_INVALID_COMMAND);
+        }
+    }
+
+    private byte[] cipherSuites(byte[] data) {
+        int index = data.length > 2 ? data[2] & 0x3f : 0;
+        int from = Math.min(index * 16, CIPHER_SUITE_RECORDS.length);
+        int to = Math.min(from + 16, CIPHER_SUITE_RECORDS.length);
+        byte[] r = new byte[2 + to - from];
+        r[1] = 0x01;
+        System.arraycopy(CIPHER_SUITE_RECORDS, from, r, 2, to - from);
+        return r;
+    }
+
+    private byte[] repositoryInfo() {
+        byte[] r = new byte[15];
+        r[1] = 0x51;
+        r[2] = (byte) records.length;
+        r[3] = (byte) (records.length >> 8);
+        r[4] = (byte) 0xff;
+        r[5] = (byte) 0xff;
+        put32(r, 6, addTimestamp);
+        put32(r, 10, addTimestamp);
+        r[14] = 0x02;
+        return r;
+    }
+
+    private byte[] getSdr(byte[] data) {
+        if (data.length < 6) {
+            return bytes(CC_INVALID_COMMAND);
+        }
+        int reservationId = int16(data, 0);
+        int recordId = int16(data, 2);
+        int offset = data[4] & 0xff;
+        int count = data[5] & 0xff;
+        if (behaviour.reservationCancelRate > 0 && random.nextDouble() < behaviour.reservationCancelRate) {
+            // as if a record was added meanwhile
+            reservation = (reservation + 1) & 0xffff;
+        }
+        if (offset > 0 && reservationId != reservation) {
+            return bytes(CC_RESERVATION_CANCELLED);
+        }
+        int index = recordId == 0 ? 0 : recordId - 1;
+        if (index >= records.length) {
+            return bytes(CC_NOT_PRESENT);
+        }
+        byte[] record = records[index];
+        int wanted = count == 0xff ? record.length - offset : count;
+        if (behaviour.maxReadSize > 0 && wanted > behaviour.maxReadSize) {
+            return bytes(CC_CANNOT_RETURN_BYTES);
+        }
+        int from = Math.min(offset, record.length);
+        int to = Math.min(from + wanted, record.length);
+        int next = index + 1 < records.length ? index + 2 : 0xffff;
+        byte[] r = new byte[3 + to - from];
+        r[1] = (byte) next;
+        r[2] = (byte) (next >> 8);
+        System.arraycopy(record, from, r, 3, to - from);
+        return r;
+    }
+
+    private byte[] sensorReading(byte[] data) {
+        int sensor = data.length > 0 ? data[0] & 0xff : -1;
+        if (sensor < 0 || sensor >= readings.length) {
+            return bytes(CC_NOT_PRESENT);
+        }
+        int step = random.nextInt(3) - 1;
+        readings[sensor] = Math.max(lows[sensor], Math.min(highs[sensor], readings[sensor] + step));
+        // scanning and event messages enabled, no threshold crossed
+        return bytes(CC_OK, readings[sensor], 0xc0, 0x00, 0x00);
+    }
+
+    private static byte[] v20(int type, int sessionId, int sequence, byte[] payload) {
+        byte[] out = new byte[16 + payload.length];
+        out[0] = 0x06;
+        out[2] = (byte) 0xff;
+        out[3] = 0x07;
+        out[4] = RMCP_PLUS;
+        out[5] = (byte) type;
+        put32(out, 6, sessionId);
+        put32(out, 10, sequence);
+        out[14] = (byte) payload.length;
+        out[15] = (byte) (payload.length >> 8);
+        System.arraycopy(payload, 0, out, 16, payload.length);
+        return out;
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    private static byte checksum(byte[] b, int from, int to) {
+        int sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += b[i];
+        }
+        return (byte) -sum;
+    }
+
+    private static int int16(byte[] b, int o) {
+        return (b[o] & 0xff) | (b[o + 1] & 0xff) << 8;
+    }
+
+    private static int int32(byte[] b, int o) {
+        return (b[o] & 0xff) | (b[o + 1] & 0xff) << 8 | (b[o + 2] & 0xff) << 16 | (b[o + 3] & 0xff) << 24;
+    }
+
+    private static void put32(byte[] b, int o, int v) {
+        b[o] = (byte) v;
+        b[o + 1] = (byte) (v >> 8);
+        b[o + 2] = (byte) (v >> 16);
+        b[o + 3] = (byte) (v >> 24);
+    }
+}
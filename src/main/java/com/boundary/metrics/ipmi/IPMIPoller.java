@@ -1,12 +1,39 @@
 package com.boundary.metrics.ipmi;
 
+import com.boundary.metrics.ipmi.client.ipmi.AsyncIpmiTransport;
+import com.boundary.metrics.ipmi.client.ipmi.IpmiTransport;
+import com.boundary.metrics.ipmi.client.ipmi.SessionManager;
+import com.boundary.metrics.ipmi.client.ipmi.StripedIpmiTransport;
+import com.boundary.metrics.ipmi.client.ipmi.SyncIpmiTransport;
+import com.boundary.metrics.ipmi.client.statsd.StatsdSink;
+import com.boundary.metrics.ipmi.client.metrics.EventSink;
+import com.boundary.metrics.ipmi.client.metrics.MeasurementFanout;
+import com.boundary.metrics.ipmi.client.metrics.MeasurementSink;
+import com.boundary.metrics.ipmi.client.metrics.MetricDefinitions;
 import com.boundary.metrics.ipmi.client.metrics.MetricsClient;
+import com.boundary.metrics.ipmi.exposition.TextExposition;
+import com.boundary.metrics.ipmi.history.SensorHistory;
 import com.boundary.metrics.ipmi.poller.IPMIMetricsPoller;
-import com.boundary.metrics.ipmi.poller.MonitoredEntity;
-import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.boundary.metrics.ipmi.poller.LoggingEventSink;
+import com.boundary.metrics.ipmi.poller.MonitoredEntityFactory;
+import com.boundary.metrics.ipmi.poller.PollScheduler;
+import com.boundary.metrics.ipmi.poller.PollerManager;
+import com.boundary.metrics.ipmi.poller.PollerContext;
+import com.boundary.metrics.ipmi.poller.SdrCache;
+import com.boundary.metrics.ipmi.poller.SdrReadStrategies;
+import com.boundary.metrics.ipmi.resources.ExpositionResource;
 import com.boundary.metrics.ipmi.resources.MonitoredEntitiesResource;
+import com.boundary.metrics.ipmi.scan.BmcScanner;
+import com.boundary.metrics.ipmi.shard.Membership;
+import com.boundary.metrics.ipmi.shard.ShardCoordinator;
+import com.boundary.metrics.ipmi.shard.SharedDirectoryMembership;
+import com.boundary.metrics.ipmi.shard.StaticMembership;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.sun.jersey.api.client.Client;
+import com.veraxsystems.vxipmi.api.async.IpmiAsyncConnector;
 import com.veraxsystems.vxipmi.api.sync.IpmiConnector;
 import io.dropwizard.Application;
 import io.dropwizard.client.JerseyClientBuilder;
@@ -14,15 +41,15 @@ import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Vector;
-import java.util.HashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 public class IPMIPoller extends Application<IPMIPollerConfiguration> {
 
+    private static final String LOCAL_NODE = "local";
+
     public static void main(String[] args) throws Exception {
         new IPMIPoller().run(args);
     }
@@ -38,56 +65,75 @@ public class IPMIPoller extends Application<IPMIPollerConfiguration> {
     @Override
     public void run(IPMIPollerConfiguration config, Environment environment) throws Exception {
 
-        // get metric metadata from sensor configurations
-        Map<String, MonitoredMetric.Metric> metrics = new HashMap<String, MonitoredMetric.Metric>();
-        for (IPMIPollerConfiguration.EntityConfiguration e : config.monitoredEntities) {
-            for (IPMIPollerConfiguration.SensorConfiguration s : e.sensors) {
-                if (!metrics.containsKey(s.metric)) {
-                    metrics.put(s.metric, new MonitoredMetric.Metric(s));
-                }
-            }
-        }
-
-        // build the monitored entity list
-        List<MonitoredEntity> entities = new Vector<MonitoredEntity>();
-        for (IPMIPollerConfiguration.EntityConfiguration e : config.monitoredEntities) {
-            List<MonitoredMetric> sensors = new Vector<MonitoredMetric>();
-            for (IPMIPollerConfiguration.SensorConfiguration s : e.sensors) {
-                String source = s.source != null ? s.source : e.source;
-                sensors.add(new MonitoredMetric(s, metrics.get(s.metric), source));
-            }
-            entities.add(new MonitoredEntity(e.host, e.username, e.password, sensors));
-        }
-
         /**
          * Create and register clients
          */
+        if (config.metricsClient.gzip) {
+            // Jersey's gzip filter compresses any request already marked gzip again, bodies come compressed
+            config.client.setGzipEnabled(false);
+            config.client.setGzipEnabledForRequests(false);
+        }
         final MetricsClient metricsClient = new MetricsClient(
             new JerseyClientBuilder(environment).using(config.client).build("http-client"),
-            config.metricsClient.baseUri,
-            config.metricsClient.apiUser,
-            config.metricsClient.apiToken);
+            config.metricsClient);
+        environment.lifecycle().manage(metricsClient);
+        environment.metrics().registerAll(metricsClient);
+
+        final MeasurementSink measurements = createSinks(config.sinks, metricsClient, environment);
 
+        // a scan may add any number of entities
+        final int entities = config.scan != null ? Integer.MAX_VALUE : config.monitoredEntities.size();
         final ScheduledExecutorService scheduler = environment.lifecycle().scheduledExecutorService("ipmi-poller")
-            .threads(Math.min(entities.size(), Runtime.getRuntime().availableProcessors())).build();
-        environment.jersey().register(new MonitoredEntitiesResource());
-        final IpmiConnector connector = new IpmiConnector(0); // Share the same IpmiConnector
+            .threads(Math.max(1, Math.min(entities, Runtime.getRuntime().availableProcessors()))).build();
+        // poll deadlines and request timeouts must fire while every poll thread is busy
+        final ScheduledExecutorService pollTimer = environment.lifecycle().scheduledExecutorService("ipmi-poll-timer")
+            .threads(1).build();
+        final StripedIpmiTransport connector = createTransport(config.engine); // Shared by all pollers
+        environment.metrics().registerAll(connector);
+        final Optional<SdrCache> sdrCache = config.sdrCacheDirectory != null
+                ? Optional.of(new SdrCache(config.sdrCacheDirectory))
+                : Optional.<SdrCache>absent();
+        final SdrReadStrategies readStrategies = new SdrReadStrategies(IPMIMetricsPoller.CHUNK_SIZE);
 
-        /**
-         * Start pollers for each configured entity
-         */
-        for (MonitoredEntity e : entities) {
-            IPMIMetricsPoller poller = new IPMIMetricsPoller(e, metricsClient, connector);
-            environment.metrics().registerAll(poller);
-            scheduler.scheduleAtFixedRate(poller, 1, config.pollFrequency.toSeconds(), TimeUnit.SECONDS);
-        }
+        final SessionManager sessionManager = new SessionManager(connector, scheduler, config.session);
+        final Optional<SensorHistory> history = config.historySize > 0
+                ? Optional.of(new SensorHistory(config.historySize))
+                : Optional.<SensorHistory>absent();
+        final Optional<EventSink> events = config.thresholds == null
+                ? Optional.<EventSink>absent()
+                : Optional.of(config.thresholds.sink == IPMIPollerConfiguration.ThresholdConfiguration.Sink.api
+                        ? metricsClient : new LoggingEventSink());
+        final PollerContext context = new PollerContext(measurements, connector, sessionManager, sdrCache,
+                readStrategies, config.overrunPolicy, history, events,
+                config.thresholds != null ? config.thresholds.hysteresis : 0, config.timeouts,
+                Optional.fromNullable(config.adaptivePolling), scheduler, pollTimer);
+        final PollScheduler pollScheduler = new PollScheduler(scheduler, config.pollJitter);
+
+        final PollerManager pollers = new PollerManager(context, pollScheduler, environment.metrics());
 
         /**
-         * Create metrics
+         * Build the entities and create their metrics
          */
-        for (MonitoredMetric.Metric m : metrics.values()) {
-            metricsClient.createMetric(m, (int) config.pollFrequency.toSeconds()*1000);
+        final MetricDefinitions definitions = new MetricDefinitions(metricsClient,
+                environment.lifecycle().executorService("metric-definition-%d")
+                        .minThreads(config.metricsClient.maxConcurrentDefinitions)
+                        .maxThreads(config.metricsClient.maxConcurrentDefinitions).build(),
+                Optional.fromNullable(config.metricsClient.definitionCache));
+        environment.metrics().registerAll(definitions);
+        final MonitoredEntityFactory entityFactory = new MonitoredEntityFactory(config.pollFrequency,
+                Optional.fromNullable(config.reportWindow), config.sensorRules, definitions);
+        final ShardCoordinator coordinator = createCoordinator(config, pollers, scheduler);
+        for (IPMIPollerConfiguration.EntityConfiguration e : config.monitoredEntities) {
+            coordinator.put(e, entityFactory.create(e));
         }
+        // in the background, pollers don't wait for their metrics. Failed ones are tried again every minute.
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                entityFactory.defineMetrics();
+            }
+        }, 0, 1, TimeUnit.MINUTES);
+        environment.jersey().register(new MonitoredEntitiesResource(coordinator, entityFactory, history));
 
         environment.lifecycle().manage(new Managed() {
             @Override
@@ -98,5 +144,96 @@ public class IPMIPoller extends Application<IPMIPollerConfiguration> {
                 connector.tearDown();
             }
         });
+        // registered last so sessions are closed before the connector is torn down
+        environment.lifecycle().manage(sessionManager);
+        // starts pollers for each entity assigned to this instance, spread over their poll interval
+        environment.lifecycle().manage(coordinator);
+
+        if (config.scan != null) {
+            final BmcScanner scanner = new BmcScanner(config.scan,
+                    environment.lifecycle().scheduledExecutorService("bmc-scanner").threads(1).build(),
+                    environment.lifecycle().executorService("bmc-probe-%d")
+                            .minThreads(config.scan.maxConcurrentProbes)
+                            .maxThreads(config.scan.maxConcurrentProbes).build(),
+                    entityFactory, coordinator);
+            environment.lifecycle().manage(scanner);
+            environment.metrics().registerAll(scanner);
+        }
+    }
+
+    /**
+     * Readings go straight to the metrics client when it's the only sink, it doesn't block
+     */
+    private static MeasurementSink createSinks(IPMIPollerConfiguration.SinkConfiguration config,
+                                               MetricsClient metricsClient, Environment environment) {
+        ImmutableMap.Builder<String, MeasurementSink> builder = ImmutableMap.builder();
+        if (config.api) {
+            builder.put("api", metricsClient);
+        }
+        if (config.statsd != null) {
+            StatsdSink statsd = new StatsdSink(config.statsd);
+            environment.lifecycle().manage(statsd);
+            builder.put("statsd", statsd);
+        }
+        if (config.exposition != null) {
+            TextExposition exposition = new TextExposition(config.exposition.staleAfter.toMilliseconds());
+            environment.jersey().register(new ExpositionResource(exposition));
+            builder.put("exposition", exposition);
+        }
+        ImmutableMap<String, MeasurementSink> sinks = builder.build();
+        checkArgument(!sinks.isEmpty(), "At least one measurement sink is required");
+        if (sinks.size() == 1 && config.api) {
+            return metricsClient;
+        }
+
+        MeasurementFanout fanout = new MeasurementFanout(sinks,
+                environment.lifecycle().executorService("measurement-sink-%d")
+                        .minThreads(sinks.size()).maxThreads(sinks.size()).build(),
+                config.queueCapacity);
+        environment.lifecycle().manage(fanout);
+        environment.metrics().registerAll(fanout);
+        return fanout;
+    }
+
+    private static ShardCoordinator createCoordinator(IPMIPollerConfiguration config, PollerManager pollers,
+                                                      ScheduledExecutorService scheduler) {
+        IPMIPollerConfiguration.ShardingConfiguration sharding = config.sharding;
+        if (sharding == null) {
+            return new ShardCoordinator(LOCAL_NODE, new StaticMembership(LOCAL_NODE, ImmutableList.<String>of()),
+                    pollers, scheduler, 0, 1);
+        }
+
+        Membership membership;
+        switch (sharding.membership) {
+            case directory:
+                checkArgument(sharding.directory != null, "sharding.directory is required for directory membership");
+                membership = new SharedDirectoryMembership(sharding.nodeId, sharding.directory, scheduler,
+                        sharding.heartbeatInterval.toMilliseconds(), sharding.memberExpiry.toMilliseconds());
+                break;
+            default:
+                membership = new StaticMembership(sharding.nodeId, sharding.peers);
+        }
+        return new ShardCoordinator(sharding.nodeId, membership, pollers, scheduler,
+                sharding.rebalanceInterval.toMilliseconds(), sharding.virtualNodes);
+    }
+
+    private static StripedIpmiTransport createTransport(IPMIPollerConfiguration.EngineConfiguration engine)
+            throws Exception {
+        checkArgument(engine.localPort == 0 || engine.localPort + engine.connectors - 1 <= 65535,
+                "engine.localPort leaves no room for %s connectors", engine.connectors);
+        ImmutableList.Builder<IpmiTransport> transports = ImmutableList.builder();
+        int maxInFlight = (engine.maxInFlightRequests + engine.connectors - 1) / engine.connectors;
+        for (int i = 0; i < engine.connectors; i++) {
+            int port = engine.localPort == 0 ? 0 : engine.localPort + i;
+            switch (engine.mode) {
+                case async:
+                    transports.add(new AsyncIpmiTransport(new IpmiAsyncConnector(port),
+                            maxInFlight, engine.maxInFlightRequestsPerBmc, engine.messageTimeout.toMilliseconds()));
+                    break;
+                default:
+                    transports.add(new SyncIpmiTransport(new IpmiConnector(port)));
+            }
+        }
+        return new StripedIpmiTransport(transports.build());
     }
 }
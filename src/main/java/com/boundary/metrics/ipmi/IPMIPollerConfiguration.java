@@ -5,19 +5,88 @@ import com.sun.jersey.api.client.Client;
 import io.dropwizard.Configuration;
 import io.dropwizard.client.JerseyClientConfiguration;
 import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import io.dropwizard.util.SizeUnit;
 import io.dropwizard.validation.MaxDuration;
+import io.dropwizard.validation.MaxSize;
 import io.dropwizard.validation.MinDuration;
+import io.dropwizard.validation.MinSize;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import javax.validation.Valid;
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import java.io.File;
 import java.net.URI;
 import java.net.InetAddress;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class IPMIPollerConfiguration extends Configuration {
 
+    /**
+     * What to do when a poll is due while the previous one of the same entity is still running
+     */
+    public enum OverrunPolicy { skip, catchUp; }
+
+    public static class BatchConfiguration {
+        @JsonProperty
+        @Min(1)
+        public int maxBatchSize = 1000;
+        @JsonProperty
+        @NotNull
+        public Duration maxDelay = Duration.seconds(1);
+        @JsonProperty
+        @Min(1)
+        public int queueCapacity = 100000;
+        @JsonProperty
+        @Min(1)
+        public int maxConcurrentFlushes = 4;
+        /**
+         * How long a poll waits for room in a full queue, for all its measurements, before the rest are dropped
+         */
+        @JsonProperty
+        @NotNull
+        public Duration offerTimeout = Duration.milliseconds(100);
+    }
+
+    public static class SpoolConfiguration {
+        @JsonProperty
+        @NotNull
+        public File directory;
+        /**
+         * Size of each segment file, and so the largest payload that can be spooled
+         */
+        @JsonProperty
+        @NotNull
+        @MinSize(value = 64, unit = SizeUnit.KILOBYTES)
+        @MaxSize(value = 1, unit = SizeUnit.GIGABYTES)
+        public Size segmentSize = Size.megabytes(8);
+        /**
+         * Disk space of the spool. Once full, the oldest segment is dropped to make room.
+         */
+        @JsonProperty
+        @NotNull
+        public Size maxSize = Size.megabytes(512);
+        /**
+         * Payloads replayed per second once the API is back. Must be above the rate payloads are produced at, or the
+         * backlog never drains.
+         */
+        @JsonProperty
+        @DecimalMin("0.1")
+        public double replayRate = 20;
+        /**
+         * Wait after a failed replay before trying again
+         */
+        @JsonProperty
+        @NotNull
+        public Duration retryInterval = Duration.seconds(10);
+    }
+
     public static class MetricClientConfiguration {
         @NotNull
         @JsonProperty
@@ -28,6 +97,60 @@ public class IPMIPollerConfiguration extends Configuration {
         @NotNull
         @JsonProperty
         public String apiToken;
+        /**
+         * Merge measurements of all entities into batches. Every poll is posted on its own when unset.
+         */
+        @Valid
+        @JsonProperty
+        public BatchConfiguration batch;
+        /**
+         * Keep payloads the API didn't accept on disk and replay them once it's back. They are dropped when unset.
+         */
+        @Valid
+        @JsonProperty
+        public SpoolConfiguration spool;
+        /**
+         * Metric definitions sent to the API at once
+         */
+        @JsonProperty
+        @Min(1)
+        @Max(256)
+        public int maxConcurrentDefinitions = 16;
+        /**
+         * Keep fingerprints of the metric definitions the API accepted in this file, so restarts only send the
+         * definitions that changed. Every definition is sent once per run when unset.
+         */
+        @JsonProperty
+        public File definitionCache;
+        /**
+         * Gzip measurement request bodies. Turns off the gzip filter of the HTTP client, which would compress them
+         * again, whatever its gzipEnabled and gzipEnabledForRequests settings.
+         */
+        @JsonProperty
+        public boolean gzip;
+    }
+
+    /**
+     * Report a sensor only when its value leaves a band around the last reported value
+     */
+    public static class DeadbandConfiguration {
+        public enum Mode { absolute, relative; }
+
+        @JsonProperty
+        @NotNull
+        public Mode mode = Mode.absolute;
+        /**
+         * Half-width of the band, in sensor units when absolute, as a fraction of the last reported value when relative
+         */
+        @JsonProperty
+        @DecimalMin("0")
+        public double width;
+        /**
+         * Longest time without reporting, even if the value stays within the band
+         */
+        @JsonProperty
+        @NotNull
+        public Duration heartbeat = Duration.minutes(5);
     }
 
     public static class SensorConfiguration {
@@ -52,6 +175,350 @@ public class IPMIPollerConfiguration extends Configuration {
         public Aggregate defaultAggregate = Aggregate.avg;
         @JsonProperty
         public String source;
+        /**
+         * Every reading is reported when unset
+         */
+        @JsonProperty
+        @Valid
+        public DeadbandConfiguration deadband;
+        /**
+         * Also report the minimum and maximum of each report window, as metrics named after this one with _MIN and
+         * _MAX appended
+         */
+        @JsonProperty
+        public boolean reportExtremes;
+    }
+
+    /**
+     * Maps sensors found in the SDR repository of an entity to a metric. The first rule matching a sensor applies.
+     *
+     * In metric, source and display texts, {name} stands for the sensor name upper cased, with anything but letters
+     * and digits replaced by _, {1} to {9} for the groups of namePattern, and {source} for the source of the entity.
+     */
+    public static class SensorRuleConfiguration {
+        /**
+         * Sensor type of the SDR record, like Temperature, Fan or Voltage. Any type when unset.
+         */
+        @JsonProperty
+        public String sensorType;
+        /**
+         * Base unit of the SDR record, like DegreesC, Rpm or Volts. Any unit when unset.
+         */
+        @JsonProperty
+        public String sensorUnit;
+        /**
+         * Regular expression the whole sensor name must match. Any name when unset.
+         */
+        @JsonProperty
+        public String namePattern;
+        @JsonProperty
+        @NotEmpty
+        public String metric;
+        @JsonProperty
+        public String description;
+        @JsonProperty
+        public String displayName;
+        @JsonProperty
+        public String displayNameShort;
+        @JsonProperty
+        @NotNull
+        public SensorConfiguration.Unit unit = SensorConfiguration.Unit.number;
+        @JsonProperty
+        @NotNull
+        public SensorConfiguration.Aggregate defaultAggregate = SensorConfiguration.Aggregate.avg;
+        /**
+         * Several sensors of an entity reporting the same metric need a source each
+         */
+        @JsonProperty
+        @NotEmpty
+        public String source = "{source}_{name}";
+        @JsonProperty
+        @Valid
+        public DeadbandConfiguration deadband;
+        @JsonProperty
+        public boolean reportExtremes;
+    }
+
+    /**
+     * Probe address ranges for BMCs accepting RMCP+ sessions, and poll those found
+     */
+    public static class ScanConfiguration {
+        /**
+         * IPv4 CIDR blocks (10.0.0.0/24) or ranges (10.0.0.10-10.0.0.99)
+         */
+        @JsonProperty
+        @NotEmpty
+        public List<String> ranges;
+        @JsonProperty
+        public String username;
+        @JsonProperty
+        public String password;
+        @JsonProperty
+        public String model;
+        /**
+         * Source of the entities found, {host} standing for their address
+         */
+        @JsonProperty
+        @NotEmpty
+        public String source = "{host}";
+        /**
+         * BMCs probed at the same time
+         */
+        @JsonProperty
+        @Min(1)
+        @Max(1024)
+        public int maxConcurrentProbes = 64;
+        @JsonProperty
+        @NotNull
+        public Duration probeTimeout = Duration.seconds(1);
+        @JsonProperty
+        @Min(0)
+        public int probeRetries = 1;
+        /**
+         * Time between two scans, 0 scans once at startup
+         */
+        @JsonProperty
+        @NotNull
+        public Duration interval = Duration.hours(1);
+    }
+
+    /**
+     * Compare readings with the thresholds of their SDR record and send an event when a sensor changes level
+     */
+    public static class ThresholdConfiguration {
+        public enum Sink { api, log; }
+
+        /**
+         * api posts events to the metrics API's /v1/events, log only logs them
+         */
+        @JsonProperty
+        @NotNull
+        public Sink sink = Sink.api;
+        /**
+         * Margin readings must clear an asserted threshold by before it's deasserted, as a fraction of the threshold.
+         * At least the sensor resolution.
+         */
+        @JsonProperty
+        @DecimalMin("0")
+        @DecimalMax("1")
+        public double hysteresis = 0.02;
+    }
+
+    /**
+     * Where readings are shipped. Each sink has its own queue, readings offered to a full queue are dropped.
+     */
+    public static class SinkConfiguration {
+        /**
+         * Post readings to the metrics API
+         */
+        @JsonProperty
+        public boolean api = true;
+        /**
+         * Send readings to a StatsD server when set
+         */
+        @JsonProperty
+        @Valid
+        public StatsdConfiguration statsd;
+        /**
+         * Serve the latest readings under /measurements when set
+         */
+        @JsonProperty
+        @Valid
+        public ExpositionConfiguration exposition;
+        /**
+         * Shipments, one per poll or report window of an entity, each sink may queue
+         */
+        @JsonProperty
+        @Min(1)
+        public int queueCapacity = 1024;
+    }
+
+    public static class StatsdConfiguration {
+        @JsonProperty
+        @NotEmpty
+        public String host;
+        @JsonProperty
+        @Min(1)
+        @Max(65535)
+        public int port = 8125;
+        @JsonProperty
+        public String prefix = "ipmi.";
+        /**
+         * Largest datagram sent, the default fits an Ethernet frame
+         */
+        @JsonProperty
+        @Min(64)
+        @Max(65507)
+        public int maxPacketSize = 1432;
+    }
+
+    public static class ExpositionConfiguration {
+        /**
+         * Readings not updated for this long are left out
+         */
+        @JsonProperty
+        @NotNull
+        public Duration staleAfter = Duration.minutes(5);
+    }
+
+    /**
+     * Limits on the time a poll may take. Request timeouts adapt to each BMC's round-trip times, and only apply to the
+     * async engine, the sync one waits for the connector's own retries.
+     */
+    public static class TimeoutConfiguration {
+        /**
+         * Fraction of the poll frequency after which a poll ships the readings it has. Sensors not answered by then
+         * are left out and logged.
+         */
+        @JsonProperty
+        @DecimalMin("0.1")
+        @DecimalMax("1")
+        public double pollDeadline = 0.8;
+        /**
+         * Requests sent again after a timeout or a transport failure, per poll and over all sensors
+         */
+        @JsonProperty
+        @Min(0)
+        public int retryBudget = 3;
+        @JsonProperty
+        @NotNull
+        public Duration minRequestTimeout = Duration.milliseconds(100);
+        @JsonProperty
+        @NotNull
+        public Duration maxRequestTimeout = Duration.seconds(2);
+        /**
+         * Until a BMC answered once
+         */
+        @JsonProperty
+        @NotNull
+        public Duration initialRequestTimeout = Duration.seconds(1);
+    }
+
+    /**
+     * Read each sensor at its own pace: every poll while its readings change or are near one of its SDR thresholds,
+     * less often while they stay flat, down to once every maxInterval. The poll frequency is the fastest pace.
+     */
+    public static class AdaptivePollingConfiguration {
+        /**
+         * Longest time between two readings of a sensor
+         */
+        @JsonProperty
+        @NotNull
+        @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+        @MaxDuration(value = 1, unit = TimeUnit.DAYS)
+        public Duration maxInterval = Duration.minutes(1);
+        /**
+         * Change since the previous reading that brings a sensor back to every poll, as a fraction of the previous
+         * reading. At least the sensor resolution.
+         */
+        @JsonProperty
+        @DecimalMin("0")
+        @DecimalMax("1")
+        public double changeThreshold = 0.02;
+        /**
+         * Distance to a threshold, as a fraction of the threshold, within which a sensor is read every poll. So is a
+         * sensor whose readings, at their current rate of change, would get that close before its next reading.
+         */
+        @JsonProperty
+        @DecimalMin("0")
+        @DecimalMax("1")
+        public double thresholdProximity = 0.1;
+    }
+
+    public static class EngineConfiguration {
+        public enum Mode { sync, async; }
+
+        /**
+         * sync blocks a scheduler thread on every IPMI round-trip, async keeps many requests in flight from a few
+         * threads
+         */
+        @JsonProperty
+        @NotNull
+        public Mode mode = Mode.sync;
+        @JsonProperty
+        @Min(1)
+        public int maxInFlightRequests = 256;
+        @JsonProperty
+        @Min(1)
+        public int maxInFlightRequestsPerBmc = 4;
+        /**
+         * Longest wait for the answer to a request the async engine blocks on, such as SDR reads
+         */
+        @JsonProperty
+        @NotNull
+        public Duration messageTimeout = Duration.seconds(10);
+        /**
+         * Connectors, each with its own UDP socket, the BMCs are spread over. maxInFlightRequests is split among them.
+         */
+        @JsonProperty
+        @Min(1)
+        @Max(64)
+        public int connectors = 1;
+        /**
+         * Local UDP port of the first connector, the others take the following ones. 0 picks free ports.
+         */
+        @JsonProperty
+        @Min(0)
+        @Max(65535)
+        public int localPort = 0;
+    }
+
+    public static class SessionConfiguration {
+        @JsonProperty
+        @NotNull
+        public Duration minReconnectDelay = Duration.seconds(1);
+        @JsonProperty
+        @NotNull
+        public Duration maxReconnectDelay = Duration.minutes(5);
+        /**
+         * Idle sessions are kept alive with a cheap command at this interval, 0 disables keepalive
+         */
+        @JsonProperty
+        @NotNull
+        public Duration keepaliveInterval = Duration.seconds(30);
+        /**
+         * Sessions set up at the same time, limits reconnect storms
+         */
+        @JsonProperty
+        @Min(1)
+        public int maxConcurrentSetups = 16;
+    }
+
+    public static class ShardingConfiguration {
+        public enum Membership { peers, directory; }
+
+        /**
+         * Id of this instance, unique among the instances sharing the entity list
+         */
+        @JsonProperty
+        @NotEmpty
+        public String nodeId;
+        @JsonProperty
+        @NotNull
+        public Membership membership = Membership.peers;
+        /**
+         * Ids of the other instances, for peers membership
+         */
+        @JsonProperty
+        @NotNull
+        public List<String> peers = Collections.emptyList();
+        /**
+         * Directory shared by all instances, for directory membership
+         */
+        @JsonProperty
+        public File directory;
+        @JsonProperty
+        @NotNull
+        public Duration heartbeatInterval = Duration.seconds(5);
+        @JsonProperty
+        @NotNull
+        public Duration memberExpiry = Duration.seconds(20);
+        @JsonProperty
+        @NotNull
+        public Duration rebalanceInterval = Duration.seconds(10);
+        @JsonProperty
+        @Min(1)
+        public int virtualNodes = 128;
     }
 
     public static class EntityConfiguration {
@@ -64,9 +531,32 @@ public class IPMIPollerConfiguration extends Configuration {
         public String password;
         @JsonProperty
         public String source;
+        /**
+         * BMCs of the same model share what is learned about reading their SDR repository
+         */
+        @JsonProperty
+        public String model;
+        /**
+         * Overrides the global pollFrequency for this entity
+         */
+        @JsonProperty
+        @MinDuration(value = 1, unit = TimeUnit.SECONDS)
+        @MaxDuration(value = 1, unit = TimeUnit.DAYS)
+        public Duration pollFrequency;
+        /**
+         * Overrides the global reportWindow for this entity
+         */
+        @JsonProperty
+        @MaxDuration(value = 1, unit = TimeUnit.DAYS)
+        public Duration reportWindow;
+        /**
+         * Also poll the sensors of the SDR repository matched by the sensorRules. Listed sensors take precedence.
+         */
+        @JsonProperty
+        public boolean discoverSensors;
         @NotNull
         @JsonProperty
-        public List<SensorConfiguration> sensors;
+        public List<SensorConfiguration> sensors = Collections.emptyList();
     }
 
     @Valid
@@ -79,13 +569,99 @@ public class IPMIPollerConfiguration extends Configuration {
     @NotNull
     public MetricClientConfiguration metricsClient = new MetricClientConfiguration();
 
+    /**
+     * Entities polled from startup. May be empty when a scan finds them.
+     */
+    @JsonProperty
+    @Valid
+    @NotNull
+    public List<EntityConfiguration> monitoredEntities = Collections.emptyList();
+
+    @JsonProperty
+    @Valid
+    @NotNull
+    public List<SensorRuleConfiguration> sensorRules = Collections.emptyList();
+
+    @JsonProperty
+    @Valid
+    public ScanConfiguration scan;
+
+    @JsonProperty
+    @Valid
+    @NotNull
+    public EngineConfiguration engine = new EngineConfiguration();
+
+    @JsonProperty
+    @Valid
+    @NotNull
+    public SessionConfiguration session = new SessionConfiguration();
+
+    @JsonProperty
+    @Valid
+    @NotNull
+    public TimeoutConfiguration timeouts = new TimeoutConfiguration();
+
+    /**
+     * Share the entity list with other instances. This instance polls all entities when unset.
+     */
     @JsonProperty
     @Valid
-    @NotEmpty
-    public List<EntityConfiguration> monitoredEntities;
+    public ShardingConfiguration sharding;
 
     @JsonProperty
     @MinDuration(value = 1, unit = TimeUnit.SECONDS)
     @MaxDuration(value = 1, unit = TimeUnit.DAYS)
     public Duration pollFrequency = Duration.seconds(5);
+
+    /**
+     * Random shift of each entity's start time, as a fraction of the gap between two entities
+     */
+    @JsonProperty
+    @DecimalMin("0")
+    @DecimalMax("1")
+    public double pollJitter = 0.5;
+
+    /**
+     * Report one value per sensor and window, aggregated from the polls in the window with the sensor's
+     * defaultAggregate. Every poll is reported when unset.
+     */
+    @JsonProperty
+    @MaxDuration(value = 1, unit = TimeUnit.DAYS)
+    public Duration reportWindow;
+
+    @JsonProperty
+    @NotNull
+    public OverrunPolicy overrunPolicy = OverrunPolicy.skip;
+
+    /**
+     * Directory holding the raw SDR records of every BMC, so restarts skip the repository walk. Disabled when unset.
+     */
+    @JsonProperty
+    public File sdrCacheDirectory;
+
+    @JsonProperty
+    @Valid
+    @NotNull
+    public SinkConfiguration sinks = new SinkConfiguration();
+
+    /**
+     * Thresholds are not evaluated when unset
+     */
+    @JsonProperty
+    @Valid
+    public ThresholdConfiguration thresholds;
+
+    /**
+     * Every sensor is read on every poll when unset
+     */
+    @JsonProperty
+    @Valid
+    public AdaptivePollingConfiguration adaptivePolling;
+
+    /**
+     * Readings kept in memory per sensor for the local query API. Disabled when 0.
+     */
+    @JsonProperty
+    @Min(0)
+    public int historySize = 120;
 }
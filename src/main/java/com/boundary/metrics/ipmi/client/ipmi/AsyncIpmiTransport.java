@@ -0,0 +1,311 @@
+package com.boundary.metrics.ipmi.client.ipmi;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.veraxsystems.vxipmi.api.async.ConnectionHandle;
+import com.veraxsystems.vxipmi.api.async.IpmiAsyncConnector;
+import com.veraxsystems.vxipmi.api.async.IpmiListener;
+import com.veraxsystems.vxipmi.api.async.messages.IpmiError;
+import com.veraxsystems.vxipmi.api.async.messages.IpmiResponse;
+import com.veraxsystems.vxipmi.api.async.messages.IpmiResponseData;
+import com.veraxsystems.vxipmi.coding.commands.IpmiCommandCoder;
+import com.veraxsystems.vxipmi.coding.commands.PrivilegeLevel;
+import com.veraxsystems.vxipmi.coding.commands.ResponseData;
+import com.veraxsystems.vxipmi.coding.security.CipherSuite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Transport over the vxipmi {@link IpmiAsyncConnector}. Messages are handed to the connector without waiting for
+ * the answer, so a few threads can keep requests in flight to many BMCs at once.
+ *
+ * The number of unanswered requests is limited per BMC and in total. Requests over either limit are queued per BMC
+ * and sent, in order, as earlier requests are answered. Nothing here blocks the calling thread.
+ */
+public class AsyncIpmiTransport extends IpmiTransport implements IpmiListener, MetricSet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncIpmiTransport.class);
+
+    private static class Pending {
+        final IpmiCommandCoder request;
+        final SettableFuture<ResponseData> future = SettableFuture.create();
+
+        Pending(IpmiCommandCoder request) {
+            this.request = request;
+        }
+    }
+
+    private class Bmc {
+        final ConnectionHandle handle;
+        final Queue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+        final Semaphore permits = new Semaphore(maxInFlightPerBmc);
+
+        Bmc(ConnectionHandle handle) {
+            this.handle = handle;
+        }
+    }
+
+    private final IpmiAsyncConnector connector;
+    private final int maxInFlightPerBmc;
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final long messageTimeoutMillis;
+
+    private final ConcurrentMap<Integer, Bmc> bmcs = new ConcurrentHashMap<Integer, Bmc>();
+    private final Queue<Bmc> waiting = new ConcurrentLinkedQueue<Bmc>();
+
+    /**
+     * Requests sent to the connector, keyed by handle and tag. A response can be delivered by the connector before
+     * {@link IpmiAsyncConnector#sendMessage} returns its tag; in that case the response is parked here until the
+     * sender picks it up.
+     */
+    private final ConcurrentMap<Long, Object> inFlight = new ConcurrentHashMap<Long, Object>();
+
+    /**
+     * @param messageTimeoutMillis longest wait of {@link #sendMessage} for an answer
+     */
+    public AsyncIpmiTransport(IpmiAsyncConnector connector, int maxInFlight, int maxInFlightPerBmc,
+                              long messageTimeoutMillis) {
+        checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+        checkArgument(maxInFlightPerBmc > 0, "maxInFlightPerBmc must be positive");
+        this.connector = checkNotNull(connector);
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerBmc = maxInFlightPerBmc;
+        this.messageTimeoutMillis = messageTimeoutMillis;
+        this.permits = new Semaphore(maxInFlight);
+        connector.registerListener(this);
+    }
+
+    @Override
+    public ConnectionHandle createConnection(InetAddress address) throws Exception {
+        ConnectionHandle handle = connector.createConnection(address);
+        bmcs.put(handle.getHandle(), new Bmc(handle));
+        return handle;
+    }
+
+    @Override
+    public List<CipherSuite> getAvailableCipherSuites(ConnectionHandle handle) throws Exception {
+        return connector.getAvailableCipherSuites(handle);
+    }
+
+    @Override
+    public void getChannelAuthenticationCapabilities(ConnectionHandle handle, CipherSuite cipherSuite,
+                                                     PrivilegeLevel privilegeLevel) throws Exception {
+        connector.getChannelAuthenticationCapabilities(handle, cipherSuite, privilegeLevel);
+    }
+
+    @Override
+    public void openSession(ConnectionHandle handle, String username, String password, byte[] bmcKey) throws Exception {
+        connector.openSession(handle, username, password, bmcKey);
+    }
+
+    @Override
+    public void closeSession(ConnectionHandle handle) throws Exception {
+        connector.closeSession(handle);
+    }
+
+    /**
+     * Fails the queued requests of the connection, and those in flight: their answers may never come, and they hold
+     * permits of the global limit
+     */
+    @Override
+    public void closeConnection(ConnectionHandle handle) {
+        Bmc bmc = bmcs.remove(handle.getHandle());
+        connector.closeConnection(handle);
+        if (bmc != null) {
+            Pending p;
+            while ((p = bmc.queue.poll()) != null) {
+                p.future.setException(new IllegalStateException("Connection closed"));
+            }
+        }
+        for (Map.Entry<Long, Object> e : inFlight.entrySet()) {
+            if ((int) (e.getKey() >>> 32) == handle.getHandle() && e.getValue() instanceof Pending) {
+                abandon(e.getKey(), (Pending) e.getValue());
+            }
+        }
+        drainWaiting();
+    }
+
+    /**
+     * Fail a request in flight on a closed connection, unless its answer got it first
+     */
+    private void abandon(long key, Pending pending) {
+        if (inFlight.remove(key, pending)) {
+            permits.release();
+            pending.future.setException(new IllegalStateException("Connection closed"));
+        }
+    }
+
+    /**
+     * Waits up to the message timeout, the request is failed when its connection is closed
+     */
+    @Override
+    public ResponseData sendMessage(ConnectionHandle handle, IpmiCommandCoder request) throws Exception {
+        try {
+            return send(handle, request).get(messageTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public ListenableFuture<ResponseData> send(ConnectionHandle handle, IpmiCommandCoder request) {
+        Bmc bmc = bmcs.get(handle.getHandle());
+        Pending pending = new Pending(request);
+        if (bmc == null) {
+            pending.future.setException(new IllegalStateException("Unknown connection " + handle.getHandle()));
+        } else {
+            bmc.queue.add(pending);
+            drain(bmc);
+        }
+        return pending.future;
+    }
+
+    @Override
+    public void tearDown() {
+        connector.tearDown();
+    }
+
+    @Override
+    public void notify(IpmiResponse response) {
+        long key = key(response.getHandle(), response.getTag());
+        Object sender = inFlight.putIfAbsent(key, response);
+        if (sender != null) {
+            if (inFlight.remove(key, sender)) {
+                complete(response.getHandle(), (Pending) sender, response);
+            }
+        } else if (!bmcs.containsKey(response.getHandle().getHandle())) {
+            // late answer on a closed connection, nobody will pick it up
+            inFlight.remove(key, response);
+        }
+    }
+
+    /**
+     * Send queued requests of a BMC while both its own and the global limit allow.
+     */
+    private void drain(Bmc bmc) {
+        while (!bmc.queue.isEmpty()) {
+            if (!bmc.permits.tryAcquire()) {
+                // an answer to one of this BMC's requests will drain it again
+                return;
+            }
+            if (!permits.tryAcquire()) {
+                bmc.permits.release();
+                waiting.add(bmc);
+                // a request may have completed between the failed acquire and joining the waiting queue
+                if (permits.availablePermits() > 0) {
+                    drainWaiting();
+                }
+                return;
+            }
+            Pending pending = bmc.queue.poll();
+            if (pending == null) {
+                release(bmc);
+                return;
+            }
+            dispatch(bmc, pending);
+        }
+    }
+
+    private void drainWaiting() {
+        Bmc bmc;
+        while (permits.availablePermits() > 0 && (bmc = waiting.poll()) != null) {
+            drain(bmc);
+        }
+    }
+
+    private void dispatch(Bmc bmc, Pending pending) {
+        int tag;
+        try {
+            tag = connector.sendMessage(bmc.handle, pending.request);
+        } catch (Exception e) {
+            release(bmc);
+            pending.future.setException(e);
+            drain(bmc);
+            return;
+        }
+        long key = key(bmc.handle, tag);
+        Object response = inFlight.putIfAbsent(key, pending);
+        if (response != null) {
+            inFlight.remove(key);
+            complete(bmc.handle, pending, (IpmiResponse) response);
+        } else if (!bmcs.containsKey(bmc.handle.getHandle())) {
+            // closed while this was being sent, after closeConnection looked at the requests in flight
+            abandon(key, pending);
+        }
+    }
+
+    private void complete(ConnectionHandle handle, Pending pending, IpmiResponse response) {
+        Bmc bmc = bmcs.get(handle.getHandle());
+        if (bmc != null) {
+            release(bmc);
+        } else {
+            permits.release();
+        }
+
+        if (response instanceof IpmiResponseData) {
+            pending.future.set(((IpmiResponseData) response).getResponseData());
+        } else if (response instanceof IpmiError) {
+            pending.future.setException(((IpmiError) response).getException());
+        } else {
+            LOG.warn("Unexpected response type {}", response.getClass());
+            pending.future.setException(new IllegalStateException("Unexpected response " + response.getClass()));
+        }
+
+        if (bmc != null) {
+            drain(bmc);
+        }
+        drainWaiting();
+    }
+
+    private void release(Bmc bmc) {
+        bmc.permits.release();
+        permits.release();
+    }
+
+    private static long key(ConnectionHandle handle, int tag) {
+        return ((long) handle.getHandle() << 32) | (tag & 0xffffffffL);
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return ImmutableMap.<String, Metric>of(
+                "async-in-flight", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return maxInFlight - permits.availablePermits();
+                    }
+                },
+                "async-waiting", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        int queued = 0;
+                        for (Bmc bmc : bmcs.values()) {
+                            queued += bmc.queue.size();
+                        }
+                        return queued;
+                    }
+                });
+    }
+}
@@ -0,0 +1,57 @@
+package com.boundary.metrics.ipmi.client.ipmi;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * Latency of each kind of IPMI command sent to one BMC, and counts of the ways they go wrong, so a slow BMC can be
+ * told apart from one that keeps retrying. Metric names start with the address of the BMC.
+ */
+public class BmcMetrics implements MetricSet {
+
+    /**
+     * Whole session setup: connection, authentication capabilities and RAKP exchange
+     */
+    public final Timer sessionOpen = new Timer();
+    public final Timer cipherSuites = new Timer();
+    public final Timer getSdrWhole = new Timer();
+    public final Timer getSdrChunk = new Timer();
+    public final Timer reserveSdrRepository = new Timer();
+    public final Timer getSensorReading = new Timer();
+
+    /**
+     * Commands sent again after a failure: a smaller SDR chunk, chunks after a whole record was refused, a GetSdr
+     * with a new reservation
+     */
+    public final Counter retries = new Counter();
+    public final Counter dataNotPresent = new Counter();
+    public final Counter cannotRespond = new Counter();
+    public final Counter reservationCancellations = new Counter();
+
+    private final String address;
+
+    public BmcMetrics(String address) {
+        this.address = address;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return ImmutableMap.<String, Metric>builder()
+                .put(address + "-ipmi-session-open", sessionOpen)
+                .put(address + "-ipmi-cipher-suites", cipherSuites)
+                .put(address + "-ipmi-get-sdr-whole", getSdrWhole)
+                .put(address + "-ipmi-get-sdr-chunk", getSdrChunk)
+                .put(address + "-ipmi-reserve-sdr-repository", reserveSdrRepository)
+                .put(address + "-ipmi-get-sensor-reading", getSensorReading)
+                .put(address + "-ipmi-retries", retries)
+                .put(address + "-ipmi-data-not-present", dataNotPresent)
+                .put(address + "-ipmi-cannot-respond", cannotRespond)
+                .put(address + "-ipmi-reservation-cancellations", reservationCancellations)
+                .build();
+    }
+}
@@ -0,0 +1,54 @@
+package com.boundary.metrics.ipmi.client.ipmi;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.veraxsystems.vxipmi.api.async.ConnectionHandle;
+import com.veraxsystems.vxipmi.coding.commands.IpmiCommandCoder;
+import com.veraxsystems.vxipmi.coding.commands.PrivilegeLevel;
+import com.veraxsystems.vxipmi.coding.commands.ResponseData;
+import com.veraxsystems.vxipmi.coding.security.CipherSuite;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Common face of the vxipmi sync and async connectors, so pollers don't care which one carries their messages.
+ *
+ * Session setup is always blocking. Messages inside a session are sent through {@link #send}, whose future completes
+ * with the response data or fails with the exception reported by the connector (usually an
+ * {@link com.veraxsystems.vxipmi.coding.payload.lan.IPMIException}).
+ */
+public abstract class IpmiTransport {
+
+    public abstract ConnectionHandle createConnection(InetAddress address) throws Exception;
+
+    public abstract List<CipherSuite> getAvailableCipherSuites(ConnectionHandle handle) throws Exception;
+
+    public abstract void getChannelAuthenticationCapabilities(ConnectionHandle handle, CipherSuite cipherSuite,
+                                                              PrivilegeLevel privilegeLevel) throws Exception;
+
+    public abstract void openSession(ConnectionHandle handle, String username, String password, byte[] bmcKey)
+            throws Exception;
+
+    public abstract void closeSession(ConnectionHandle handle) throws Exception;
+
+    public abstract void closeConnection(ConnectionHandle handle);
+
+    public abstract ListenableFuture<ResponseData> send(ConnectionHandle handle, IpmiCommandCoder request);
+
+    public abstract void tearDown();
+
+    /**
+     * Send a message and wait for its response.
+     */
+    public ResponseData sendMessage(ConnectionHandle handle, IpmiCommandCoder request) throws Exception {
+        try {
+            return send(handle, request).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
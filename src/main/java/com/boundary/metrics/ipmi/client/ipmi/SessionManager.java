@@ -0,0 +1,298 @@
+package com.boundary.metrics.ipmi.client.ipmi;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.veraxsystems.vxipmi.api.async.ConnectionHandle;
+import com.veraxsystems.vxipmi.coding.commands.IpmiVersion;
+import com.veraxsystems.vxipmi.coding.commands.PrivilegeLevel;
+import com.veraxsystems.vxipmi.coding.commands.ResponseData;
+import com.veraxsystems.vxipmi.coding.commands.sdr.GetSdrRepositoryInfo;
+import com.veraxsystems.vxipmi.coding.payload.lan.IPMIException;
+import com.veraxsystems.vxipmi.coding.protocol.AuthenticationType;
+import com.veraxsystems.vxipmi.coding.security.CipherSuite;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Owns the RMCP+ sessions to the BMCs.
+ *
+ * Sessions are opened lazily by {@link IpmiSession#handle()} and reopened after they die, with an exponential,
+ * jittered backoff between attempts. The cipher suite negotiated with a BMC is remembered, so reconnects skip
+ * cipher suite discovery. Only a bounded number of sessions are set up at once, so a BMC fleet coming back after a
+ * network outage doesn't flood the network. Idle sessions are kept alive with a cheap in-session command.
+ */
+public class SessionManager implements Managed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionManager.class);
+
+    private final IpmiTransport transport;
+    private final ScheduledExecutorService executor;
+    private final long minReconnectDelayMillis;
+    private final long maxReconnectDelayMillis;
+    private final long keepaliveMillis;
+    private final Semaphore setups;
+
+    private final ConcurrentMap<InetAddress, CipherSuite> cipherSuites = new ConcurrentHashMap<InetAddress, CipherSuite>();
+    private final List<IpmiSession> sessions = new CopyOnWriteArrayList<IpmiSession>();
+    private final Random random = new Random();
+
+    public SessionManager(IpmiTransport transport, ScheduledExecutorService executor,
+                          IPMIPollerConfiguration.SessionConfiguration config) {
+        this.transport = checkNotNull(transport);
+        this.executor = checkNotNull(executor);
+        this.minReconnectDelayMillis = config.minReconnectDelay.toMilliseconds();
+        this.maxReconnectDelayMillis = config.maxReconnectDelay.toMilliseconds();
+        this.keepaliveMillis = config.keepaliveInterval.toMilliseconds();
+        this.setups = new Semaphore(config.maxConcurrentSetups);
+    }
+
+    public IpmiSession session(InetAddress address, String username, String password, PrivilegeLevel privilegeLevel) {
+        IpmiSession session = new IpmiSession(address, username, password, privilegeLevel);
+        sessions.add(session);
+        return session;
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (keepaliveMillis > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    keepAlive();
+                }
+            }, keepaliveMillis, keepaliveMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        for (IpmiSession session : Lists.newArrayList(sessions)) {
+            session.close();
+        }
+    }
+
+    private void keepAlive() {
+        long idleSince = System.currentTimeMillis() - keepaliveMillis;
+        for (final IpmiSession session : sessions) {
+            final ConnectionHandle handle = session.connected;
+            if (handle == null || session.lastActivity.get() > idleSince) {
+                continue;
+            }
+            session.touch();
+            Futures.addCallback(transport.send(handle, new GetSdrRepositoryInfo(IpmiVersion.V20,
+                    handle.getCipherSuite(), AuthenticationType.RMCPPlus)), new FutureCallback<ResponseData>() {
+                @Override
+                public void onSuccess(ResponseData result) { }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    session.failed(handle, t);
+                }
+            });
+        }
+    }
+
+    /**
+     * Session to one BMC
+     */
+    public class IpmiSession {
+        private final InetAddress address;
+        private final String username;
+        private final String password;
+        private final PrivilegeLevel privilegeLevel;
+        private final BmcMetrics metrics;
+
+        private volatile ConnectionHandle connected;
+        private final AtomicLong lastActivity = new AtomicLong();
+        private final AtomicLong opens = new AtomicLong();
+        private int failures;
+        private long nextAttempt;
+        /**
+         * Set by {@link #close()}, a closed session is never reopened
+         */
+        private boolean closed;
+
+        private IpmiSession(InetAddress address, String username, String password, PrivilegeLevel privilegeLevel) {
+            this.address = address;
+            this.username = username;
+            this.password = password;
+            this.privilegeLevel = privilegeLevel;
+            this.metrics = new BmcMetrics(address.getHostAddress());
+        }
+
+        /**
+         * Get the handle of the open session, opening it first if needed.
+         *
+         * @throws SessionUnavailableException if the session is down and may not be reopened yet, or was closed
+         */
+        public ConnectionHandle handle() throws Exception {
+            ConnectionHandle handle = connected;
+            if (handle != null) {
+                touch();
+                return handle;
+            }
+            synchronized (this) {
+                if (connected != null) {
+                    return connected;
+                }
+                if (closed) {
+                    throw new SessionUnavailableException(address.getHostAddress() + " session closed");
+                }
+                if (System.currentTimeMillis() < nextAttempt) {
+                    throw new SessionUnavailableException(address.getHostAddress() + " waiting to reconnect");
+                }
+                if (!setups.tryAcquire()) {
+                    throw new SessionUnavailableException(address.getHostAddress() + " too many sessions being set up");
+                }
+                try {
+                    connected = open();
+                    if (opens.getAndIncrement() > 0) {
+                        LOG.info("{} Session reopened", address.getHostAddress());
+                    }
+                    failures = 0;
+                    touch();
+                    return connected;
+                } catch (Exception e) {
+                    long delay = backoff(++failures);
+                    nextAttempt = System.currentTimeMillis() + delay;
+                    LOG.warn("{} Unable to open session, next attempt in {}ms", address.getHostAddress(), delay);
+                    throw e;
+                } finally {
+                    setups.release();
+                }
+            }
+        }
+
+        /**
+         * Report a failed exchange on the given session. Errors reported by the BMC itself mean the session is
+         * alive; anything else, typically a timeout, drops the session so it is reopened on next use.
+         */
+        public void failed(ConnectionHandle handle, Throwable t) {
+            if (handle == null || t instanceof IPMIException) {
+                return;
+            }
+            synchronized (this) {
+                if (connected != handle) {
+                    return;
+                }
+                LOG.warn("{} Dropping session after failure: {}", address.getHostAddress(), t.toString());
+                connected = null;
+                nextAttempt = System.currentTimeMillis() + backoff(++failures);
+            }
+            transport.closeConnection(handle);
+        }
+
+        /**
+         * Command metrics of the BMC, shared by everything talking to it through this session
+         */
+        public BmcMetrics metrics() {
+            return metrics;
+        }
+
+        public void touch() {
+            lastActivity.set(System.currentTimeMillis());
+        }
+
+        public boolean isConnected() {
+            return connected != null;
+        }
+
+        /**
+         * Number of times the session was opened
+         */
+        public long getOpenCount() {
+            return opens.get();
+        }
+
+        public void close() {
+            sessions.remove(this);
+            ConnectionHandle handle;
+            synchronized (this) {
+                closed = true;
+                handle = connected;
+                connected = null;
+            }
+            if (handle != null) {
+                try {
+                    transport.closeSession(handle);
+                } catch (Exception e) {
+                    LOG.debug("{} Unable to close session", address.getHostAddress(), e);
+                }
+                transport.closeConnection(handle);
+            }
+        }
+
+        private ConnectionHandle open() throws Exception {
+            Timer.Context timer = metrics.sessionOpen.time();
+            // Create the handle to the connection which will be it's identifier
+            ConnectionHandle handle = transport.createConnection(address);
+
+            CipherSuite cs = cipherSuites.get(address);
+            boolean cached = cs != null;
+            try {
+                if (!cached) {
+                    Timer.Context discovery = metrics.cipherSuites.time();
+                    try {
+                        cs = pickCipherSuite(transport.getAvailableCipherSuites(handle));
+                    } finally {
+                        discovery.stop();
+                    }
+                }
+                // Pick the cipher suite and requested privilege level for the
+                // session
+                transport.getChannelAuthenticationCapabilities(handle, cs, privilegeLevel);
+
+                // Open the session and authenticate. We assume, that two-key
+                // authentication isn't enabled, so BMC key is left empty.
+                transport.openSession(handle, username, password, "".getBytes());
+            } catch (Exception e) {
+                if (cached) {
+                    // the BMC may have been reconfigured, negotiate again next time
+                    cipherSuites.remove(address);
+                }
+                transport.closeConnection(handle);
+                throw e;
+            } finally {
+                timer.stop();
+            }
+            cipherSuites.put(address, cs);
+            return handle;
+        }
+
+        private long backoff(int attempt) {
+            long delay = minReconnectDelayMillis << Math.min(attempt - 1, 20);
+            delay = Math.min(Math.max(delay, minReconnectDelayMillis), maxReconnectDelayMillis);
+            // full jitter on the upper half keeps reconnects of many BMCs from lining up
+            return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        }
+    }
+
+    private static CipherSuite pickCipherSuite(List<CipherSuite> suites) {
+        if (suites.size() > 3) {
+            return suites.get(3);
+        } else if (suites.size() > 2) {
+            return suites.get(2);
+        } else if (suites.size() > 1) {
+            return suites.get(1);
+        } else {
+            return suites.get(0);
+        }
+    }
+}
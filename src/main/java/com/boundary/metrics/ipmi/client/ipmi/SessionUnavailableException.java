@@ -0,0 +1,14 @@
+package com.boundary.metrics.ipmi.client.ipmi;
+
+/**
+ * Thrown when a BMC session is down and may not be reopened yet, either because its reconnect backoff has not
+ * elapsed or because too many sessions are being set up at once, or when the session was closed.
+ */
+public class SessionUnavailableException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public SessionUnavailableException(String message) {
+        super(message);
+    }
+}
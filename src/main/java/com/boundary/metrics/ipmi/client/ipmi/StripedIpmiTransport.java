@@ -0,0 +1,173 @@
+package com.boundary.metrics.ipmi.client.ipmi;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.veraxsystems.vxipmi.api.async.ConnectionHandle;
+import com.veraxsystems.vxipmi.coding.commands.IpmiCommandCoder;
+import com.veraxsystems.vxipmi.coding.commands.PrivilegeLevel;
+import com.veraxsystems.vxipmi.coding.commands.ResponseData;
+import com.veraxsystems.vxipmi.coding.security.CipherSuite;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Spreads BMCs over several transports, each with its own connector and UDP socket, so the traffic of the fleet
+ * doesn't contend on a single socket and its locks. A BMC always goes through the same transport, picked by a
+ * consistent hash of its address: adding transports only moves the BMCs the new ones take over.
+ *
+ * Each transport reports the messages it sent, those waiting for an answer and its open connections, prefixed with
+ * ipmi-connector-N, along with its own metrics if it has any.
+ */
+public class StripedIpmiTransport extends IpmiTransport implements MetricSet {
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private static class Stripe {
+        final IpmiTransport transport;
+        final Meter messages = new Meter();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final Counter connections = new Counter();
+        final Runnable done = new Runnable() {
+            @Override
+            public void run() {
+                inFlight.decrementAndGet();
+            }
+        };
+
+        Stripe(IpmiTransport transport) {
+            this.transport = transport;
+        }
+    }
+
+    private final List<Stripe> stripes;
+
+    public StripedIpmiTransport(List<? extends IpmiTransport> transports) {
+        checkArgument(!transports.isEmpty(), "At least one transport is required");
+        ImmutableList.Builder<Stripe> stripes = ImmutableList.builder();
+        for (IpmiTransport transport : transports) {
+            stripes.add(new Stripe(transport));
+        }
+        this.stripes = stripes.build();
+    }
+
+    private Stripe stripe(InetAddress address) {
+        return stripes.get(Hashing.consistentHash(HASH.hashBytes(address.getAddress()), stripes.size()));
+    }
+
+    private Stripe stripe(ConnectionHandle handle) {
+        return stripe(handle.getRemoteAddress());
+    }
+
+    @Override
+    public ConnectionHandle createConnection(InetAddress address) throws Exception {
+        Stripe stripe = stripe(address);
+        ConnectionHandle handle = stripe.transport.createConnection(address);
+        stripe.connections.inc();
+        return handle;
+    }
+
+    @Override
+    public List<CipherSuite> getAvailableCipherSuites(ConnectionHandle handle) throws Exception {
+        return stripe(handle).transport.getAvailableCipherSuites(handle);
+    }
+
+    @Override
+    public void getChannelAuthenticationCapabilities(ConnectionHandle handle, CipherSuite cipherSuite,
+                                                     PrivilegeLevel privilegeLevel) throws Exception {
+        stripe(handle).transport.getChannelAuthenticationCapabilities(handle, cipherSuite, privilegeLevel);
+    }
+
+    @Override
+    public void openSession(ConnectionHandle handle, String username, String password, byte[] bmcKey)
+            throws Exception {
+        stripe(handle).transport.openSession(handle, username, password, bmcKey);
+    }
+
+    @Override
+    public void closeSession(ConnectionHandle handle) throws Exception {
+        stripe(handle).transport.closeSession(handle);
+    }
+
+    @Override
+    public void closeConnection(ConnectionHandle handle) {
+        Stripe stripe = stripe(handle);
+        stripe.transport.closeConnection(handle);
+        stripe.connections.dec();
+    }
+
+    @Override
+    public ListenableFuture<ResponseData> send(ConnectionHandle handle, IpmiCommandCoder request) {
+        Stripe stripe = stripe(handle);
+        stripe.messages.mark();
+        stripe.inFlight.incrementAndGet();
+        ListenableFuture<ResponseData> response;
+        try {
+            response = stripe.transport.send(handle, request);
+        } catch (RuntimeException e) {
+            stripe.inFlight.decrementAndGet();
+            return Futures.immediateFailedFuture(e);
+        }
+        response.addListener(stripe.done, MoreExecutors.sameThreadExecutor());
+        return response;
+    }
+
+    /**
+     * Goes straight to the transport, which may have a cheaper blocking path
+     */
+    @Override
+    public ResponseData sendMessage(ConnectionHandle handle, IpmiCommandCoder request) throws Exception {
+        Stripe stripe = stripe(handle);
+        stripe.messages.mark();
+        stripe.inFlight.incrementAndGet();
+        try {
+            return stripe.transport.sendMessage(handle, request);
+        } finally {
+            stripe.inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        for (Stripe stripe : stripes) {
+            stripe.transport.tearDown();
+        }
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        ImmutableMap.Builder<String, Metric> metrics = ImmutableMap.builder();
+        for (int i = 0; i < stripes.size(); i++) {
+            final Stripe stripe = stripes.get(i);
+            String prefix = "ipmi-connector-" + i + "-";
+            metrics.put(prefix + "messages", stripe.messages);
+            metrics.put(prefix + "pending", new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return stripe.inFlight.get();
+                }
+            });
+            metrics.put(prefix + "connections", stripe.connections);
+            if (stripe.transport instanceof MetricSet) {
+                for (Map.Entry<String, Metric> m : ((MetricSet) stripe.transport).getMetrics().entrySet()) {
+                    metrics.put(prefix + m.getKey(), m.getValue());
+                }
+            }
+        }
+        return metrics.build();
+    }
+}
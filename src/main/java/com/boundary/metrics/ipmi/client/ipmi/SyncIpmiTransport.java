@@ -0,0 +1,78 @@
+package com.boundary.metrics.ipmi.client.ipmi;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.veraxsystems.vxipmi.api.async.ConnectionHandle;
+import com.veraxsystems.vxipmi.api.sync.IpmiConnector;
+import com.veraxsystems.vxipmi.coding.commands.IpmiCommandCoder;
+import com.veraxsystems.vxipmi.coding.commands.PrivilegeLevel;
+import com.veraxsystems.vxipmi.coding.commands.ResponseData;
+import com.veraxsystems.vxipmi.coding.security.CipherSuite;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Transport over the blocking {@link IpmiConnector}. {@link #send} runs the exchange on the calling thread and
+ * returns an already completed future.
+ */
+public class SyncIpmiTransport extends IpmiTransport {
+
+    private final IpmiConnector connector;
+
+    public SyncIpmiTransport(IpmiConnector connector) {
+        this.connector = checkNotNull(connector);
+    }
+
+    @Override
+    public ConnectionHandle createConnection(InetAddress address) throws Exception {
+        return connector.createConnection(address);
+    }
+
+    @Override
+    public List<CipherSuite> getAvailableCipherSuites(ConnectionHandle handle) throws Exception {
+        return connector.getAvailableCipherSuites(handle);
+    }
+
+    @Override
+    public void getChannelAuthenticationCapabilities(ConnectionHandle handle, CipherSuite cipherSuite,
+                                                     PrivilegeLevel privilegeLevel) throws Exception {
+        connector.getChannelAuthenticationCapabilities(handle, cipherSuite, privilegeLevel);
+    }
+
+    @Override
+    public void openSession(ConnectionHandle handle, String username, String password, byte[] bmcKey) throws Exception {
+        connector.openSession(handle, username, password, bmcKey);
+    }
+
+    @Override
+    public void closeSession(ConnectionHandle handle) throws Exception {
+        connector.closeSession(handle);
+    }
+
+    @Override
+    public void closeConnection(ConnectionHandle handle) {
+        connector.closeConnection(handle);
+    }
+
+    @Override
+    public ListenableFuture<ResponseData> send(ConnectionHandle handle, IpmiCommandCoder request) {
+        try {
+            return Futures.immediateFuture(connector.sendMessage(handle, request));
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public ResponseData sendMessage(ConnectionHandle handle, IpmiCommandCoder request) throws Exception {
+        return connector.sendMessage(handle, request);
+    }
+
+    @Override
+    public void tearDown() {
+        connector.tearDown();
+    }
+}
@@ -0,0 +1,64 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.concurrent.Immutable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One event for the /v1/events API. Events with the same fingerprint update each other, so the OK event of a
+ * sensor back to normal closes the OPEN one it raised.
+ */
+@Immutable
+public class Event {
+
+    public enum Severity { INFO, WARN, ERROR, CRITICAL; }
+
+    public enum Status { OPEN, OK; }
+
+    public static class Source {
+        @JsonProperty
+        public final String ref;
+        @JsonProperty
+        public final String type;
+
+        public Source(String ref, String type) {
+            this.ref = ref;
+            this.type = type;
+        }
+    }
+
+    @JsonProperty
+    public final String title;
+    @JsonProperty
+    public final String message;
+    @JsonProperty
+    public final Severity severity;
+    @JsonProperty
+    public final Status status;
+    /**
+     * ISO 8601
+     */
+    @JsonProperty
+    public final String createdAt;
+    @JsonProperty
+    public final Source source;
+    @JsonProperty
+    public final List<String> fingerprintFields = ImmutableList.of("@title");
+    @JsonProperty
+    public final Map<String, Object> properties;
+
+    public Event(String title, String message, Severity severity, Status status, String createdAt, Source source,
+                 Map<String, Object> properties) {
+        this.title = title;
+        this.message = message;
+        this.severity = severity;
+        this.status = status;
+        this.createdAt = createdAt;
+        this.source = source;
+        this.properties = ImmutableMap.copyOf(properties);
+    }
+}
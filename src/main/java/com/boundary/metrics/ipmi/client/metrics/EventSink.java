@@ -0,0 +1,9 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+/**
+ * Where pollers send events. Sending must not block, pollers send from their poll cycle.
+ */
+public interface EventSink {
+
+    void addEvent(Event event);
+}
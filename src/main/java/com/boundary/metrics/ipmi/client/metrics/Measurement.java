@@ -0,0 +1,22 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * One point for the /v1/measurements API.
+ */
+@Immutable
+public class Measurement {
+
+    public final String source;
+    public final String metric;
+    public final double value;
+    public final long timestamp;
+
+    public Measurement(String source, String metric, double value, long timestamp) {
+        this.source = source;
+        this.metric = metric;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+}
@@ -0,0 +1,169 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges the measurements of all pollers into one bounded queue and posts them in batches, once a batch is full or
+ * the oldest queued measurement has waited long enough.
+ *
+ * At most a fixed number of batches are posted at once. When the API is slow the flusher waits for one of them to
+ * finish, the queue fills up and producers wait up to the offer timeout per poll before their measurements are
+ * dropped.
+ */
+public class MeasurementBatcher implements Managed, MetricSet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementBatcher.class);
+
+    private final MetricsClient client;
+    private final BlockingQueue<Measurement> queue;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final long offerTimeoutMillis;
+    private final Semaphore flushes;
+
+    private final Histogram batchSize = new Histogram(new SlidingTimeWindowReservoir(5, TimeUnit.MINUTES));
+    private final Timer flushLatency = new Timer();
+    private final Meter dropped = new Meter();
+
+    private volatile boolean running;
+    private Thread flusher;
+
+    public MeasurementBatcher(MetricsClient client, IPMIPollerConfiguration.BatchConfiguration config) {
+        this.client = client;
+        this.queue = new ArrayBlockingQueue<Measurement>(config.queueCapacity);
+        this.maxBatchSize = config.maxBatchSize;
+        this.maxDelayMillis = config.maxDelay.toMilliseconds();
+        this.offerTimeoutMillis = config.offerTimeout.toMilliseconds();
+        this.flushes = new Semaphore(config.maxConcurrentFlushes);
+    }
+
+    /**
+     * Queue the measurements of one poll. While the queue is full this waits up to the offer timeout for the whole
+     * poll, not per measurement, then drops what's left.
+     */
+    public void addAll(List<Measurement> measurements) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+        for (int i = 0; i < measurements.size(); i++) {
+            Measurement m = measurements.get(i);
+            try {
+                if (!queue.offer(m) && !queue.offer(m, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    dropped.mark(measurements.size() - i);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                dropped.mark(measurements.size() - i);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        running = true;
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "measurement-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        flusher.interrupt();
+        flusher.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private void flushLoop() {
+        List<Measurement> batch = Lists.newArrayListWithCapacity(maxBatchSize);
+        long deadline = System.currentTimeMillis() + maxDelayMillis;
+        while (running) {
+            try {
+                long wait = deadline - System.currentTimeMillis();
+                Measurement m = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (m != null) {
+                    batch.add(m);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+                if (batch.size() >= maxBatchSize || System.currentTimeMillis() >= deadline) {
+                    if (!batch.isEmpty()) {
+                        flush(batch);
+                        batch = Lists.newArrayListWithCapacity(maxBatchSize);
+                    }
+                    deadline = System.currentTimeMillis() + maxDelayMillis;
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        // ship whatever is left on shutdown
+        queue.drainTo(batch);
+        if (!batch.isEmpty()) {
+            flushes.acquireUninterruptibly();
+            post(batch);
+        }
+    }
+
+    private void flush(List<Measurement> batch) throws InterruptedException {
+        flushes.acquire();
+        post(batch);
+    }
+
+    private void post(List<Measurement> batch) {
+        batchSize.update(batch.size());
+        final Timer.Context context = flushLatency.time();
+        client.postMeasurements(batch, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                context.stop();
+                flushes.release();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                context.stop();
+                flushes.release();
+                LOG.error("Failed to flush measurement batch", t);
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return ImmutableMap.<String, Metric>of(
+                "measurement-batch-size", batchSize,
+                "measurement-queue-depth", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return queue.size();
+                    }
+                },
+                "measurement-flush-latency", flushLatency,
+                "measurement-dropped", dropped);
+    }
+}
@@ -0,0 +1,149 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.dropwizard.lifecycle.Managed;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Ships readings to several sinks. Each sink has its own bounded queue, drained by its own worker, so a slow sink
+ * only loses its own readings: when its queue is full the readings offered to it are dropped, and pollers never wait.
+ *
+ * Readings are copied once per shipment and shared by the sinks, which must not modify them.
+ */
+public class MeasurementFanout implements MeasurementSink, Managed, MetricSet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementFanout.class);
+
+    private static final long POLL_MILLIS = 100;
+
+    private static class Shipment {
+        final List<MonitoredMetric> metrics;
+        final double[] readings;
+        final Optional<DateTime> timestamp;
+
+        Shipment(List<MonitoredMetric> metrics, double[] readings, Optional<DateTime> timestamp) {
+            this.metrics = metrics;
+            this.readings = readings;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private class Lane implements Runnable {
+        final String name;
+        final MeasurementSink sink;
+        final BlockingQueue<Shipment> queue;
+        final Meter shipped = new Meter();
+        final Meter dropped = new Meter();
+        final Meter failures = new Meter();
+
+        Lane(String name, MeasurementSink sink, int capacity) {
+            this.name = name;
+            this.sink = sink;
+            this.queue = new ArrayBlockingQueue<Shipment>(capacity);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running || !queue.isEmpty()) {
+                    Shipment s = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (s == null) {
+                        continue;
+                    }
+                    try {
+                        sink.addMeasurements(s.metrics, s.readings, s.timestamp);
+                        shipped.mark();
+                    } catch (RuntimeException e) {
+                        failures.mark();
+                        LOG.error("Measurement sink {} failed", name, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final List<Lane> lanes;
+    private final ExecutorService workers;
+
+    private volatile boolean running;
+
+    /**
+     * @param sinks    sinks by name, the name prefixes their metrics
+     * @param workers  runs the workers, needs at least one thread per sink
+     * @param capacity shipments each sink may queue
+     */
+    public MeasurementFanout(Map<String, ? extends MeasurementSink> sinks, ExecutorService workers, int capacity) {
+        checkArgument(capacity > 0, "Queue capacity must be positive");
+        ImmutableList.Builder<Lane> lanes = ImmutableList.builder();
+        for (Map.Entry<String, ? extends MeasurementSink> e : sinks.entrySet()) {
+            lanes.add(new Lane(e.getKey(), e.getValue(), capacity));
+        }
+        this.lanes = lanes.build();
+        this.workers = checkNotNull(workers);
+    }
+
+    @Override
+    public void addMeasurements(List<MonitoredMetric> metrics, double[] readings, Optional<DateTime> timestamp) {
+        Shipment s = new Shipment(metrics, readings.clone(), timestamp);
+        for (Lane lane : lanes) {
+            if (!lane.queue.offer(s)) {
+                lane.dropped.mark();
+            }
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        running = true;
+        for (Lane lane : lanes) {
+            workers.execute(lane);
+        }
+    }
+
+    /**
+     * Workers drain what their sinks have queued before they exit
+     */
+    @Override
+    public void stop() throws Exception {
+        running = false;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        ImmutableMap.Builder<String, Metric> metrics = ImmutableMap.builder();
+        for (final Lane lane : lanes) {
+            String prefix = "measurement-sink-" + lane.name + "-";
+            metrics.put(prefix + "shipped", lane.shipped);
+            metrics.put(prefix + "dropped", lane.dropped);
+            metrics.put(prefix + "failures", lane.failures);
+            metrics.put(prefix + "queued", new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    return lane.queue.size();
+                }
+            });
+        }
+        return metrics.build();
+    }
+}
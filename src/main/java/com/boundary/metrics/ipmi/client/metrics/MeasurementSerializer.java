@@ -0,0 +1,146 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.Optional;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes /v1/measurements request bodies, a JSON array of [source, metric, value, timestamp] entries, straight from
+ * the readings with the Jackson streaming generator. Readings without a value are left out.
+ *
+ * Bodies are built in per-thread buffers that are reused from one request to the next, so each request only
+ * allocates its final byte array. A buffer grown past {@link #MAX_RETAINED_SIZE} by a large batch is dropped once the
+ * body is built. Bodies can be gzipped, each with its own {@link GZIPOutputStream}, whose native memory is freed as
+ * soon as the body is done; such bodies start with the gzip magic number, which JSON never does, see
+ * {@link #isGzipped(byte[])}.
+ */
+public final class MeasurementSerializer {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b};
+    static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    /**
+     * Buffer whose content can be read without copying it
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        private final int initialSize;
+
+        Buffer(int size) {
+            super(size);
+            initialSize = size;
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        /**
+         * Let go of the array if it grew too large to keep
+         */
+        void trim() {
+            reset();
+            if (buf.length > MAX_RETAINED_SIZE) {
+                buf = new byte[initialSize];
+            }
+        }
+    }
+
+    private static class Buffers {
+        final Buffer json = new Buffer(8192);
+        final Buffer gzip = new Buffer(2048);
+    }
+
+    private final JsonFactory factory = new JsonFactory();
+    private final boolean gzip;
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    public MeasurementSerializer(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    public static boolean isGzipped(byte[] body) {
+        return body.length >= 2 && body[0] == GZIP_HEADER[0] && body[1] == GZIP_HEADER[1];
+    }
+
+    /**
+     * Body for the readings of one entity, matched to metrics by position
+     *
+     * @return absent if there is no reading
+     */
+    public Optional<byte[]> serialize(List<MonitoredMetric> metrics, double[] readings, long timestamp)
+            throws IOException {
+        Buffers b = buffers.get();
+        b.json.reset();
+        int count = 0;
+        try (JsonGenerator json = factory.createGenerator(b.json)) {
+            json.writeStartArray();
+            for (int i = 0; i < readings.length; i++) {
+                if (!Double.isNaN(readings[i])) {
+                    MonitoredMetric m = metrics.get(i);
+                    write(json, m.source, m.metric.name, readings[i], timestamp);
+                    count++;
+                }
+            }
+            json.writeEndArray();
+        }
+        return count > 0 ? Optional.of(finish(b)) : Optional.<byte[]>absent();
+    }
+
+    /**
+     * Body for measurements of any number of entities
+     *
+     * @return absent if there is no measurement
+     */
+    public Optional<byte[]> serialize(List<Measurement> measurements) throws IOException {
+        if (measurements.isEmpty()) {
+            return Optional.absent();
+        }
+        Buffers b = buffers.get();
+        b.json.reset();
+        try (JsonGenerator json = factory.createGenerator(b.json)) {
+            json.writeStartArray();
+            for (Measurement m : measurements) {
+                write(json, m.source, m.metric, m.value, m.timestamp);
+            }
+            json.writeEndArray();
+        }
+        return Optional.of(finish(b));
+    }
+
+    private static void write(JsonGenerator json, String source, String metric, double value, long timestamp)
+            throws IOException {
+        json.writeStartArray();
+        json.writeString(source);
+        json.writeString(metric);
+        json.writeNumber(value);
+        json.writeNumber(timestamp);
+        json.writeEndArray();
+    }
+
+    private byte[] finish(Buffers b) throws IOException {
+        try {
+            if (!gzip) {
+                return b.json.toByteArray();
+            }
+            b.gzip.reset();
+            try (GZIPOutputStream out = new GZIPOutputStream(b.gzip, 4096)) {
+                out.write(b.json.array(), 0, b.json.size());
+            }
+            return b.gzip.toByteArray();
+        } finally {
+            b.json.trim();
+            b.gzip.trim();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.google.common.base.Optional;
+import org.joda.time.DateTime;
+
+import java.util.List;
+
+/**
+ * Where pollers ship the readings of their entities.
+ */
+public interface MeasurementSink {
+
+    /**
+     * Add the readings of one entity. Readings are matched to metrics by position, NaN meaning no reading. The array
+     * is not retained, so the caller may reuse it once this returns.
+     */
+    void addMeasurements(List<MonitoredMetric> metrics, double[] readings, Optional<DateTime> timestamp);
+}
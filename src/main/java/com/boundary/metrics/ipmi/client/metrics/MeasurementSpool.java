@@ -0,0 +1,398 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.RateLimiter;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Append-only disk queue of measurement payloads the metrics API didn't accept, replayed in order once it's back.
+ *
+ * Payloads are kept in fixed-size, memory-mapped segment files named after their sequence number. Each segment
+ * records in its header how far it has been written and replayed, so a restart resumes where it left off. Once the
+ * spool reaches its size cap, the oldest segment is dropped to make room. Segments are forced to disk when full and
+ * on stop; a segment ending in a torn record is truncated before it on load. Replay runs on its own thread, at a
+ * limited rate so a recovering API isn't flooded, and stops at the first failure until the retry interval passed.
+ *
+ * Segment layout (big endian):
+ * <pre>
+ *   int    magic ("MSPL")
+ *   int    format version
+ *   int    offset of the next record to replay
+ *   int    offset of the end of the last record
+ *   records: int payload length, long time spooled (ms since the epoch), payload bytes
+ * </pre>
+ */
+public class MeasurementSpool implements Managed, MetricSet {
+
+    /**
+     * Posts a spooled payload, completing once the API accepted it
+     */
+    public interface Sender {
+        ListenableFuture<Void> send(byte[] payload);
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(MeasurementSpool.class);
+
+    private static final int MAGIC = 0x4d53504c;
+    private static final int VERSION = 1;
+    private static final int READ_OFFSET = 8;
+    private static final int WRITE_OFFSET = 12;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final String SUFFIX = ".spool";
+
+    private static class Segment {
+        final long sequence;
+        final File file;
+        final MappedByteBuffer buffer;
+        int read;
+        int write;
+        int records;
+
+        Segment(long sequence, File file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * The oldest payload not replayed yet
+     */
+    private static class Record {
+        final Segment segment;
+        final int offset;
+        final byte[] payload;
+
+        Record(Segment segment, int offset, byte[] payload) {
+            this.segment = segment;
+            this.offset = offset;
+            this.payload = payload;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final RateLimiter replayRate;
+    private final long retryMillis;
+    private final Sender sender;
+
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private int records;
+    private long bytes;
+
+    private final Meter spooled = new Meter();
+    private final Meter replayed = new Meter();
+    private final Meter evicted = new Meter();
+
+    private volatile boolean running;
+    private Thread replayer;
+
+    public MeasurementSpool(IPMIPollerConfiguration.SpoolConfiguration config, Sender sender) {
+        this.directory = checkNotNull(config.directory);
+        this.segmentSize = (int) config.segmentSize.toBytes();
+        this.maxSegments = (int) Math.max(2, config.maxSize.toBytes() / segmentSize);
+        this.replayRate = RateLimiter.create(config.replayRate);
+        this.retryMillis = config.retryInterval.toMilliseconds();
+        this.sender = checkNotNull(sender);
+        checkArgument(directory.isDirectory() || directory.mkdirs(), "Unable to create spool directory %s", directory);
+        // before anything is appended, so new segments follow the ones left by a previous run
+        load();
+    }
+
+    /**
+     * Whether payloads are waiting to be replayed. New payloads should then be spooled too, to keep them in order.
+     */
+    public synchronized boolean isBacklogged() {
+        return records > 0;
+    }
+
+    /**
+     * Append a payload to the spool
+     *
+     * @return false if it could not be spooled
+     */
+    public synchronized boolean append(byte[] payload) {
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (HEADER_SIZE + size > segmentSize) {
+            LOG.error("Dropping payload of {} bytes, larger than a spool segment", payload.length);
+            return false;
+        }
+
+        Segment tail = segments.peekLast();
+        try {
+            if (tail == null || tail.write + size > segmentSize) {
+                if (tail != null) {
+                    // a full segment is on disk before the next one is started
+                    tail.buffer.force();
+                }
+                while (segments.size() >= maxSegments) {
+                    evict();
+                }
+                tail = createSegment(tail == null ? 0 : tail.sequence + 1);
+                segments.addLast(tail);
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to create spool segment, dropping payload", e);
+            return false;
+        }
+
+        ByteBuffer buffer = tail.buffer.duplicate();
+        buffer.position(tail.write);
+        buffer.putInt(payload.length);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.put(payload);
+        // the record is complete before the header points past it
+        tail.write += size;
+        tail.buffer.putInt(WRITE_OFFSET, tail.write);
+        tail.records++;
+        records++;
+        bytes += size;
+        spooled.mark();
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public void start() throws Exception {
+        running = true;
+        replayer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replayLoop();
+            }
+        }, "measurement-spool-replay");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        replayer.interrupt();
+        replayer.join(TimeUnit.SECONDS.toMillis(5));
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    private void replayLoop() {
+        while (running) {
+            try {
+                Record next = awaitNext();
+                replayRate.acquire();
+                try {
+                    sender.send(next.payload).get();
+                    commit(next);
+                    replayed.mark();
+                } catch (ExecutionException e) {
+                    LOG.warn("Unable to replay spooled measurements, {} payloads waiting: {}", pending(),
+                            e.getCause().toString());
+                    Thread.sleep(retryMillis);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    private synchronized Record awaitNext() throws InterruptedException {
+        while (records == 0) {
+            wait();
+        }
+        Segment head = segments.peekFirst();
+        while (head.read == head.write) {
+            // fully replayed segments are only kept while they are the tail
+            head = dropHead();
+        }
+        int length = head.buffer.getInt(head.read);
+        byte[] payload = new byte[length];
+        ByteBuffer buffer = head.buffer.duplicate();
+        buffer.position(head.read + RECORD_HEADER_SIZE);
+        buffer.get(payload);
+        return new Record(head, head.read, payload);
+    }
+
+    /**
+     * Mark a replayed record as done, unless its segment was evicted meanwhile
+     */
+    private synchronized void commit(Record record) {
+        Segment head = segments.peekFirst();
+        if (head != record.segment || head.read != record.offset) {
+            return;
+        }
+        int size = RECORD_HEADER_SIZE + record.payload.length;
+        head.read += size;
+        head.buffer.putInt(READ_OFFSET, head.read);
+        head.records--;
+        records--;
+        bytes -= size;
+        if (head.read == head.write && segments.size() > 1) {
+            dropHead();
+        }
+    }
+
+    private synchronized int pending() {
+        return records;
+    }
+
+    private Segment dropHead() {
+        Segment head = segments.removeFirst();
+        records -= head.records;
+        bytes -= head.write - head.read;
+        if (!head.file.delete()) {
+            LOG.warn("Unable to delete spool segment {}", head.file);
+        }
+        return segments.peekFirst();
+    }
+
+    private void evict() {
+        Segment oldest = segments.peekFirst();
+        LOG.warn("Spool full, dropping {} payloads spooled in {}", oldest.records, oldest.file);
+        evicted.mark(oldest.records);
+        dropHead();
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        File file = new File(directory, String.format("%016d%s", sequence, SUFFIX));
+        Segment segment = new Segment(sequence, file, map(file));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.read = HEADER_SIZE;
+        segment.write = HEADER_SIZE;
+        segment.buffer.putInt(READ_OFFSET, segment.read);
+        segment.buffer.putInt(WRITE_OFFSET, segment.write);
+        return segment;
+    }
+
+    /**
+     * Pick up the segments left by a previous run
+     */
+    private synchronized void load() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                long sequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                if (file.length() != segmentSize) {
+                    LOG.warn("Ignoring spool segment {} of another segment size", file);
+                    continue;
+                }
+                Segment segment = new Segment(sequence, file, map(file));
+                segment.read = segment.buffer.getInt(READ_OFFSET);
+                segment.write = segment.buffer.getInt(WRITE_OFFSET);
+                if (segment.buffer.getInt(0) != MAGIC || segment.buffer.getInt(4) != VERSION
+                        || segment.read < HEADER_SIZE || segment.read > segment.write || segment.write > segmentSize) {
+                    LOG.warn("Ignoring corrupt spool segment {}", file);
+                    continue;
+                }
+                for (int offset = segment.read; offset < segment.write; ) {
+                    int length = offset + RECORD_HEADER_SIZE <= segment.write ? segment.buffer.getInt(offset) : -1;
+                    if (length < 0 || length > segment.write - offset - RECORD_HEADER_SIZE) {
+                        // torn write: keep the records before it
+                        LOG.warn("Truncating spool segment {} at the corrupt record at {}, {} bytes dropped", file,
+                                offset, segment.write - offset);
+                        segment.write = offset;
+                        segment.buffer.putInt(WRITE_OFFSET, segment.write);
+                        break;
+                    }
+                    offset += RECORD_HEADER_SIZE + length;
+                    segment.records++;
+                }
+                segments.addLast(segment);
+                records += segment.records;
+                bytes += segment.write - segment.read;
+            } catch (NumberFormatException | IOException e) {
+                LOG.warn("Ignoring unreadable spool segment {}", file, e);
+            }
+        }
+        if (records > 0) {
+            LOG.info("Replaying {} spooled payloads from {}", records, directory);
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Milliseconds since the oldest payload waiting to be replayed was spooled
+     */
+    private synchronized long lag() {
+        for (Segment segment : segments) {
+            if (segment.read < segment.write) {
+                return System.currentTimeMillis() - segment.buffer.getLong(segment.read + 4);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return ImmutableMap.<String, Metric>builder()
+                .put("measurement-spool-payloads", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return pending();
+                    }
+                })
+                .put("measurement-spool-bytes", new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        synchronized (MeasurementSpool.this) {
+                            return bytes;
+                        }
+                    }
+                })
+                .put("measurement-spool-lag", new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return lag();
+                    }
+                })
+                .put("measurement-spooled", spooled)
+                .put("measurement-spool-replayed", replayed)
+                .put("measurement-spool-evicted", evicted)
+                .build();
+    }
+}
@@ -0,0 +1,161 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Creates metrics with the metrics API in the background, on a fixed pool of threads whose size bounds the number of
+ * requests at once, so callers never wait for the API.
+ *
+ * A fingerprint of every definition the API accepted is kept, on disk when a file is given, and definitions with the
+ * same fingerprint aren't sent again, in this run or the next ones.
+ */
+public class MetricDefinitions implements MetricSet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricDefinitions.class);
+
+    private final MetricsClient client;
+    private final ListeningExecutorService executor;
+    private final Optional<File> file;
+    /**
+     * Fingerprints of the definitions the API accepted, by metric name
+     */
+    private final ConcurrentMap<String, String> accepted;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final Timer sent = new Timer();
+    private final Meter skipped = new Meter();
+    private final Meter failed = new Meter();
+
+    /**
+     * @param executor sends the definitions, its thread count is the number of requests at once
+     * @param file     keeps the fingerprints across runs when present
+     */
+    public MetricDefinitions(MetricsClient client, ExecutorService executor, Optional<File> file) {
+        this.client = checkNotNull(client);
+        this.executor = MoreExecutors.listeningDecorator(executor);
+        this.file = checkNotNull(file);
+        this.accepted = file.isPresent() ? load(file.get()) : new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * Create or update a metric, unless the API already has this definition
+     *
+     * @return completes once the API accepted the definition, or right away when it's skipped
+     */
+    public ListenableFuture<Void> define(final MonitoredMetric.Metric metric, int resolution) {
+        final byte[] definition = MetricsClient.metricDefinition(metric, resolution);
+        final String fingerprint = Hashing.sha1().hashBytes(definition).toString();
+        if (fingerprint.equals(accepted.get(metric.name))) {
+            skipped.mark();
+            return Futures.immediateFuture(null);
+        }
+        pending.incrementAndGet();
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Timer.Context timer = sent.time();
+                try {
+                    client.createMetric(metric.name, definition);
+                    accepted.put(metric.name, fingerprint);
+                    return null;
+                } catch (RuntimeException e) {
+                    failed.mark();
+                    throw e;
+                } finally {
+                    timer.stop();
+                    // written once a burst of definitions is done
+                    if (pending.decrementAndGet() == 0) {
+                        store();
+                    }
+                }
+            }
+        });
+    }
+
+    private static ConcurrentMap<String, String> load(File file) {
+        ConcurrentMap<String, String> fingerprints = new ConcurrentHashMap<String, String>();
+        if (!file.exists()) {
+            return fingerprints;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException | IllegalArgumentException e) {
+            // every metric is defined again
+            LOG.warn("Unable to read metric fingerprints from {}", file, e);
+            return fingerprints;
+        }
+        for (String name : properties.stringPropertyNames()) {
+            fingerprints.put(name, properties.getProperty(name));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * The file is written aside and moved into place, so a crash never leaves it half written
+     */
+    private synchronized void store() {
+        if (!file.isPresent()) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.putAll(accepted);
+        File tmp = new File(file.get().getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                properties.store(out, "Fingerprints of the metric definitions accepted by the metrics API");
+            }
+            Files.move(tmp.toPath(), file.get().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Unable to store metric fingerprints in {}", file.get(), e);
+        }
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return ImmutableMap.<String, Metric>builder()
+                .put("metric-definitions-sent", sent)
+                .put("metric-definitions-skipped", skipped)
+                .put("metric-definitions-failed", failed)
+                .put("metric-definitions-pending", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return pending.get();
+                    }
+                })
+                .build();
+    }
+}
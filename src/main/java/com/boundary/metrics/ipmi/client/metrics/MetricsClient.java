@@ -1,18 +1,30 @@
 package com.boundary.metrics.ipmi.client.metrics;
 
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
 import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.sun.jersey.api.client.AsyncWebResource;
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
 import com.sun.jersey.api.client.async.TypeListener;
 import com.sun.jersey.core.util.Base64;
+import io.dropwizard.lifecycle.Managed;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +33,7 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.IOException;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
@@ -29,9 +42,9 @@ import java.util.concurrent.Future;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-public class MetricsClient {
+public class MetricsClient implements Managed, MetricSet, EventSink, MeasurementSink {
 
-    private class UpdateMetric {
+    private static class UpdateMetric {
         private MonitoredMetric.Metric metric;
         private int frequency;
         public UpdateMetric(MonitoredMetric.Metric m, int pollFrequency) {
@@ -59,50 +72,303 @@ public class MetricsClient {
     private final WebResource baseResource;
     private final AsyncWebResource asyncWebResource;
     private final String auth;
+    private final Optional<MeasurementBatcher> batcher;
+    private final Optional<MeasurementSpool> spool;
+    private final Timer postLatency = new Timer();
+    private final Meter eventsPosted = new Meter();
+    private final Meter eventPostFailures = new Meter();
+    private final MeasurementSerializer serializer;
 
     private static final Joiner PATH_JOINER = Joiner.on('/');
+    private static final ObjectMapper DEFINITION_MAPPER = new ObjectMapper()
+            .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
     private static final Logger LOG = LoggerFactory.getLogger(MetricsClient.class);
 
+    // failures are logged when the response arrives
+    private static final FutureCallback<Void> IGNORE_RESULT = new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void result) { }
+
+        @Override
+        public void onFailure(Throwable t) { }
+    };
+
     public MetricsClient(Client client, URI baseUrl, String user, String token) {
+        this(client, baseUrl, user, token, Optional.<IPMIPollerConfiguration.BatchConfiguration>absent(),
+                Optional.<IPMIPollerConfiguration.SpoolConfiguration>absent(), false);
+    }
+
+    public MetricsClient(Client client, IPMIPollerConfiguration.MetricClientConfiguration config) {
+        this(client, config.baseUri, config.apiUser, config.apiToken, Optional.fromNullable(config.batch),
+                Optional.fromNullable(config.spool), config.gzip);
+    }
+
+    private MetricsClient(Client client, URI baseUrl, String user, String token,
+                          Optional<IPMIPollerConfiguration.BatchConfiguration> batch,
+                          Optional<IPMIPollerConfiguration.SpoolConfiguration> spool, boolean gzip) {
         checkNotNull(client);
         checkNotNull(baseUrl);
         this.baseResource = client.resource(baseUrl);
         this.asyncWebResource = client.asyncResource(baseUrl);
         this.auth = "Basic " + new String(Base64.encode(user + ":" + token), Charsets.US_ASCII);
+        this.serializer = new MeasurementSerializer(gzip);
+        this.batcher = batch.isPresent()
+                ? Optional.of(new MeasurementBatcher(this, batch.get()))
+                : Optional.<MeasurementBatcher>absent();
+        this.spool = spool.isPresent()
+                ? Optional.of(new MeasurementSpool(spool.get(), new MeasurementSpool.Sender() {
+                    @Override
+                    public ListenableFuture<Void> send(byte[] payload) {
+                        return replay(payload);
+                    }
+                }))
+                : Optional.<MeasurementSpool>absent();
+    }
+
+    /**
+     * Body of the request creating a metric. Properties are sorted, so the same definition always gives the same
+     * bytes.
+     */
+    public static byte[] metricDefinition(MonitoredMetric.Metric metric, int pollFrequency) {
+        try {
+            return DEFINITION_MAPPER.writeValueAsBytes(new UpdateMetric(metric, pollFrequency));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Unable to serialize definition of " + metric.name, e);
+        }
     }
 
     public void createMetric(MonitoredMetric.Metric metric, int pollFrequency) {
-        ClientResponse response = baseResource.path(PATH_JOINER.join("v1", "metrics", metric.name))
+        createMetric(metric.name, metricDefinition(metric, pollFrequency));
+    }
+
+    /**
+     * Create or update a metric, blocking until the API answers
+     *
+     * @throws WebApplicationException if the API didn't accept the definition
+     */
+    public void createMetric(String name, byte[] definition) {
+        ClientResponse response = baseResource.path(PATH_JOINER.join("v1", "metrics", name))
                 .header(HttpHeaders.AUTHORIZATION, auth)
-                .entity(new UpdateMetric(metric, pollFrequency), MediaType.APPLICATION_JSON_TYPE)
+                .entity(definition, MediaType.APPLICATION_JSON_TYPE)
                 .put(ClientResponse.class);
         response.close();
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            LOG.error("Unexpected response creating metric {}: {}", name, response.getStatusInfo());
+            throw new WebApplicationException(response.getStatus());
+        }
     }
 
-    public void addMeasurements(List<MonitoredMetric> metrics, Map<Integer, Number> measurements, Optional<DateTime> optionalTimestamp) {
-        List<List<Object>> payload = Lists.newArrayList();
-        final long timestamp = optionalTimestamp.or(new DateTime()).getMillis();
-        for (MonitoredMetric m : metrics) {
-            payload.add(ImmutableList.<Object>of(m.source, m.metric.name, measurements.get(m.ipmiid), timestamp));
+    /**
+     * Add the readings of one entity. Readings are matched to metrics by position, NaN meaning no reading. The array
+     * is not retained, so the caller may reuse it once this returns.
+     */
+    @Override
+    public void addMeasurements(List<MonitoredMetric> metrics, double[] readings, Optional<DateTime> optionalTimestamp) {
+        final long timestamp = optionalTimestamp.isPresent() ? optionalTimestamp.get().getMillis() : System.currentTimeMillis();
+        if (batcher.isPresent()) {
+            List<Measurement> measurements = Lists.newArrayListWithCapacity(readings.length);
+            for (int i = 0; i < readings.length; i++) {
+                if (!Double.isNaN(readings[i])) {
+                    MonitoredMetric m = metrics.get(i);
+                    measurements.add(new Measurement(m.source, m.metric.name, readings[i], timestamp));
+                }
+            }
+            batcher.get().addAll(measurements);
+            return;
         }
-        asyncWebResource.path(PATH_JOINER.join("v1", "measurements"))
-                .header(HttpHeaders.AUTHORIZATION, auth)
-                .entity(payload, MediaType.APPLICATION_JSON_TYPE)
+
+        Optional<byte[]> body;
+        try {
+            body = serializer.serialize(metrics, readings, timestamp);
+        } catch (IOException e) {
+            LOG.error("Unable to serialize measurements", e);
+            return;
+        }
+        if (body.isPresent()) {
+            send(body.get(), IGNORE_RESULT);
+        }
+    }
+
+    /**
+     * Post a batch of measurements, possibly from many entities, in one request.
+     */
+    void postMeasurements(List<Measurement> measurements, FutureCallback<Void> callback) {
+        Optional<byte[]> body;
+        try {
+            body = serializer.serialize(measurements);
+        } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+        }
+        if (body.isPresent()) {
+            send(body.get(), callback);
+        } else {
+            callback.onSuccess(null);
+        }
+    }
+
+    /**
+     * Post a payload, or spool it if the API doesn't take it. While spooled payloads wait to be replayed new ones are
+     * spooled behind them, so the API gets them in order.
+     */
+    private void send(final byte[] body, final FutureCallback<Void> callback) {
+        if (!spool.isPresent()) {
+            post(body, callback);
+            return;
+        }
+        if (spool.get().isBacklogged()) {
+            spool(body, callback);
+            return;
+        }
+        post(body, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                callback.onSuccess(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (isRejected(t)) {
+                    // sending it again won't help
+                    callback.onFailure(t);
+                } else {
+                    spool(body, callback);
+                }
+            }
+        });
+    }
+
+    private void spool(byte[] body, FutureCallback<Void> callback) {
+        if (spool.get().append(body)) {
+            callback.onSuccess(null);
+        } else {
+            callback.onFailure(new IOException("Unable to spool measurements"));
+        }
+    }
+
+    private ListenableFuture<Void> replay(byte[] body) {
+        final SettableFuture<Void> result = SettableFuture.create();
+        post(body, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void ignored) {
+                result.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (isRejected(t)) {
+                    LOG.error("Dropping spooled measurements rejected by the API", t);
+                    result.set(null);
+                } else {
+                    result.setException(t);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Whether the API refused the payload itself, as opposed to being unavailable
+     */
+    private static boolean isRejected(Throwable t) {
+        if (!(t instanceof WebApplicationException)) {
+            return false;
+        }
+        int status = ((WebApplicationException) t).getResponse().getStatus();
+        return status >= 400 && status < 500;
+    }
+
+    private void post(byte[] body, final FutureCallback<Void> callback) {
+        AsyncWebResource.Builder request = asyncWebResource.path(PATH_JOINER.join("v1", "measurements"))
+                .header(HttpHeaders.AUTHORIZATION, auth);
+        // decided per body, spooled bodies may predate a change of the gzip setting
+        if (MeasurementSerializer.isGzipped(body)) {
+            request = request.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        final Timer.Context timer = postLatency.time();
+        request.entity(body, MediaType.APPLICATION_JSON_TYPE)
                 .post(new TypeListener<ClientResponse>(ClientResponse.class) {
                     @Override
                     public void onComplete(Future<ClientResponse> f) throws InterruptedException {
+                        timer.stop();
                         try {
                             ClientResponse response = f.get();
                             response.close();
                             if (Response.Status.OK.getStatusCode() != response.getStatus()) {
                                 LOG.error("Unexpected response adding measurements: {}", response.getStatusInfo());
-                                throw new WebApplicationException(response.getStatus());
+                                callback.onFailure(new WebApplicationException(response.getStatus()));
+                                return;
                             }
+                            callback.onSuccess(null);
+                        } catch (ExecutionException e) {
+                            LOG.error("Unable to add measurements", e.getCause());
+                            callback.onFailure(e.getCause());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Post an event right away. Events are neither batched nor spooled, a failed one is only logged.
+     */
+    @Override
+    public void addEvent(final Event event) {
+        asyncWebResource.path(PATH_JOINER.join("v1", "events"))
+                .header(HttpHeaders.AUTHORIZATION, auth)
+                .entity(event, MediaType.APPLICATION_JSON_TYPE)
+                .post(new TypeListener<ClientResponse>(ClientResponse.class) {
+                    @Override
+                    public void onComplete(Future<ClientResponse> f) throws InterruptedException {
+                        try {
+                            ClientResponse response = f.get();
                             response.close();
+                            if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                                LOG.error("Unexpected response adding event {}: {}", event.title,
+                                        response.getStatusInfo());
+                                eventPostFailures.mark();
+                                return;
+                            }
+                            eventsPosted.mark();
                         } catch (ExecutionException e) {
-                            LOG.error("Interrupted trying to add measurement");
+                            LOG.error("Unable to add event {}", event.title, e.getCause());
+                            eventPostFailures.mark();
                         }
                     }
                 });
     }
+
+    @Override
+    public void start() throws Exception {
+        if (spool.isPresent()) {
+            spool.get().start();
+        }
+        if (batcher.isPresent()) {
+            batcher.get().start();
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (batcher.isPresent()) {
+            batcher.get().stop();
+        }
+        if (spool.isPresent()) {
+            spool.get().stop();
+        }
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        ImmutableMap.Builder<String, Metric> metrics = ImmutableMap.builder();
+        metrics.put("measurement-post-latency", postLatency);
+        metrics.put("events-posted", eventsPosted);
+        metrics.put("event-post-failures", eventPostFailures);
+        if (batcher.isPresent()) {
+            metrics.putAll(batcher.get().getMetrics());
+        }
+        if (spool.isPresent()) {
+            metrics.putAll(spool.get().getMetrics());
+        }
+        return metrics.build();
+    }
 }
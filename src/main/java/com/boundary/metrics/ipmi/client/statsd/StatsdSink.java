@@ -0,0 +1,134 @@
+package com.boundary.metrics.ipmi.client.statsd;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.boundary.metrics.ipmi.client.metrics.MeasurementSink;
+import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import io.dropwizard.lifecycle.Managed;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends readings as StatsD gauges over UDP, one line per reading named {prefix}{metric}.{source}, packed into
+ * datagrams of at most the configured size. StatsD has no timestamps, so they're dropped.
+ *
+ * Not thread safe, meant to be fed by a single worker of a
+ * {@link com.boundary.metrics.ipmi.client.metrics.MeasurementFanout}.
+ */
+public class StatsdSink implements MeasurementSink, Managed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatsdSink.class);
+
+    private final InetSocketAddress address;
+    private final String prefix;
+    private final ByteBuffer packet;
+    /**
+     * Encoded names by metric and source, pollers report the same ones every time
+     */
+    private final Map<String, byte[]> names = Maps.newHashMap();
+
+    private DatagramChannel channel;
+
+    public StatsdSink(IPMIPollerConfiguration.StatsdConfiguration config) {
+        this.address = new InetSocketAddress(config.host, config.port);
+        this.prefix = config.prefix != null ? config.prefix : "";
+        this.packet = ByteBuffer.allocate(config.maxPacketSize);
+    }
+
+    @Override
+    public void addMeasurements(List<MonitoredMetric> metrics, double[] readings, Optional<DateTime> timestamp) {
+        try {
+            for (int i = 0; i < readings.length; i++) {
+                if (Double.isNaN(readings[i])) {
+                    continue;
+                }
+                byte[] line = line(name(metrics.get(i)), readings[i]);
+                if (line.length > packet.capacity()) {
+                    LOG.warn("StatsD line of {} is larger than a packet, dropped", metrics.get(i).metric.name);
+                    continue;
+                }
+                if (packet.position() + line.length > packet.capacity()) {
+                    flush();
+                }
+                packet.put(line);
+            }
+            flush();
+        } catch (IOException e) {
+            packet.clear();
+            LOG.warn("Unable to send readings to StatsD at {}", address, e);
+        }
+    }
+
+    private byte[] name(MonitoredMetric m) {
+        String key = m.metric.name + '\u0000' + m.source;
+        byte[] name = names.get(key);
+        if (name == null) {
+            name = (prefix + sanitize(m.metric.name) + "." + sanitize(m.source)).getBytes(Charsets.UTF_8);
+            names.put(key, name);
+        }
+        return name;
+    }
+
+    /**
+     * StatsD takes signed gauge values as changes, so negative readings are sent as a reset to 0 followed by the
+     * reading
+     */
+    private static byte[] line(byte[] name, double value) {
+        if (value >= 0) {
+            return concat(name, (":" + value + "|g\n").getBytes(Charsets.US_ASCII));
+        }
+        byte[] reset = concat(name, ":0|g\n".getBytes(Charsets.US_ASCII));
+        return concat(reset, concat(name, (":" + value + "|g\n").getBytes(Charsets.US_ASCII)));
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    /**
+     * StatsD splits names on dots and lines on colons, pipes and new lines
+     */
+    static String sanitize(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            b.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+        }
+        return b.toString();
+    }
+
+    private void flush() throws IOException {
+        if (packet.position() == 0) {
+            return;
+        }
+        packet.flip();
+        try {
+            channel.send(packet, address);
+        } finally {
+            packet.clear();
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        channel = DatagramChannel.open();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        channel.close();
+    }
+}
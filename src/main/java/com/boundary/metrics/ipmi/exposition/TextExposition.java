@@ -0,0 +1,118 @@
+package com.boundary.metrics.ipmi.exposition;
+
+import com.boundary.metrics.ipmi.client.metrics.MeasurementSink;
+import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import org.joda.time.DateTime;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Latest reading of every metric and source, in the Prometheus text exposition format, one gauge per metric with the
+ * source as label:
+ * <pre>
+ * # TYPE cpu_temp gauge
+ * cpu_temp{source="10.0.0.1"} 45.0
+ * </pre>
+ * Lines are rendered as readings arrive, and the exposition is assembled from them at most once per change, so
+ * scrapes in between get the same bytes. Series not updated for the stale period are dropped.
+ */
+public class TextExposition implements MeasurementSink {
+
+    private static class Series {
+        final String name;
+        final String line;
+        final long millis;
+
+        Series(String name, String line, long millis) {
+            this.name = name;
+            this.line = line;
+            this.millis = millis;
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final long staleMillis;
+    /**
+     * Series by their name and labels, so series of a metric are next to each other
+     */
+    private final ConcurrentMap<String, Series> series = new ConcurrentSkipListMap<String, Series>();
+
+    private volatile boolean changed;
+    private byte[] exposition = EMPTY;
+    private long expiresAt = Long.MAX_VALUE;
+
+    public TextExposition(long staleMillis) {
+        this.staleMillis = staleMillis;
+    }
+
+    @Override
+    public void addMeasurements(List<MonitoredMetric> metrics, double[] readings, Optional<DateTime> timestamp) {
+        long millis = timestamp.isPresent() ? timestamp.get().getMillis() : System.currentTimeMillis();
+        for (int i = 0; i < readings.length; i++) {
+            if (Double.isNaN(readings[i])) {
+                continue;
+            }
+            MonitoredMetric m = metrics.get(i);
+            String name = name(m.metric.name);
+            String key = name + "{source=\"" + escape(m.source) + "\"}";
+            series.put(key, new Series(name, key + " " + readings[i] + "\n", millis));
+        }
+        changed = true;
+    }
+
+    /**
+     * The exposition of the current readings, shared: callers must not modify it
+     */
+    public synchronized byte[] render() {
+        long now = System.currentTimeMillis();
+        if (!changed && now < expiresAt) {
+            return exposition;
+        }
+        changed = false;
+        StringBuilder b = new StringBuilder();
+        long oldest = Long.MAX_VALUE;
+        String previous = null;
+        for (Iterator<Series> it = series.values().iterator(); it.hasNext(); ) {
+            Series s = it.next();
+            if (now - s.millis > staleMillis) {
+                it.remove();
+                continue;
+            }
+            oldest = Math.min(oldest, s.millis);
+            if (!s.name.equals(previous)) {
+                b.append("# TYPE ").append(s.name).append(" gauge\n");
+                previous = s.name;
+            }
+            b.append(s.line);
+        }
+        expiresAt = oldest == Long.MAX_VALUE ? Long.MAX_VALUE : oldest + staleMillis + 1;
+        exposition = b.toString().getBytes(Charsets.UTF_8);
+        return exposition;
+    }
+
+    /**
+     * Metric names are made of letters, digits, underscores and colons, and don't start with a digit
+     */
+    static String name(String metric) {
+        StringBuilder b = new StringBuilder(metric.length() + 1);
+        if (metric.isEmpty() || Character.isDigit(metric.charAt(0))) {
+            b.append('_');
+        }
+        for (int i = 0; i < metric.length(); i++) {
+            char c = metric.charAt(i);
+            b.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == ':'
+                    ? c : '_');
+        }
+        return b.toString();
+    }
+
+    static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,141 @@
+package com.boundary.metrics.ipmi.history;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Last readings of one sensor, oldest first, in two primitive arrays allocated once. Once full, each reading
+ * overwrites the oldest one, so the memory of a sensor never grows. Readings are expected in timestamp order.
+ */
+public final class RingBuffer {
+
+    /**
+     * Readings, oldest first
+     */
+    public static class Points {
+        @JsonProperty
+        public final long[] timestamps;
+        @JsonProperty
+        public final double[] values;
+
+        Points(long[] timestamps, double[] values) {
+            this.timestamps = timestamps;
+            this.values = values;
+        }
+    }
+
+    public static class Summary {
+        @JsonProperty
+        public final int count;
+        @JsonProperty
+        public final Double min;
+        @JsonProperty
+        public final Double max;
+        @JsonProperty
+        public final Double avg;
+
+        Summary(int count, Double min, Double max, Double avg) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.avg = avg;
+        }
+    }
+
+    private final long[] timestamps;
+    private final double[] values;
+    /**
+     * Position of the next write
+     */
+    private int next;
+    private int size;
+
+    public RingBuffer(int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        timestamps = new long[capacity];
+        values = new double[capacity];
+    }
+
+    public synchronized void add(long timestamp, double value) {
+        timestamps[next] = timestamp;
+        values[next] = value;
+        next = (next + 1) % timestamps.length;
+        if (size < timestamps.length) {
+            size++;
+        }
+    }
+
+    /**
+     * The {@code n} most recent readings
+     */
+    public synchronized Points last(int n) {
+        int count = Math.max(0, Math.min(n, size));
+        return copy(size - count, count);
+    }
+
+    /**
+     * Readings with {@code from <= timestamp < to}
+     */
+    public synchronized Points range(long from, long to) {
+        int first = lowerBound(from);
+        return copy(first, lowerBound(to) - first);
+    }
+
+    /**
+     * Summary of the readings with {@code from <= timestamp < to}
+     */
+    public synchronized Summary summarize(long from, long to) {
+        int first = lowerBound(from);
+        int end = lowerBound(to);
+        if (first >= end) {
+            return new Summary(0, null, null, null);
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        for (int i = first; i < end; i++) {
+            double v = values[slot(i)];
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+        }
+        return new Summary(end - first, min, max, sum / (end - first));
+    }
+
+    /**
+     * Index, from the oldest reading, of the first reading at or after the timestamp
+     */
+    private int lowerBound(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[slot(mid)] < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Points copy(int first, int count) {
+        long[] ts = new long[count];
+        double[] vs = new double[count];
+        for (int i = 0; i < count; i++) {
+            int slot = slot(first + i);
+            ts[i] = timestamps[slot];
+            vs[i] = values[slot];
+        }
+        return new Points(ts, vs);
+    }
+
+    /**
+     * Array slot of the reading at the given index from the oldest one
+     */
+    private int slot(int index) {
+        int oldest = size < timestamps.length ? 0 : next;
+        return (oldest + index) % timestamps.length;
+    }
+}
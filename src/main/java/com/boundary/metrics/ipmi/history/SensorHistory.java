@@ -0,0 +1,74 @@
+package com.boundary.metrics.ipmi.history;
+
+import com.boundary.metrics.ipmi.poller.MonitoredMetric;
+import com.google.common.base.Optional;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Recent readings of every polled sensor, kept in process so they can be looked at when the metrics API is slow or
+ * down. Each sensor gets a {@link RingBuffer} of the same fixed capacity, so memory is bounded by the number of
+ * sensors and doesn't churn as readings come in.
+ */
+public class SensorHistory {
+
+    private final int capacity;
+    private final ConcurrentMap<String, ConcurrentMap<Integer, RingBuffer>> hosts =
+            new ConcurrentHashMap<String, ConcurrentMap<Integer, RingBuffer>>();
+
+    public SensorHistory(int capacity) {
+        checkArgument(capacity > 0, "capacity must be positive");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Get the buffers of the given sensors of a host, by position in the list, and drop the buffers of sensors that
+     * aren't polled anymore. A sensor reported as several metrics has its buffer at its first position only, null at
+     * the others, so each of its readings is recorded once.
+     */
+    public RingBuffer[] buffers(String host, List<MonitoredMetric> sensors) {
+        ConcurrentMap<Integer, RingBuffer> buffers = hosts.get(host);
+        if (buffers == null) {
+            ConcurrentMap<Integer, RingBuffer> created = new ConcurrentHashMap<Integer, RingBuffer>();
+            buffers = hosts.putIfAbsent(host, created);
+            if (buffers == null) {
+                buffers = created;
+            }
+        }
+
+        Set<Integer> polled = Sets.newHashSet();
+        RingBuffer[] result = new RingBuffer[sensors.size()];
+        for (int i = 0; i < result.length; i++) {
+            int sensorId = sensors.get(i).ipmiid;
+            if (!polled.add(sensorId)) {
+                continue;
+            }
+            RingBuffer buffer = buffers.get(sensorId);
+            if (buffer == null) {
+                buffer = new RingBuffer(capacity);
+                buffers.put(sensorId, buffer);
+            }
+            result[i] = buffer;
+        }
+        buffers.keySet().retainAll(polled);
+        return result;
+    }
+
+    public Optional<RingBuffer> buffer(String host, int sensorId) {
+        ConcurrentMap<Integer, RingBuffer> buffers = hosts.get(host);
+        return buffers != null ? Optional.fromNullable(buffers.get(sensorId)) : Optional.<RingBuffer>absent();
+    }
+
+    /**
+     * Forget the readings of a host that isn't polled anymore
+     */
+    public void remove(String host) {
+        hosts.remove(host);
+    }
+}
@@ -0,0 +1,175 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reading pace of the sensors of one poller. A sensor is read every poll while its readings change by more than the
+ * change threshold, or are near one of the thresholds of its SDR record. After every flat reading its interval
+ * doubles, up to the maximum interval, unless its current rate of change would bring it near or past a threshold
+ * before it's read again.
+ *
+ * State is kept in arrays matched to the sensors by position, polls are counted by the poller. Not thread safe, a
+ * poller schedules one cycle at a time and publishes {@link #intervals()} for other threads.
+ */
+final class AdaptiveSchedule {
+
+    private final SensorTable table;
+    private final int[] ids;
+    private final long periodMillis;
+    /**
+     * Longest interval, in polls
+     */
+    private final int maxPolls;
+    private final double changeThreshold;
+    private final double proximity;
+
+    /**
+     * Interval of each sensor, in polls
+     */
+    private final int[] intervals;
+    /**
+     * Poll each sensor is next read on
+     */
+    private final long[] next;
+    private final double[] last;
+    private final long[] lastAt;
+
+    AdaptiveSchedule(List<MonitoredMetric> sensors, SensorTable table, long periodMillis,
+                     IPMIPollerConfiguration.AdaptivePollingConfiguration config) {
+        this.table = table;
+        this.periodMillis = periodMillis;
+        this.maxPolls = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 2,
+                config.maxInterval.toMilliseconds() / periodMillis));
+        this.changeThreshold = config.changeThreshold;
+        this.proximity = config.thresholdProximity;
+
+        int n = sensors.size();
+        ids = new int[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = sensors.get(i).ipmiid;
+        }
+        intervals = new int[n];
+        next = new long[n];
+        last = new double[n];
+        lastAt = new long[n];
+        Arrays.fill(intervals, 1);
+        Arrays.fill(last, Double.NaN);
+    }
+
+    /**
+     * Whether a sensor is to be read on the given poll
+     */
+    boolean isDue(int sensor, long poll) {
+        return poll >= next[sensor];
+    }
+
+    /**
+     * Schedule the next reading of a sensor that was due on the given poll
+     *
+     * @param value its reading, NaN if it didn't answer: it's read again on the next poll
+     */
+    void update(int sensor, double value, long poll, long now) {
+        if (Double.isNaN(value)) {
+            next[sensor] = poll + 1;
+            return;
+        }
+        int longer = Math.min(intervals[sensor] * 2, maxPolls);
+        double previous = last[sensor];
+        double slope = Double.isNaN(previous) || now <= lastAt[sensor]
+                ? 0
+                : (value - previous) / (now - lastAt[sensor]);
+        boolean active = changed(sensor, previous, value)
+                || approaches(ids[sensor], value, value + slope * longer * periodMillis);
+        intervals[sensor] = active ? 1 : longer;
+        next[sensor] = poll + intervals[sensor];
+        last[sensor] = value;
+        lastAt[sensor] = now;
+    }
+
+    /**
+     * The first reading of a sensor counts as a change, its rate is known from the second one
+     */
+    private boolean changed(int sensor, double previous, double value) {
+        if (Double.isNaN(previous)) {
+            return true;
+        }
+        double resolution = table.contains(ids[sensor]) ? table.resolution(ids[sensor]) : Double.NaN;
+        double step = Math.max(changeThreshold * Math.abs(previous), Double.isNaN(resolution) ? 0 : resolution);
+        return Math.abs(value - previous) > step;
+    }
+
+    /**
+     * Whether the value or the one projected for the next reading is near a threshold, or the projection is past it
+     */
+    private boolean approaches(int id, double value, double projected) {
+        if (!table.contains(id)) {
+            return false;
+        }
+        for (int t = 0; t < SensorTable.THRESHOLDS; t++) {
+            double threshold = table.threshold(id, t);
+            if (Double.isNaN(threshold)) {
+                continue;
+            }
+            double resolution = table.resolution(id);
+            // a threshold at 0 is only approached within the sensor resolution
+            double margin = Math.max(proximity * Math.abs(threshold), Double.isNaN(resolution) ? 0 : resolution);
+            if (Math.abs(value - threshold) <= margin || Math.abs(projected - threshold) <= margin
+                    || Math.signum(value - threshold) != Math.signum(projected - threshold)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Snapshot of the current intervals
+     */
+    Intervals intervals() {
+        Map<Integer, Long> millis = new TreeMap<Integer, Long>();
+        int atBase = 0;
+        long max = 0;
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            millis.put(ids[i], intervals[i] * periodMillis);
+            if (intervals[i] == 1) {
+                atBase++;
+            }
+            max = Math.max(max, intervals[i]);
+            total += intervals[i];
+        }
+        return new Intervals(Collections.unmodifiableMap(millis), atBase, max * periodMillis,
+                ids.length == 0 ? 0 : (double) total * periodMillis / ids.length);
+    }
+
+    /**
+     * Intervals of the sensors of a poller at the end of a cycle, in milliseconds. Immutable.
+     */
+    static final class Intervals {
+
+        static final Intervals NONE = new Intervals(Collections.<Integer, Long>emptyMap(), 0, 0, 0);
+
+        /**
+         * Interval of each sensor, by sensor number
+         */
+        final Map<Integer, Long> bySensor;
+        /**
+         * Number of sensors read on every poll
+         */
+        final int atBase;
+        final long max;
+        final double mean;
+
+        private Intervals(Map<Integer, Long> bySensor, int atBase, long max, double mean) {
+            this.bySensor = bySensor;
+            this.atBase = atBase;
+            this.max = max;
+            this.mean = mean;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.boundary.metrics.ipmi.poller;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Change-only reporting for the sensors of one poller. A reading of a sensor with a deadband is suppressed while it
+ * stays within the band around the last reported value, unless the sensor's heartbeat interval has passed since that
+ * report. Sensors without a deadband are always reported.
+ *
+ * State is kept in arrays matched to the sensors by position, so filtering a cycle allocates nothing. Not thread
+ * safe, a poller filters one cycle at a time.
+ */
+final class DeadbandFilter {
+
+    /**
+     * Band half-width of each sensor, NaN for sensors without a deadband
+     */
+    private final double[] widths;
+    private final boolean[] relative;
+    private final long[] heartbeats;
+    private final double[] reported;
+    private final long[] reportedAt;
+
+    DeadbandFilter(List<MonitoredMetric> sensors) {
+        int n = sensors.size();
+        widths = new double[n];
+        relative = new boolean[n];
+        heartbeats = new long[n];
+        reported = new double[n];
+        reportedAt = new long[n];
+        Arrays.fill(reported, Double.NaN);
+        for (int i = 0; i < n; i++) {
+            MonitoredMetric sensor = sensors.get(i);
+            if (sensor.deadband.isPresent()) {
+                widths[i] = sensor.deadband.get().width;
+                relative[i] = sensor.deadband.get().relative;
+                heartbeats[i] = sensor.deadband.get().heartbeatMillis;
+            } else {
+                widths[i] = Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Replace the readings that need not be reported with NaN
+     *
+     * @return the number of readings suppressed
+     */
+    int apply(double[] readings, long now) {
+        int suppressed = 0;
+        for (int i = 0; i < readings.length; i++) {
+            double value = readings[i];
+            if (Double.isNaN(value) || Double.isNaN(widths[i])) {
+                continue;
+            }
+            double last = reported[i];
+            if (!Double.isNaN(last) && now - reportedAt[i] < heartbeats[i]) {
+                double band = relative[i] ? widths[i] * Math.abs(last) : widths[i];
+                if (Math.abs(value - last) <= band) {
+                    readings[i] = Double.NaN;
+                    suppressed++;
+                    continue;
+                }
+            }
+            reported[i] = value;
+            reportedAt[i] = now;
+        }
+        return suppressed;
+    }
+}
@@ -1,35 +1,56 @@
 package com.boundary.metrics.ipmi.poller;
 
-import com.boundary.metrics.ipmi.client.metrics.MetricsClient;
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.boundary.metrics.ipmi.client.ipmi.BmcMetrics;
+import com.boundary.metrics.ipmi.client.ipmi.IpmiTransport;
+import com.boundary.metrics.ipmi.client.ipmi.SessionManager;
+import com.boundary.metrics.ipmi.client.ipmi.SessionUnavailableException;
+import com.boundary.metrics.ipmi.client.metrics.Event;
+import com.boundary.metrics.ipmi.client.metrics.EventSink;
+import com.boundary.metrics.ipmi.client.metrics.MeasurementSink;
+import com.boundary.metrics.ipmi.history.RingBuffer;
+import com.boundary.metrics.ipmi.history.SensorHistory;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricSet;
 import com.codahale.metrics.Timer;
-import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.veraxsystems.vxipmi.api.async.ConnectionHandle;
-import com.veraxsystems.vxipmi.api.sync.IpmiConnector;
 import com.veraxsystems.vxipmi.coding.commands.IpmiVersion;
 import com.veraxsystems.vxipmi.coding.commands.PrivilegeLevel;
+import com.veraxsystems.vxipmi.coding.commands.ResponseData;
 import com.veraxsystems.vxipmi.coding.commands.sdr.*;
 import com.veraxsystems.vxipmi.coding.commands.sdr.record.FullSensorRecord;
 import com.veraxsystems.vxipmi.coding.commands.sdr.record.RateUnit;
-import com.veraxsystems.vxipmi.coding.commands.sdr.record.SensorRecord;
 import com.veraxsystems.vxipmi.coding.payload.CompletionCode;
 import com.veraxsystems.vxipmi.coding.payload.lan.IPMIException;
 import com.veraxsystems.vxipmi.coding.protocol.AuthenticationType;
-import com.veraxsystems.vxipmi.coding.security.CipherSuite;
 import com.veraxsystems.vxipmi.common.TypeConverter;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.InetAddress;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class IPMIMetricsPoller implements Runnable, MetricSet {
 
@@ -42,10 +63,10 @@ public class IPMIMetricsPoller implements Runnable, MetricSet {
 
     /**
      * Chunk size depending on buffer size of the IPMI server. Bigger values will improve performance. If server is
-     * returning "Cannot return number of requested data bytes." error during GetSdr command, CHUNK_SIZE should be
-     * decreased.
+     * returning "Cannot return number of requested data bytes." error during GetSdr command, the chunk size is
+     * decreased and remembered for that server (see {@link SdrReadStrategies}).
      */
-    private static final int CHUNK_SIZE = 256;
+    public static final int CHUNK_SIZE = 256;
 
     /**
      * Size of SDR record header
@@ -59,50 +80,290 @@ public class IPMIMetricsPoller implements Runnable, MetricSet {
      */
     private static final int MAX_REPO_RECORD_ID = 65535;
 
-    private final MetricsClient metricsClient;
-    private final List<MonitoredMetric> sensors;
+    private final MeasurementSink measurements;
+    /**
+     * Sensors polled: the listed ones followed by the discovered ones
+     */
+    private List<MonitoredMetric> sensors;
+    private List<MonitoredMetric> listed;
+    private List<MonitoredMetric> discovered = ImmutableList.of();
+    private Optional<MonitoredEntity.SensorDiscovery> discovery;
+    /**
+     * Entity whose sensors to poll from the next cycle on, set by {@link #updateSensors(MonitoredEntity)}
+     */
+    private final AtomicReference<MonitoredEntity> updatedSensors = new AtomicReference<MonitoredEntity>();
     private final String address;
-    private final IpmiConnector connector;
-    private final ConnectionHandle handle;
+    private final IpmiTransport connector;
+    private final SessionManager.IpmiSession session;
+    private final BmcMetrics bmcMetrics;
+    /**
+     * Session handle of the current cycle
+     */
+    private volatile ConnectionHandle handle;
+    private final Optional<SdrCache> sdrCache;
+    private final SdrReadStrategies.Strategy readStrategy;
+    private final IPMIPollerConfiguration.OverrunPolicy overrunPolicy;
+    private final ScheduledExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final Optional<SensorHistory> history;
+    private final Optional<EventSink> events;
+    private final double thresholdHysteresis;
+    private ThresholdEvaluator thresholds;
+    private final Optional<IPMIPollerConfiguration.AdaptivePollingConfiguration> adaptivePolling;
+    /**
+     * Reading pace of each sensor, null when every sensor is read on every poll. Only used by the polling thread.
+     */
+    private AdaptiveSchedule schedule;
+    /**
+     * Intervals of the schedule, published after each cycle for the metrics and resources of the poller
+     */
+    private volatile AdaptiveSchedule.Intervals pollIntervals = AdaptiveSchedule.Intervals.NONE;
 
     private final AtomicBoolean polling = new AtomicBoolean(false);
-    private Map<Integer, FullSensorRecord> sensorRecs;
+    private final AtomicBoolean catchUp = new AtomicBoolean(false);
+    /**
+     * Sensors of the SDR repository, read on the first poll. Read by {@link #sensorRecord(int)} from other threads.
+     */
+    private volatile SensorTable table;
 
-    private final Timer metricsFetchTimer = new Timer();
+    /**
+     * Readings of the current cycle, by position in {@link #sensors}. NaN when there is no reading. Written under
+     * {@link #readingsLock} until the cycle is shipped.
+     */
+    private double[] readings;
+    /**
+     * Copy of the readings taken when the cycle is shipped, late answers don't change it
+     */
+    private double[] shippedReadings;
+    private final Object readingsLock = new Object();
+    private SensorRead[] reads;
+    /**
+     * History of each sensor, by position in {@link #sensors}, null where a sensor is listed again
+     */
+    private RingBuffer[] buffers;
+    private WindowAggregator window;
+    private DeadbandFilter deadband;
+    private final long periodMillis;
+    private final long windowMillis;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    /**
+     * Requests of the current cycle not settled yet
+     */
+    private final Set<Attempt> attempts = Sets.newConcurrentHashSet();
+    private final RttEstimator rtt;
+    private final long deadlineMillis;
+    private final int retryBudget;
+    private final AtomicInteger retriesLeft = new AtomicInteger();
+    /**
+     * Whether the readings of the current cycle have been shipped, late answers are then ignored
+     */
+    private final AtomicBoolean shipped = new AtomicBoolean(true);
+    private volatile int cycles;
+    private volatile ScheduledFuture<?> deadline;
+    private volatile int notAnswered;
+    private final AtomicReference<Throwable> cycleFailure = new AtomicReference<Throwable>();
+    private Timer.Context cycleTimer;
 
-    public IPMIMetricsPoller(MonitoredEntity entity, MetricsClient metricClient, IpmiConnector ipmiConnector) throws Exception {
-        sensors = entity.sensors;
+    private final Timer metricsFetchTimer = new Timer();
+    private final Counter overruns = new Counter();
+    private final Counter suppressed = new Counter();
+    private final Counter thresholdEvents = new Counter();
+    private final Counter requestTimeouts = new Counter();
+    private final Counter deadlineHits = new Counter();
+    private final Counter sensorsNotAnswered = new Counter();
+    private final Counter deferredReads = new Counter();
+
+    public IPMIMetricsPoller(MonitoredEntity entity, PollerContext context) throws Exception {
+        listed = entity.sensors;
+        discovery = entity.discovery;
         address = entity.address.getHostAddress();
-        metricsClient = metricClient;
-        connector = ipmiConnector;
-
-        // start the session to the remote host. We assume, that two-key
-        // authentication isn't enabled, so BMC key is left null (see
-        // #startSession for details).
-        handle = startSession(connector, entity.address,
-                entity.username, entity.password, "", PrivilegeLevel.User);
+        measurements = context.measurements;
+        connector = context.transport;
+        sdrCache = context.sdrCache;
+        readStrategy = context.readStrategies.forBmc(address, entity.model);
+        overrunPolicy = context.overrunPolicy;
+        executor = context.executor;
+        timer = context.timer;
+        history = context.history;
+        events = context.events;
+        thresholdHysteresis = context.thresholdHysteresis;
+        adaptivePolling = context.adaptivePolling;
+        periodMillis = entity.pollFrequency.toMilliseconds();
+        windowMillis = entity.reportWindow.isPresent() ? entity.reportWindow.get().toMilliseconds() : 0;
+        IPMIPollerConfiguration.TimeoutConfiguration timeouts = context.timeouts;
+        rtt = new RttEstimator(timeouts.minRequestTimeout.toNanoseconds(),
+                timeouts.maxRequestTimeout.toNanoseconds(), timeouts.initialRequestTimeout.toNanoseconds());
+        deadlineMillis = (long) (periodMillis * timeouts.pollDeadline);
+        retryBudget = timeouts.retryBudget;
+        setSensors();
+
+        // the session to the remote host is opened on first poll, and
+        // reopened by the session manager whenever it dies
+        session = context.sessionManager.session(entity.address, entity.username, entity.password,
+                PrivilegeLevel.User);
+        bmcMetrics = session.metrics();
     }
 
     @Override
     public void run() {
         if (polling.compareAndSet(false, true)) {
             try {
-                if (sensorRecs == null) {
-                    sensorRecs = getStaticSensorRecords();
+                applySensorUpdate();
+                handle = session.handle();
+                if (table == null) {
+                    SensorTable sensorTable = getSensorTable();
+                    if (events.isPresent()) {
+                        thresholds = new ThresholdEvaluator(address, sensorTable, thresholdHysteresis);
+                    }
+                    table = sensorTable;
+                    if (discovery.isPresent()) {
+                        discovered = discovery.get().discover(table);
+                        LOG.info("{} Discovered {} sensors matching the sensor rules", address, discovered.size());
+                        setSensors();
+                    }
+                    compileSensorReads();
                 }
+                // releases the polling lock once every reading has been answered
                 collectMeasurements();
+            } catch (SessionUnavailableException e) {
+                LOG.debug("{} Skipping poll: {}", address, e.getMessage());
+                endCycle();
             } catch (Exception e) {
                 LOG.error("Failed to collect sensor metrics", e);
-            } finally {
-                polling.set(false);
+                abortCycle();
+                session.failed(handle, e);
+                endCycle();
             }
         } else {
-            LOG.warn("Unable to grab polling lock, previous poll still running");
+            overruns.inc();
+            if (overrunPolicy == IPMIPollerConfiguration.OverrunPolicy.catchUp) {
+                LOG.warn("{} Previous poll still running, polling again once it completes", address);
+                catchUp.set(true);
+            } else {
+                LOG.warn("{} Previous poll still running, skipping this one", address);
+            }
+        }
+    }
+
+    /**
+     * Close the session of a poller that won't be scheduled anymore
+     */
+    public void close() {
+        session.close();
+    }
+
+    /**
+     * Poll the sensors of a new configuration of the entity from the next cycle on, listed and discovered again. The
+     * session and the SDR records of the BMC are kept.
+     */
+    public void updateSensors(MonitoredEntity entity) {
+        updatedSensors.set(entity);
+    }
+
+    private void applySensorUpdate() {
+        MonitoredEntity updated = updatedSensors.getAndSet(null);
+        if (updated == null) {
+            return;
+        }
+        listed = updated.sensors;
+        // the discovery of the new configuration leaves out the new listed sensors and has the new source
+        discovery = updated.discovery;
+        if (discovery.isPresent() && table != null) {
+            discovered = discovery.get().discover(table);
+            LOG.info("{} Discovered {} sensors matching the sensor rules", address, discovered.size());
+        }
+        setSensors();
+        if (table != null) {
+            compileSensorReads();
         }
     }
 
-    private Map<Integer, FullSensorRecord> getStaticSensorRecords() throws Exception {
-        Map<Integer, FullSensorRecord> sensorRecs = Maps.newHashMap();
+    /**
+     * Rebuild the per-sensor state for the listed and discovered sensors. A listed sensor replaces a discovered one
+     * with the same ID.
+     */
+    private void setSensors() {
+        Set<Integer> ids = Sets.newHashSet();
+        ImmutableList.Builder<MonitoredMetric> merged = ImmutableList.builder();
+        for (MonitoredMetric sensor : listed) {
+            ids.add(sensor.ipmiid);
+            merged.add(sensor);
+        }
+        for (MonitoredMetric sensor : discovered) {
+            if (!ids.contains(sensor.ipmiid)) {
+                merged.add(sensor);
+            }
+        }
+        sensors = merged.build();
+        readings = new double[sensors.size()];
+        shippedReadings = new double[sensors.size()];
+        if (history.isPresent()) {
+            buffers = history.get().buffers(address, sensors);
+        }
+        window = new WindowAggregator(sensors, periodMillis, windowMillis);
+        deadband = new DeadbandFilter(window.reported());
+    }
+
+    /**
+     * Give up on a cycle that failed before all its requests were sent: its readings are not shipped and the
+     * requests in flight are settled, so none of them touches the next cycle
+     */
+    private void abortCycle() {
+        shipped.set(true);
+        ScheduledFuture<?> d = deadline;
+        if (d != null) {
+            d.cancel(false);
+        }
+        for (Attempt attempt : attempts) {
+            attempt.settle();
+        }
+    }
+
+    private void endCycle() {
+        polling.set(false);
+        if (catchUp.getAndSet(false)) {
+            executor.execute(this);
+        }
+    }
+
+    private SensorTable getSensorTable() throws Exception {
+        if (!sdrCache.isPresent()) {
+            return toSensorTable(readSdrRepository());
+        }
+
+        // A single GetSdrRepositoryInfo tells us whether the repository changed since it was cached
+        GetSdrRepositoryInfoResponseData info = (GetSdrRepositoryInfoResponseData) connector.sendMessage(handle,
+                new GetSdrRepositoryInfo(IpmiVersion.V20, handle.getCipherSuite(), AuthenticationType.RMCPPlus));
+        Optional<List<byte[]>> cached = sdrCache.get().load(address, info.getAddTimestamp(), info.getDelTimestamp());
+        if (cached.isPresent()) {
+            LOG.info("{} Loaded {} SDR records from cache", address, cached.get().size());
+            return toSensorTable(cached.get());
+        }
+
+        List<byte[]> records = readSdrRepository();
+        try {
+            sdrCache.get().store(address, info.getAddTimestamp(), info.getDelTimestamp(), records);
+        } catch (IOException e) {
+            LOG.warn("{} Unable to cache SDR records", address, e);
+        }
+        return toSensorTable(records);
+    }
+
+    private SensorTable toSensorTable(List<byte[]> records) {
+        SensorTable sensors = new SensorTable(records);
+        if (LOG.isInfoEnabled()) {
+            for (int sid : sensors.sensors()) {
+                LOG.info("{} Found sensor {} (ID: {}, Rate: {})", address, sensors.name(sid), sid, sensors.unit(sid));
+            }
+        }
+        return sensors;
+    }
+
+    /**
+     * Walk the whole SDR repository of the BMC and return the raw bytes of every record.
+     */
+    private List<byte[]> readSdrRepository() throws Exception {
+        List<byte[]> records = Lists.newArrayList();
 
         // Id 0 indicates first record in SDR. Next IDs can be retrieved from
         // records - they are organized in a list and there is no BMC command to
@@ -117,215 +378,601 @@ public class IPMIMetricsPoller implements Runnable, MetricSet {
         // We get sensor data until we encounter ID = 65535 which means that
         // this record is the last one.
         while (nextRecId.get() < MAX_REPO_RECORD_ID) {
-            //for (int nextRecId : records) {
             try {
-                // Populate the sensor record and get ID of the next record in
+                // Get the raw sensor record and the ID of the next record in
                 // repository (see #getSensorData for details).
-                SensorRecord record = getSensorData(connector, handle, reservationId, nextRecId);
-
-                // We check if the received record is either FullSensorRecord or
-                // CompactSensorRecord, since these types have readings
-                // associated with them (see IPMI specification for details).
-                if (record instanceof FullSensorRecord) {
-                    FullSensorRecord fsr = (FullSensorRecord) record;
-                    int sid = TypeConverter.byteToInt(fsr.getSensorNumber());
-                    if (sid >= 0) {
-                        sensorRecs.put(sid, fsr);
-                        LOG.info("{} Found sensor {} (ID: {}, Rate: {})", address, fsr.getName(), sid, fsr.getSensorBaseUnit().toString());
-                    }
-                }
+                records.add(getSensorData(connector, handle, reservationId, nextRecId));
             } catch (IPMIException e) {
-
-                System.out.println("Getting new reservation ID");
-
-                System.out.println("156: " + e.getMessage());
+                LOG.debug("{} Getting new reservation ID: {}", address, e.getMessage());
 
                 // If getting sensor data failed, we check if it already failed
                 // with this reservation ID.
                 if (lastReservationId == reservationId)
                     throw e;
                 lastReservationId = reservationId;
+                bmcMetrics.retries.inc();
+                if (reservationId != 0) {
+                    bmcMetrics.reservationCancellations.inc();
+                }
 
                 // If the cause of the failure was canceling of the
                 // reservation, we get new reservationId and retry. This can
                 // happen many times during getting all sensors, since BMC can't
                 // manage parallel sessions and invalidates old one if new one
                 // appears.
-                reservationId = ((ReserveSdrRepositoryResponseData) connector
-                        .sendMessage(handle, new ReserveSdrRepository(IpmiVersion.V20, handle.getCipherSuite(),
-                                AuthenticationType.RMCPPlus))).getReservationId();
+                Timer.Context timer = bmcMetrics.reserveSdrRepository.time();
+                try {
+                    reservationId = ((ReserveSdrRepositoryResponseData) connector
+                            .sendMessage(handle, new ReserveSdrRepository(IpmiVersion.V20, handle.getCipherSuite(),
+                                    AuthenticationType.RMCPPlus))).getReservationId();
+                } finally {
+                    timer.stop();
+                }
             }
         }
 
-        return sensorRecs;
+        return records;
     }
 
-    private void collectMeasurements() throws Exception {
-        Timer.Context timerContext = metricsFetchTimer.time();
-        Map<Integer, Number> measurements = Maps.newHashMap();
-        for (MonitoredMetric m : sensors) {
-            FullSensorRecord record = sensorRecs.get(m.ipmiid);
-            if (record != null) {
-                try {
-                    GetSensorReadingResponseData data2 = (GetSensorReadingResponseData) connector
-                            .sendMessage(handle, new GetSensorReading(IpmiVersion.V20, handle.getCipherSuite(),
-                                    AuthenticationType.RMCPPlus, m.ipmiid));
-                    // Parse sensor reading using information retrieved
-                    // from sensor record. See
-                    // FullSensorRecord#calcFormula for details.
-                    measurements.put(m.ipmiid, data2.getSensorReading(record));
-                    String value = data2.getSensorReading(record) + " " + record.getSensorBaseUnit().toString()
-                            + (record.getRateUnit() != RateUnit.None ? " per " + record.getRateUnit() : "");
-                    LOG.info("{} ({}/{}) {} = {}", address, record.getId(), m.ipmiid, record.getName(), value);
-                } catch (IPMIException e) {
-                    if (e.getCompletionCode() == CompletionCode.DataNotPresent) {
-                        e.printStackTrace();
-                    } else {
-                        throw e;
+    /**
+     * Set up the reads of the polled sensors, and their schedule, which starts over with every sensor read on every
+     * poll
+     */
+    private void compileSensorReads() {
+        List<SensorRead> compiled = Lists.newArrayList();
+        for (int i = 0; i < sensors.size(); i++) {
+            if (table.contains(sensors.get(i).ipmiid)) {
+                compiled.add(new SensorRead(i));
+            } else {
+                LOG.warn("{} Sensor {} not found in SDR repository", address, sensors.get(i).ipmiid);
+            }
+        }
+        reads = compiled.toArray(new SensorRead[compiled.size()]);
+        if (adaptivePolling.isPresent()) {
+            schedule = new AdaptiveSchedule(sensors, table, periodMillis, adaptivePolling.get());
+            pollIntervals = schedule.intervals();
+        }
+    }
+
+    private void collectMeasurements() {
+        cycleTimer = metricsFetchTimer.time();
+        cycleFailure.set(null);
+        Arrays.fill(readings, Double.NaN);
+        final int cycle = ++cycles;
+        int due = 0;
+        for (SensorRead read : reads) {
+            read.answered = false;
+            read.due = schedule == null || schedule.isDue(read.index, cycle);
+            if (read.due) {
+                due++;
+            }
+        }
+        deferredReads.inc(reads.length - due);
+        retriesLeft.set(retryBudget);
+        shipped.set(false);
+        deadline = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (cycles == cycle && !shipped.get()) {
+                    deadlineHits.inc();
+                    finishCycle();
+                }
+            }
+        }, deadlineMillis, TimeUnit.MILLISECONDS);
+
+        // one extra count keeps the cycle open until every request has been sent
+        outstanding.set(due + 1);
+        for (SensorRead read : reads) {
+            if (!read.due) {
+                continue;
+            }
+            if (shipped.get()) {
+                // past the deadline, blocking requests took too long
+                readDone();
+            } else {
+                read.send();
+            }
+        }
+        readDone();
+    }
+
+    /**
+     * The cycle ends once every request has been answered, failed or timed out, even if its readings were shipped
+     * at the deadline already
+     */
+    private void readDone() {
+        if (outstanding.decrementAndGet() == 0) {
+            try {
+                finishCycle();
+            } finally {
+                endCycle();
+            }
+        }
+    }
+
+    /**
+     * Ship the readings of the cycle, once: when the last request is done or at the deadline, whichever comes first.
+     * Sensors that didn't answer by then are left out.
+     */
+    private void finishCycle() {
+        double[] readings = shippedReadings;
+        int due = 0;
+        int missing = 0;
+        int[] ids;
+        // answers coming after this are left out
+        synchronized (readingsLock) {
+            if (!shipped.compareAndSet(false, true)) {
+                return;
+            }
+            System.arraycopy(this.readings, 0, readings, 0, readings.length);
+            for (SensorRead read : reads) {
+                if (read.due) {
+                    due++;
+                    if (!read.answered) {
+                        missing++;
                     }
                 }
             }
+            ids = new int[missing];
+            int i = 0;
+            for (SensorRead read : reads) {
+                if (read.due && !read.answered) {
+                    ids[i++] = read.sensorId;
+                }
+            }
+        }
+        cycleTimer.stop();
+        deadline.cancel(false);
+
+        notAnswered = missing;
+        if (missing > 0) {
+            sensorsNotAnswered.inc(missing);
+            LOG.warn("{} {} of {} sensors didn't answer in time: {}", address, missing, due,
+                    Arrays.toString(ids));
+        }
+
+        // readings of a failed cycle are still valid, thresholds don't wait for the sensors that failed
+        evaluateThresholds(readings);
+        boolean any = false;
+        for (double reading : readings) {
+            any |= !Double.isNaN(reading);
+        }
+        Throwable failure = cycleFailure.get();
+        if (!any && (failure != null || missing > 0)) {
+            if (failure == null) {
+                failure = new TimeoutException("No sensor answered before the poll deadline");
+            }
+            LOG.error("Failed to collect sensor metrics", failure);
+            session.failed(handle, failure);
+            return;
+        }
+        if (failure != null) {
+            LOG.warn("{} Some sensors failed, shipping the others", address, failure);
+        }
+
+        long now = System.currentTimeMillis();
+        reschedule(readings, now);
+        // the history keeps every reading, the metrics API gets one value per window, if it changed
+        record(readings, now);
+        if (window.add(readings, now)) {
+            double[] output = window.output();
+            suppressed.inc(deadband.apply(output, now));
+            measurements.addMeasurements(window.reported(), output, Optional.of(new DateTime(now)));
         }
-        timerContext.stop();
-        metricsClient.addMeasurements(sensors, measurements, Optional.<DateTime>absent());
     }
 
-    private static ConnectionHandle startSession(IpmiConnector connector, InetAddress address, String username,
-                                         String password, String bmcKey, PrivilegeLevel privilegeLevel) throws Exception {
+    private void evaluateThresholds(double[] readings) {
+        if (thresholds == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < readings.length; i++) {
+            Optional<Event> event = thresholds.evaluate(sensors.get(i), readings[i], now);
+            if (event.isPresent()) {
+                LOG.info("{} {}", address, event.get().message);
+                thresholdEvents.inc();
+                events.get().addEvent(event.get());
+            }
+        }
+    }
 
-        // Create the handle to the connection which will be it's identifier
-        ConnectionHandle handle = connector.createConnection(address);
+    /**
+     * Schedule the next reading of the sensors read in this cycle. Sensors left out of a failed cycle are read again
+     * on the next one.
+     */
+    private void reschedule(double[] readings, long now) {
+        if (schedule == null) {
+            return;
+        }
+        for (SensorRead read : reads) {
+            if (read.due) {
+                schedule.update(read.index, readings[read.index], cycles, now);
+            }
+        }
+        pollIntervals = schedule.intervals();
+    }
 
-        CipherSuite cs;
+    private void record(double[] readings, long now) {
+        if (!history.isPresent()) {
+            return;
+        }
+        for (int i = 0; i < readings.length; i++) {
+            if (buffers[i] != null && !Double.isNaN(readings[i])) {
+                buffers[i].add(now, readings[i]);
+            }
+        }
+    }
 
-        try {
-            // Get cipher suites supported by the remote host
-            List<CipherSuite> suites = connector.getAvailableCipherSuites(handle);
-
-            if (suites.size() > 3) {
-                cs = suites.get(3);
-            } else if (suites.size() > 2) {
-                cs = suites.get(2);
-            } else if (suites.size() > 1) {
-                cs = suites.get(1);
+    /**
+     * Reading of one sensor, converted with the sensor table. Created once per sensor on discovery and reused for
+     * every cycle.
+     */
+    private class SensorRead {
+        private final int index;
+        private final int sensorId;
+        /**
+         * Whether the sensor is read in the current cycle, see {@link AdaptiveSchedule}
+         */
+        boolean due = true;
+        /**
+         * Whether the BMC answered, with a reading or an error, in the current cycle
+         */
+        volatile boolean answered;
+
+        SensorRead(int index) {
+            this.index = index;
+            this.sensorId = sensors.get(index).ipmiid;
+        }
+
+        void send() {
+            Attempt attempt = new Attempt(this);
+            attempts.add(attempt);
+            ListenableFuture<ResponseData> response = connector.send(handle, new GetSensorReading(IpmiVersion.V20,
+                    handle.getCipherSuite(), AuthenticationType.RMCPPlus, sensorId));
+            // only requests still in flight can time out, the sync engine answers before returning
+            if (!response.isDone()) {
+                attempt.timeout = timer.schedule(attempt, rtt.timeoutNanos(), TimeUnit.NANOSECONDS);
+            }
+            Futures.addCallback(response, attempt);
+        }
+
+        void answered(long sentAt, ResponseData response) {
+            long elapsed = System.nanoTime() - sentAt;
+            rtt.update(elapsed);
+            bmcMetrics.getSensorReading.update(elapsed, TimeUnit.NANOSECONDS);
+            // Parse sensor reading using the conversion compiled from the
+            // sensor record. See FullSensorRecord#calcFormula for details.
+            double value = table.convert(sensorId, ((GetSensorReadingResponseData) response).getPlainSensorReading());
+            synchronized (readingsLock) {
+                answered = true;
+                if (!shipped.get()) {
+                    readings[index] = value;
+                }
+            }
+            if (LOG.isInfoEnabled()) {
+                LOG.info("{} ({}/{}) {} = {} {}{}", address, table.recordId(sensorId), sensorId, table.name(sensorId),
+                        value, table.unit(sensorId),
+                        table.rate(sensorId) != RateUnit.None ? " per " + table.rate(sensorId) : "");
+            }
+            readDone();
+        }
+
+        void failed(long sentAt, Throwable t) {
+            bmcMetrics.getSensorReading.update(System.nanoTime() - sentAt, TimeUnit.NANOSECONDS);
+            if (t instanceof IPMIException) {
+                // the BMC answered, with an error
+                synchronized (readingsLock) {
+                    answered = true;
+                }
+                CompletionCode code = ((IPMIException) t).getCompletionCode();
+                if (code == CompletionCode.DataNotPresent) {
+                    bmcMetrics.dataNotPresent.inc();
+                    LOG.debug("{} No reading available for sensor {}", address, sensorId);
+                } else {
+                    if (code == CompletionCode.CannotRespond) {
+                        bmcMetrics.cannotRespond.inc();
+                    }
+                    cycleFailure.compareAndSet(null, t);
+                }
+            } else if (retry()) {
+                return;
             } else {
-                cs = suites.get(0);
+                cycleFailure.compareAndSet(null, t);
+            }
+            readDone();
+        }
+
+        void timedOut() {
+            requestTimeouts.inc();
+            rtt.timedOut();
+            if (!retry()) {
+                readDone();
+            }
+        }
+
+        /**
+         * Send the request again if the cycle is still open and its retry budget allows
+         */
+        private boolean retry() {
+            if (shipped.get() || retriesLeft.getAndDecrement() <= 0) {
+                return false;
+            }
+            bmcMetrics.retries.inc();
+            send();
+            return true;
+        }
+    }
+
+    /**
+     * One request for a sensor reading, settled once: by its answer, or by its timeout
+     */
+    private class Attempt implements FutureCallback<ResponseData>, Runnable {
+        private final SensorRead read;
+        private final long sentAt = System.nanoTime();
+        private final AtomicBoolean settled = new AtomicBoolean(false);
+        volatile ScheduledFuture<?> timeout;
+
+        Attempt(SensorRead read) {
+            this.read = read;
+        }
+
+        @Override
+        public void onSuccess(ResponseData response) {
+            if (settle()) {
+                read.answered(sentAt, response);
             }
-            // Pick the cipher suite and requested privilege level for the
-            // session
-            connector.getChannelAuthenticationCapabilities(handle, cs, privilegeLevel);
+        }
 
-            // Open the session and authenticate
-            connector.openSession(handle, username, password, bmcKey.getBytes());
-        } catch (Exception e) {
-            connector.closeConnection(handle);
-            throw e;
+        @Override
+        public void onFailure(Throwable t) {
+            if (settle()) {
+                read.failed(sentAt, t);
+            }
+        }
+
+        @Override
+        public void run() {
+            // a late answer is ignored
+            if (settled.compareAndSet(false, true)) {
+                attempts.remove(this);
+                read.timedOut();
+            }
         }
 
-        return handle;
+        boolean settle() {
+            if (!settled.compareAndSet(false, true)) {
+                return false;
+            }
+            attempts.remove(this);
+            ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+            return true;
+        }
     }
 
-    public SensorRecord getSensorData(IpmiConnector connector, ConnectionHandle handle, int reservationId, AtomicInteger recordId)
+    /**
+     * Read one record from the SDR repository and update {@code recordId} to the ID of the next record.
+     *
+     * @return the raw record, header included
+     */
+    public byte[] getSensorData(IpmiTransport connector, ConnectionHandle handle, int reservationId, AtomicInteger recordId)
             throws Exception {
-        try {
-            // BMC capabilities are limited - that means that sometimes the
-            // record size exceeds maximum size of the message. Since we don't
-            // know what is the size of the record, we try to get
-            // whole one first
-            GetSdrResponseData data = (GetSdrResponseData) connector.sendMessage(handle, new GetSdr(IpmiVersion.V20,
-                    handle.getCipherSuite(), AuthenticationType.RMCPPlus, reservationId, recordId.get()));
-            // If getting whole record succeeded we create SensorRecord from
-            // received data...
-            SensorRecord sensorDataToPopulate = null;
+        if (readStrategy.readsWholeRecord()) {
             try {
-                sensorDataToPopulate = SensorRecord.populateSensorRecord(data.getSensorRecordData());
-            } catch (IllegalArgumentException e) {
-                // Skip it, one of the sensors isn't understood by this library
-            }
-            // ... and update the ID of the next record
-            recordId.set(data.getNextRecordId());
-            return sensorDataToPopulate;
-        } catch (IPMIException e) {
-            // System.out.println(e.getCompletionCode() + ": " + e.getMessage());
-            // The following error codes mean that record is too large to be
-            // sent in one chunk. This means we need to split the data in
-            // smaller parts.
-            if (e.getCompletionCode() == CompletionCode.CannotRespond
-                    || e.getCompletionCode() == CompletionCode.UnspecifiedError) {
-                // First we get the header of the record to find out its size.
-                GetSdrResponseData data = (GetSdrResponseData) connector.sendMessage(handle, new GetSdr(
-                        IpmiVersion.V20, handle.getCipherSuite(), AuthenticationType.RMCPPlus, reservationId,
-                        recordId.get(), 0, INITIAL_CHUNK_SIZE));
-                // The record size is 5th byte of the record. It does not take
-                // into account the size of the header, so we need to add it.
-                int recSize = TypeConverter.byteToInt(data.getSensorRecordData()[4]) + HEADER_SIZE;
-                int read = INITIAL_CHUNK_SIZE;
-
-                byte[] result = new byte[recSize];
-
-                System.arraycopy(data.getSensorRecordData(), 0, result, 0, data.getSensorRecordData().length);
-
-                // We get the rest of the record in chunks (watch out for
-                // exceeding the record size, since this will result in BMC's
-                // error.
-                int chunk_size = CHUNK_SIZE;
-                while (read < recSize) {
-                    int bytesToRead = chunk_size;
-                    if (recSize - read < bytesToRead) {
-                        bytesToRead = recSize - read;
-                    }
-                    try {
-                        GetSdrResponseData part = (GetSdrResponseData) connector.sendMessage(handle, new GetSdr(
-                                IpmiVersion.V20, handle.getCipherSuite(), AuthenticationType.RMCPPlus, reservationId,
-                                recordId.get(), read, bytesToRead));
-                        System.arraycopy(part.getSensorRecordData(), 0, result, read, bytesToRead);
-                        read += bytesToRead;
-                    } catch (IPMIException ee) {
-                        if (chunk_size <= 8) throw ee;
-                        chunk_size /= 2;
-                    }
+                // BMC capabilities are limited - that means that sometimes the
+                // record size exceeds maximum size of the message. Unless this
+                // BMC already refused it, we try to get whole one first
+                GetSdrResponseData data;
+                Timer.Context timer = bmcMetrics.getSdrWhole.time();
+                try {
+                    data = (GetSdrResponseData) connector.sendMessage(handle, new GetSdr(IpmiVersion.V20,
+                            handle.getCipherSuite(), AuthenticationType.RMCPPlus, reservationId, recordId.get()));
+                } finally {
+                    timer.stop();
                 }
-
-                // Finally we populate the sensor record with the gathered
-                // data...
-                SensorRecord sensorDataToPopulate = SensorRecord.populateSensorRecord(result);
-                // ... and update the ID of the next record
+                // If getting whole record succeeded we update the ID of the next record
                 recordId.set(data.getNextRecordId());
-                return sensorDataToPopulate;
-            } else {
-                throw e;
+                return data.getSensorRecordData();
+            } catch (IPMIException e) {
+                // The following error codes mean that record is too large to be
+                // sent in one chunk. This means we need to split the data in
+                // smaller parts, for this and every later record.
+                if (!isTooLarge(e)) {
+                    throw e;
+                }
+                LOG.info("{} BMC can't return whole SDR records, reading them in chunks", address);
+                readStrategy.wholeRecordRejected();
+                bmcMetrics.retries.inc();
+            }
+        }
+
+        // First we get the header of the record to find out its size.
+        GetSdrResponseData data;
+        Timer.Context timer = bmcMetrics.getSdrChunk.time();
+        try {
+            data = (GetSdrResponseData) connector.sendMessage(handle, new GetSdr(
+                    IpmiVersion.V20, handle.getCipherSuite(), AuthenticationType.RMCPPlus, reservationId,
+                    recordId.get(), 0, INITIAL_CHUNK_SIZE));
+        } finally {
+            timer.stop();
+        }
+        // The record size is 5th byte of the record. It does not take
+        // into account the size of the header, so we need to add it.
+        int recSize = TypeConverter.byteToInt(data.getSensorRecordData()[4]) + HEADER_SIZE;
+        int read = INITIAL_CHUNK_SIZE;
+
+        byte[] result = new byte[recSize];
+
+        System.arraycopy(data.getSensorRecordData(), 0, result, 0, data.getSensorRecordData().length);
+
+        // We get the rest of the record in chunks of the size this BMC is
+        // known to accept (watch out for exceeding the record size, since
+        // this will result in BMC's error.
+        int chunk_size = readStrategy.chunkSize();
+        while (read < recSize) {
+            int bytesToRead = chunk_size;
+            if (recSize - read < bytesToRead) {
+                bytesToRead = recSize - read;
             }
+            timer = bmcMetrics.getSdrChunk.time();
+            try {
+                GetSdrResponseData part = (GetSdrResponseData) connector.sendMessage(handle, new GetSdr(
+                        IpmiVersion.V20, handle.getCipherSuite(), AuthenticationType.RMCPPlus, reservationId,
+                        recordId.get(), read, bytesToRead));
+                System.arraycopy(part.getSensorRecordData(), 0, result, read, bytesToRead);
+                read += bytesToRead;
+            } catch (IPMIException ee) {
+                if (!isTooLarge(ee) || bytesToRead <= SdrReadStrategies.MIN_CHUNK_SIZE) throw ee;
+                chunk_size = readStrategy.chunkRejected(bytesToRead);
+                bmcMetrics.retries.inc();
+                LOG.info("{} BMC can't return {} SDR bytes at once, trying {}", address, bytesToRead, chunk_size);
+            }
+        }
+
+        // Finally we update the ID of the next record
+        recordId.set(data.getNextRecordId());
+        return result;
+    }
+
+    private boolean isTooLarge(IPMIException e) {
+        if (e.getCompletionCode() == CompletionCode.CannotRespond) {
+            bmcMetrics.cannotRespond.inc();
+            return true;
         }
+        return e.getCompletionCode() == CompletionCode.UnspecifiedError;
     }
 
-    private String toString(FullSensorRecord rec) {
-        return Objects.toStringHelper(rec)
-                .add("id", rec.getId())
-                .add("name", rec.getName())
-                .add("accuracy", rec.getAccuracy())
-                .add("entityId", rec.getEntityId())
-                .add("lowerCriticalThreshold", rec.getLowerCriticalThreshold())
-                .add("lowerNonCriticalThreshold", rec.getLowerNonCriticalThreshold())
-                .add("lowerNonRecoverableThreshold", rec.getLowerNonRecoverableThreshold())
-                .add("nomimalReading", rec.getNominalReading())
-                .add("normalMaximum", rec.getNormalMaximum())
-                .add("normalMinimum", rec.getNormalMinimum())
-                .add("sensorBaseUnit", rec.getSensorBaseUnit())
-                .add("sensorMaximumReading", rec.getSensorMaximumReading())
-                .add("sensorMinimumReading", rec.getSensorMinmumReading())
-                .add("sensorNumber", rec.getSensorNumber())
-                .add("sensorOwnerId", rec.getSensorOwnerId())
-                .add("sensorResolution", rec.getSensorResolution())
-                .add("sensorType", rec.getSensorType())
-                .add("tolerance", rec.getTolerance())
-                .add("upperCriticalThreshold", rec.getUpperCriticalThreshold())
-                .add("upperNonCriticalThreshold", rec.getUpperNonCriticalThreshold())
-                .add("upperNonRecoverableThreshold", rec.getUpperNonRecoverableThreshold())
-                .toString();
+    /**
+     * The full SDR record of a sensor, parsed again for diagnostics
+     *
+     * @return absent until the SDR repository has been read, or if it has no full record for the sensor
+     */
+    public Optional<Map<String, Object>> sensorRecord(int sensorId) {
+        SensorTable sensors = table;
+        Optional<FullSensorRecord> record = sensors != null
+                ? sensors.record(sensorId)
+                : Optional.<FullSensorRecord>absent();
+        if (!record.isPresent()) {
+            return Optional.absent();
+        }
+        FullSensorRecord rec = record.get();
+        // some fields may be null, ImmutableMap doesn't take them
+        Map<String, Object> fields = Maps.newLinkedHashMap();
+        fields.put("id", rec.getId());
+        fields.put("name", rec.getName());
+        fields.put("accuracy", rec.getAccuracy());
+        fields.put("entityId", rec.getEntityId());
+        fields.put("lowerCriticalThreshold", rec.getLowerCriticalThreshold());
+        fields.put("lowerNonCriticalThreshold", rec.getLowerNonCriticalThreshold());
+        fields.put("lowerNonRecoverableThreshold", rec.getLowerNonRecoverableThreshold());
+        fields.put("nominalReading", rec.getNominalReading());
+        fields.put("normalMaximum", rec.getNormalMaximum());
+        fields.put("normalMinimum", rec.getNormalMinimum());
+        fields.put("rateUnit", rec.getRateUnit());
+        fields.put("sensorBaseUnit", rec.getSensorBaseUnit());
+        fields.put("sensorMaximumReading", rec.getSensorMaximumReading());
+        fields.put("sensorMinimumReading", rec.getSensorMinmumReading());
+        fields.put("sensorNumber", TypeConverter.byteToInt(rec.getSensorNumber()));
+        fields.put("sensorOwnerId", rec.getSensorOwnerId());
+        fields.put("sensorResolution", rec.getSensorResolution());
+        fields.put("sensorType", rec.getSensorType());
+        fields.put("tolerance", rec.getTolerance());
+        fields.put("upperCriticalThreshold", rec.getUpperCriticalThreshold());
+        fields.put("upperNonCriticalThreshold", rec.getUpperNonCriticalThreshold());
+        fields.put("upperNonRecoverableThreshold", rec.getUpperNonRecoverableThreshold());
+        return Optional.of(fields);
+    }
+
+    /**
+     * Current reading interval of each polled sensor, in milliseconds, by sensor number
+     *
+     * @return absent without adaptive polling
+     */
+    public Optional<Map<Integer, Long>> pollIntervals() {
+        return adaptivePolling.isPresent()
+                ? Optional.of(pollIntervals.bySensor)
+                : Optional.<Map<Integer, Long>>absent();
     }
 
     @Override
     public Map<String, Metric> getMetrics() {
-        return ImmutableMap.of(address + "-poll-timer", (Metric)metricsFetchTimer);
+        return ImmutableMap.<String, Metric>builder()
+                .put(address + "-poll-timer", metricsFetchTimer)
+                .put(address + "-poll-overruns", overruns)
+                .put(address + "-deadband-suppressed", suppressed)
+                .put(address + "-threshold-events", thresholdEvents)
+                .put(address + "-request-timeouts", requestTimeouts)
+                .put(address + "-poll-deadline-hits", deadlineHits)
+                .put(address + "-sensors-not-answered", sensorsNotAnswered)
+                .put(address + "-sensors-not-answered-last-poll", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return notAnswered;
+                    }
+                })
+                .put(address + "-sensor-reads-deferred", deferredReads)
+                .put(address + "-sensors-at-base-interval", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return pollIntervals.atBase;
+                    }
+                })
+                .put(address + "-sensor-poll-interval-max", new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return pollIntervals.max;
+                    }
+                })
+                .put(address + "-sensor-poll-interval-mean", new Gauge<Double>() {
+                    @Override
+                    public Double getValue() {
+                        return pollIntervals.mean;
+                    }
+                })
+                .put(address + "-rtt", new Gauge<Double>() {
+                    @Override
+                    public Double getValue() {
+                        return rtt.smoothedNanos() / 1e6;
+                    }
+                })
+                .put(address + "-request-timeout", new Gauge<Double>() {
+                    @Override
+                    public Double getValue() {
+                        return rtt.timeoutNanos() / 1e6;
+                    }
+                })
+                .put(address + "-sdr-chunk-size", new Gauge<Integer>() {
+                    @Override
+                    public Integer getValue() {
+                        return readStrategy.chunkSize();
+                    }
+                })
+                .put(address + "-sdr-whole-record", new Gauge<Boolean>() {
+                    @Override
+                    public Boolean getValue() {
+                        return readStrategy.readsWholeRecord();
+                    }
+                })
+                .put(address + "-session-connected", new Gauge<Boolean>() {
+                    @Override
+                    public Boolean getValue() {
+                        return session.isConnected();
+                    }
+                })
+                .put(address + "-session-opens", new Gauge<Long>() {
+                    @Override
+                    public Long getValue() {
+                        return session.getOpenCount();
+                    }
+                })
+                .putAll(bmcMetrics.getMetrics())
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "IPMIMetricsPoller{" + address + "}";
     }
 }
@@ -0,0 +1,28 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.boundary.metrics.ipmi.client.metrics.Event;
+import com.boundary.metrics.ipmi.client.metrics.EventSink;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes events to the log only, at a level matching their severity
+ */
+public class LoggingEventSink implements EventSink {
+
+    private static final Logger LOG = LoggerFactory.getLogger("events");
+
+    @Override
+    public void addEvent(Event event) {
+        switch (event.severity) {
+            case INFO:
+                LOG.info("{} {}: {}", event.status, event.title, event.message);
+                break;
+            case WARN:
+                LOG.warn("{} {}: {}", event.status, event.title, event.message);
+                break;
+            default:
+                LOG.error("{} {}: {}", event.status, event.title, event.message);
+        }
+    }
+}
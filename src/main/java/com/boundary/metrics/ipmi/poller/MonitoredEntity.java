@@ -1,5 +1,8 @@
 package com.boundary.metrics.ipmi.poller;
 
+import com.google.common.base.Optional;
+import io.dropwizard.util.Duration;
+
 import javax.annotation.concurrent.Immutable;
 import java.net.InetAddress;
 import java.util.List;
@@ -7,15 +10,34 @@ import java.util.List;
 @Immutable
 public class MonitoredEntity {
 
+    /**
+     * Finds the sensors to poll, besides the listed ones, once the SDR repository of the entity has been read
+     */
+    public interface SensorDiscovery {
+        /**
+         * @param sensors the sensors of the SDR repository
+         */
+        List<MonitoredMetric> discover(SensorTable sensors);
+    }
+
     public final InetAddress address;
     public final String username;
     public final String password;
     public final List<MonitoredMetric> sensors;
+    public final Optional<String> model;
+    public final Duration pollFrequency;
+    public final Optional<Duration> reportWindow;
+    public final Optional<SensorDiscovery> discovery;
 
-    public MonitoredEntity(InetAddress a, String u, String p, List<MonitoredMetric> ss) {
+    public MonitoredEntity(InetAddress a, String u, String p, List<MonitoredMetric> ss, Optional<String> m, Duration f,
+                           Optional<Duration> w, Optional<SensorDiscovery> d) {
         address = a;
         username = u;
         password = p;
         sensors = ss;
+        model = m;
+        pollFrequency = f;
+        reportWindow = w;
+        discovery = d;
     }
 }
@@ -0,0 +1,184 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.boundary.metrics.ipmi.client.metrics.MetricDefinitions;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Builds {@link MonitoredEntity}s from their configuration and keeps track of the metrics they report.
+ *
+ * Metrics are shared by name: the first sensor configuration seen for a metric defines it. Metrics not created with
+ * the metrics API yet are created by {@link #defineMetrics()}, at the finest resolution the entities reporting them
+ * report at (their poll frequency, or report window if longer), so entities added at runtime only create the metrics
+ * nobody reported before, or those they report at a finer resolution than they were created with. Metrics are created
+ * in the background, so pollers start without waiting for them.
+ *
+ * Entities discovering their sensors map them with the sensor rules once their SDR repository has been read, and
+ * create the metrics of the sensors found right away.
+ */
+public class MonitoredEntityFactory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MonitoredEntityFactory.class);
+
+    private final Duration defaultPollFrequency;
+    private final Optional<Duration> defaultReportWindow;
+    private final SensorRules sensorRules;
+    private final MetricDefinitions definitions;
+
+    private final Map<String, MonitoredMetric.Metric> metrics = Maps.newHashMap();
+    private final Map<String, Long> undefined = Maps.newLinkedHashMap();
+    /**
+     * Resolution each metric was last created with, or is being created with
+     */
+    private final Map<String, Long> defined = Maps.newHashMap();
+
+    public MonitoredEntityFactory(Duration defaultPollFrequency, Optional<Duration> defaultReportWindow,
+                                  List<IPMIPollerConfiguration.SensorRuleConfiguration> sensorRules,
+                                  MetricDefinitions definitions) {
+        this.defaultPollFrequency = checkNotNull(defaultPollFrequency);
+        this.defaultReportWindow = checkNotNull(defaultReportWindow);
+        this.sensorRules = new SensorRules(sensorRules);
+        this.definitions = checkNotNull(definitions);
+    }
+
+    public synchronized MonitoredEntity create(final IPMIPollerConfiguration.EntityConfiguration e) {
+        Duration frequency = e.pollFrequency != null ? e.pollFrequency : defaultPollFrequency;
+        Optional<Duration> window = e.reportWindow != null ? Optional.of(e.reportWindow) : defaultReportWindow;
+        final long resolution = Math.max(frequency.toMilliseconds(),
+                window.isPresent() ? window.get().toMilliseconds() : 0);
+
+        ImmutableList.Builder<MonitoredMetric> sensors = ImmutableList.builder();
+        for (IPMIPollerConfiguration.SensorConfiguration s : e.sensors) {
+            sensors.add(sensor(s, e.source, resolution));
+        }
+        Optional<MonitoredEntity.SensorDiscovery> discovery = Optional.absent();
+        if (e.discoverSensors) {
+            discovery = Optional.<MonitoredEntity.SensorDiscovery>of(new MonitoredEntity.SensorDiscovery() {
+                @Override
+                public List<MonitoredMetric> discover(SensorTable sensors) {
+                    return discoverSensors(e, resolution, sensors);
+                }
+            });
+        }
+        return new MonitoredEntity(e.host, e.username, e.password, sensors.build(), Optional.fromNullable(e.model),
+                frequency, window, discovery);
+    }
+
+    private MonitoredMetric sensor(IPMIPollerConfiguration.SensorConfiguration s, String source, long resolution) {
+        MonitoredMetric.Metric metric = metric(s.metric, new MonitoredMetric.Metric(s), resolution);
+        Optional<MonitoredMetric.Metric> min = Optional.absent();
+        Optional<MonitoredMetric.Metric> max = Optional.absent();
+        if (s.reportExtremes) {
+            MonitoredMetric.Metric m = new MonitoredMetric.Metric(metric,
+                    IPMIPollerConfiguration.SensorConfiguration.Aggregate.min);
+            min = Optional.of(metric(m.name, m, resolution));
+            m = new MonitoredMetric.Metric(metric, IPMIPollerConfiguration.SensorConfiguration.Aggregate.max);
+            max = Optional.of(metric(m.name, m, resolution));
+        }
+        return new MonitoredMetric(s, metric, source, min, max);
+    }
+
+    /**
+     * Sensors of the given table matched by the sensor rules, listed sensors left out, in sensor number order
+     */
+    private List<MonitoredMetric> discoverSensors(IPMIPollerConfiguration.EntityConfiguration e, long resolution,
+                                                  SensorTable table) {
+        Set<Integer> listed = Sets.newHashSet();
+        for (IPMIPollerConfiguration.SensorConfiguration s : e.sensors) {
+            listed.add(s.sensorId);
+        }
+        String source = e.source != null ? e.source : e.host.getHostAddress();
+
+        ImmutableList.Builder<MonitoredMetric> sensors = ImmutableList.builder();
+        synchronized (this) {
+            int[] ids = table.sensors();
+            Arrays.sort(ids);
+            for (int id : ids) {
+                if (listed.contains(id)) {
+                    continue;
+                }
+                Optional<IPMIPollerConfiguration.SensorConfiguration> s = sensorRules.map(table, id, source);
+                if (s.isPresent()) {
+                    sensors.add(sensor(s.get(), source, resolution));
+                }
+            }
+        }
+        defineMetrics();
+        return sensors.build();
+    }
+
+    /**
+     * Get the metric of the given name, registering the given definition if it's the first one seen. A metric created
+     * at a coarser resolution is created again at the given one.
+     */
+    private MonitoredMetric.Metric metric(String name, MonitoredMetric.Metric definition, long resolution) {
+        MonitoredMetric.Metric metric = metrics.get(name);
+        if (metric == null) {
+            metrics.put(name, definition);
+            undefined.put(name, resolution);
+            return definition;
+        }
+        Long current = undefined.containsKey(name) ? undefined.get(name) : defined.get(name);
+        if (current == null || current > resolution) {
+            undefined.put(name, resolution);
+        }
+        return metric;
+    }
+
+    /**
+     * Create the metrics seen since the last call with the metrics API, without waiting for them. A metric that fails
+     * to be created is tried again on the next call.
+     */
+    public synchronized void defineMetrics() {
+        for (final Map.Entry<String, Long> m : Lists.newArrayList(undefined.entrySet())) {
+            undefined.remove(m.getKey());
+            defined.put(m.getKey(), m.getValue());
+            ListenableFuture<Void> definition;
+            try {
+                definition = definitions.define(metrics.get(m.getKey()), m.getValue().intValue());
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to create metric {}, trying again later", m.getKey(), e);
+                undefine(m.getKey(), m.getValue());
+                continue;
+            }
+            Futures.addCallback(definition, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) { }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOG.warn("Unable to create metric {}, trying again later", m.getKey(), t);
+                    undefine(m.getKey(), m.getValue());
+                }
+            });
+        }
+    }
+
+    private synchronized void undefine(String name, long resolution) {
+        Long latest = defined.get(name);
+        if (latest != null && latest < resolution) {
+            // superseded by a finer definition, which is retried on its own if it fails
+            return;
+        }
+        defined.remove(name);
+        Long pending = undefined.get(name);
+        undefined.put(name, pending != null ? Math.min(pending, resolution) : resolution);
+    }
+}
@@ -1,9 +1,17 @@
 package com.boundary.metrics.ipmi.poller;
 
 import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.google.common.base.Optional;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 
 public class MonitoredMetric {
 
+    /**
+     * Sources and sensor names repeat across entities, one copy of each is kept
+     */
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
     public static class Metric {
         public final String name;
         public final String description;
@@ -19,14 +27,66 @@ public class MonitoredMetric {
             unit = s.unit.name();
             aggregate = s.defaultAggregate.name();
         }
+        /**
+         * Companion of a metric, reporting the given aggregate of its report windows
+         */
+        public Metric(Metric m, IPMIPollerConfiguration.SensorConfiguration.Aggregate a) {
+            String suffix = a.name().toUpperCase();
+            name = m.name + "_" + suffix;
+            description = m.description.isEmpty() ? "" : m.description + " (" + a.name() + ")";
+            displayName = m.displayName.isEmpty() ? "" : m.displayName + " " + suffix;
+            displayNameShort = m.displayNameShort.isEmpty() ? "" : m.displayNameShort + " " + suffix;
+            unit = m.unit;
+            aggregate = a.name();
+        }
+    }
+
+    public static class Deadband {
+        public final double width;
+        public final boolean relative;
+        public final long heartbeatMillis;
+        public Deadband(IPMIPollerConfiguration.DeadbandConfiguration d) {
+            width = d.width;
+            relative = d.mode == IPMIPollerConfiguration.DeadbandConfiguration.Mode.relative;
+            heartbeatMillis = d.heartbeat.toMilliseconds();
+        }
     }
 
     public final int ipmiid;
     public final Metric metric;
     public final String source;
+    public final Optional<Deadband> deadband;
+    /**
+     * Companion metrics reporting the minimum and maximum of each report window
+     */
+    public final Optional<Metric> minimum;
+    public final Optional<Metric> maximum;
     public MonitoredMetric(IPMIPollerConfiguration.SensorConfiguration s, Metric m, String source) {
+        this(s, m, source, Optional.<Metric>absent(), Optional.<Metric>absent());
+    }
+    public MonitoredMetric(IPMIPollerConfiguration.SensorConfiguration s, Metric m, String source,
+                           Optional<Metric> min, Optional<Metric> max) {
         ipmiid = s.sensorId;
-        this.source = s.source != null ? s.source : source;
+        String src = s.source != null ? s.source : source;
+        this.source = src != null ? intern(src) : null;
+        metric = m;
+        deadband = s.deadband != null ? Optional.of(new Deadband(s.deadband)) : Optional.<Deadband>absent();
+        minimum = min;
+        maximum = max;
+    }
+    /**
+     * Companion of a sensor, reported as is
+     */
+    public MonitoredMetric(MonitoredMetric sensor, Metric m) {
+        ipmiid = sensor.ipmiid;
+        source = sensor.source;
         metric = m;
+        deadband = Optional.absent();
+        minimum = Optional.absent();
+        maximum = Optional.absent();
+    }
+
+    static String intern(String s) {
+        return STRINGS.intern(s);
     }
 }
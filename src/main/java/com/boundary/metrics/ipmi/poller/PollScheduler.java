@@ -0,0 +1,52 @@
+package com.boundary.metrics.ipmi.poller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Schedules pollers so their start times are spread over the poll interval instead of all firing in the same
+ * second. The n-th of count pollers starts n/count of the way into its interval, moved by a random jitter of up to
+ * the given fraction of the gap between two pollers.
+ */
+public class PollScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PollScheduler.class);
+
+    private final ScheduledExecutorService executor;
+    private final double jitter;
+    private final Random random = new Random();
+
+    public PollScheduler(ScheduledExecutorService executor, double jitter) {
+        checkArgument(jitter >= 0 && jitter <= 1, "jitter must be between 0 and 1");
+        this.executor = executor;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Schedule the index-th of count pollers
+     */
+    public ScheduledFuture<?> schedule(Runnable poller, int index, int count, long periodMillis) {
+        double slot = (double) periodMillis / Math.max(count, 1);
+        long offset = (long) (index * slot + random.nextDouble() * jitter * slot);
+        return schedule(poller, offset % periodMillis, periodMillis);
+    }
+
+    /**
+     * Schedule a poller added while others are already running, at a random point of its interval
+     */
+    public ScheduledFuture<?> schedule(Runnable poller, long periodMillis) {
+        return schedule(poller, (long) (random.nextDouble() * periodMillis), periodMillis);
+    }
+
+    private ScheduledFuture<?> schedule(Runnable poller, long offsetMillis, long periodMillis) {
+        LOG.debug("Scheduling {} every {}ms starting in {}ms", poller, periodMillis, offsetMillis);
+        return executor.scheduleAtFixedRate(poller, offsetMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,68 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.boundary.metrics.ipmi.client.ipmi.IpmiTransport;
+import com.boundary.metrics.ipmi.client.ipmi.SessionManager;
+import com.boundary.metrics.ipmi.client.metrics.EventSink;
+import com.boundary.metrics.ipmi.client.metrics.MeasurementSink;
+import com.boundary.metrics.ipmi.history.SensorHistory;
+import com.google.common.base.Optional;
+
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Collaborators shared by every {@link IPMIMetricsPoller} of the process.
+ */
+public class PollerContext {
+
+    public final MeasurementSink measurements;
+    public final IpmiTransport transport;
+    public final SessionManager sessionManager;
+    public final Optional<SdrCache> sdrCache;
+    public final SdrReadStrategies readStrategies;
+    public final IPMIPollerConfiguration.OverrunPolicy overrunPolicy;
+    public final Optional<SensorHistory> history;
+    /**
+     * Receives threshold events, thresholds are not evaluated when absent
+     */
+    public final Optional<EventSink> events;
+    public final double thresholdHysteresis;
+    public final IPMIPollerConfiguration.TimeoutConfiguration timeouts;
+    /**
+     * Every sensor is read on every poll when absent
+     */
+    public final Optional<IPMIPollerConfiguration.AdaptivePollingConfiguration> adaptivePolling;
+    /**
+     * Runs catch-up polls after an overrun
+     */
+    public final ScheduledExecutorService executor;
+    /**
+     * Fires poll deadlines and request timeouts. Never runs polls, so it isn't held up when every poll thread is
+     * blocked in a poll.
+     */
+    public final ScheduledExecutorService timer;
+
+    public PollerContext(MeasurementSink measurements, IpmiTransport transport, SessionManager sessionManager,
+                         Optional<SdrCache> sdrCache,
+                         SdrReadStrategies readStrategies, IPMIPollerConfiguration.OverrunPolicy overrunPolicy,
+                         Optional<SensorHistory> history, Optional<EventSink> events, double thresholdHysteresis,
+                         IPMIPollerConfiguration.TimeoutConfiguration timeouts,
+                         Optional<IPMIPollerConfiguration.AdaptivePollingConfiguration> adaptivePolling,
+                         ScheduledExecutorService executor, ScheduledExecutorService timer) {
+        this.measurements = checkNotNull(measurements);
+        this.transport = checkNotNull(transport);
+        this.sessionManager = checkNotNull(sessionManager);
+        this.sdrCache = checkNotNull(sdrCache);
+        this.readStrategies = checkNotNull(readStrategies);
+        this.overrunPolicy = checkNotNull(overrunPolicy);
+        this.history = checkNotNull(history);
+        this.events = checkNotNull(events);
+        this.thresholdHysteresis = thresholdHysteresis;
+        this.timeouts = checkNotNull(timeouts);
+        this.adaptivePolling = checkNotNull(adaptivePolling);
+        this.executor = checkNotNull(executor);
+        this.timer = checkNotNull(timer);
+    }
+}
@@ -0,0 +1,170 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Starts and stops the pollers of this process, so entities can come and go without a restart.
+ */
+public class PollerManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PollerManager.class);
+
+    private static class Running {
+        final MonitoredEntity entity;
+        final IPMIMetricsPoller poller;
+        final ScheduledFuture<?> schedule;
+
+        Running(MonitoredEntity entity, IPMIMetricsPoller poller, ScheduledFuture<?> schedule) {
+            this.entity = entity;
+            this.poller = poller;
+            this.schedule = schedule;
+        }
+    }
+
+    private final PollerContext context;
+    private final PollScheduler scheduler;
+    private final MetricRegistry registry;
+    private final Map<String, Running> pollers = Maps.newLinkedHashMap();
+
+    public PollerManager(PollerContext context, PollScheduler scheduler, MetricRegistry registry) {
+        this.context = context;
+        this.scheduler = scheduler;
+        this.registry = registry;
+    }
+
+    /**
+     * Start pollers for the entities not polled yet, spreading their start times evenly over the poll interval
+     *
+     * @return the number of pollers started
+     */
+    public synchronized int startAll(List<MonitoredEntity> entities) {
+        List<MonitoredEntity> added = Lists.newArrayList();
+        for (MonitoredEntity e : entities) {
+            if (!pollers.containsKey(key(e))) {
+                added.add(e);
+            }
+        }
+        int started = 0;
+        for (int i = 0; i < added.size(); i++) {
+            MonitoredEntity e = added.get(i);
+            if (start(e, Optional.of(i), added.size())) {
+                started++;
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Start polling an entity, at a random point of its poll interval
+     *
+     * @return false if the entity is already polled
+     */
+    public synchronized boolean start(MonitoredEntity entity) {
+        return !pollers.containsKey(key(entity)) && start(entity, Optional.<Integer>absent(), 1);
+    }
+
+    /**
+     * Poll an entity with its new configuration, starting it if it isn't polled yet. A change to its sensors or their
+     * source only is applied to the running poller, which discovers its sensors again but keeps its session, SDR
+     * records and schedule; any other change restarts it.
+     */
+    public synchronized boolean update(MonitoredEntity entity) {
+        Running running = pollers.get(key(entity));
+        if (running == null) {
+            return start(entity, Optional.<Integer>absent(), 1);
+        }
+        if (onlySensorsChanged(running.entity, entity)) {
+            running.poller.updateSensors(entity);
+            pollers.put(key(entity), new Running(entity, running.poller, running.schedule));
+            LOG.info("{} Updated sensors", key(entity));
+            return true;
+        }
+        // the readings of the entity are kept across the restart
+        stopPoller(key(entity));
+        return start(entity, Optional.<Integer>absent(), 1);
+    }
+
+    /**
+     * Stop polling an entity and close its session
+     *
+     * @return false if the entity isn't polled
+     */
+    public synchronized boolean stop(String host) {
+        if (!stopPoller(host)) {
+            return false;
+        }
+        if (context.history.isPresent()) {
+            context.history.get().remove(host);
+        }
+        context.readStrategies.remove(host);
+        return true;
+    }
+
+    public synchronized List<MonitoredEntity> entities() {
+        ImmutableList.Builder<MonitoredEntity> entities = ImmutableList.builder();
+        for (Running running : pollers.values()) {
+            entities.add(running.entity);
+        }
+        return entities.build();
+    }
+
+    public synchronized Optional<IPMIMetricsPoller> poller(String host) {
+        Running running = pollers.get(host);
+        return running != null ? Optional.of(running.poller) : Optional.<IPMIMetricsPoller>absent();
+    }
+
+    private boolean stopPoller(String host) {
+        Running running = pollers.remove(host);
+        if (running == null) {
+            return false;
+        }
+        running.schedule.cancel(false);
+        for (String name : running.poller.getMetrics().keySet()) {
+            registry.remove(name);
+        }
+        running.poller.close();
+        LOG.info("{} Stopped polling", host);
+        return true;
+    }
+
+    private boolean start(MonitoredEntity entity, Optional<Integer> index, int count) {
+        IPMIMetricsPoller poller;
+        try {
+            poller = new IPMIMetricsPoller(entity, context);
+        } catch (Exception e) {
+            LOG.error("{} Unable to create poller", key(entity), e);
+            return false;
+        }
+        registry.registerAll(poller);
+        long period = entity.pollFrequency.toMilliseconds();
+        ScheduledFuture<?> schedule = index.isPresent()
+                ? scheduler.schedule(poller, index.get(), count, period)
+                : scheduler.schedule(poller, period);
+        pollers.put(key(entity), new Running(entity, poller, schedule));
+        return true;
+    }
+
+    private static boolean onlySensorsChanged(MonitoredEntity a, MonitoredEntity b) {
+        return Objects.equal(a.username, b.username)
+                && Objects.equal(a.password, b.password)
+                && a.model.equals(b.model)
+                && a.pollFrequency.equals(b.pollFrequency)
+                && a.reportWindow.equals(b.reportWindow)
+                && a.discovery.isPresent() == b.discovery.isPresent();
+    }
+
+    private static String key(MonitoredEntity entity) {
+        return entity.address.getHostAddress();
+    }
+}
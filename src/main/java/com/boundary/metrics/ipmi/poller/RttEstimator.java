@@ -0,0 +1,50 @@
+package com.boundary.metrics.ipmi.poller;
+
+/**
+ * Request timeout of one BMC, from the round-trip times of its answered requests, computed as TCP does (RFC 6298):
+ * smoothed round-trip time plus four times its mean deviation, within bounds. Each timeout doubles it until the next
+ * answer, so a BMC that slowed down isn't retried at the pace it used to answer at.
+ */
+final class RttEstimator {
+
+    private final long minNanos;
+    private final long maxNanos;
+    private final long initialNanos;
+
+    private long srtt = -1;
+    private long rttvar;
+    private int backoff;
+
+    RttEstimator(long minNanos, long maxNanos, long initialNanos) {
+        this.minNanos = minNanos;
+        this.maxNanos = maxNanos;
+        this.initialNanos = initialNanos;
+    }
+
+    synchronized void update(long rttNanos) {
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = (7 * srtt + rttNanos) / 8;
+        }
+        backoff = 0;
+    }
+
+    synchronized void timedOut() {
+        if (backoff < 16) {
+            backoff++;
+        }
+    }
+
+    synchronized long timeoutNanos() {
+        long timeout = srtt < 0 ? initialNanos : srtt + 4 * rttvar;
+        timeout = Math.max(minNanos, Math.min(maxNanos, timeout));
+        return Math.min(maxNanos, timeout << backoff);
+    }
+
+    synchronized long smoothedNanos() {
+        return Math.max(srtt, 0);
+    }
+}
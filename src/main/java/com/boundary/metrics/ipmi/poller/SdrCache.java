@@ -0,0 +1,199 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * On-disk cache of the raw SDR records of each BMC, so a restart does not have to walk every repository again.
+ *
+ * One file is kept per BMC. It is only valid for the repository state it was written for, which is identified by
+ * the add and erase timestamps returned by GetSdrRepositoryInfo (see section 33.9 of the IPMI specification ver. 2.0).
+ *
+ * File layout (big endian):
+ * <pre>
+ *   int    magic ("ISDR")
+ *   int    format version
+ *   int    most recent addition timestamp
+ *   int    most recent erase timestamp
+ *   int    record count
+ *   record count times: unsigned short length, record bytes (header included)
+ *   long   CRC32 of everything above
+ * </pre>
+ */
+public class SdrCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SdrCache.class);
+
+    private static final int MAGIC = 0x49534452;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    private static final int TRAILER_SIZE = 8;
+
+    private final File directory;
+
+    public SdrCache(File directory) {
+        this.directory = checkNotNull(directory);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create SDR cache directory " + directory);
+        }
+    }
+
+    /**
+     * Get the cached records of a BMC, if the cache was written for the given repository timestamps. A cache that
+     * can't be read is deleted, the repository is read from the BMC again.
+     */
+    public Optional<List<byte[]>> load(String host, int addTimestamp, int eraseTimestamp) {
+        File file = fileFor(host);
+        if (!file.isFile()) {
+            return Optional.absent();
+        }
+        try {
+            return read(host, file, addTimestamp, eraseTimestamp);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("{} Deleting unreadable SDR cache {}: {}", host, file, e.toString());
+            if (!file.delete()) {
+                LOG.warn("{} Unable to delete SDR cache {}", host, file);
+            }
+            return Optional.absent();
+        }
+    }
+
+    /**
+     * @throws IOException if the file is truncated or corrupt
+     */
+    private Optional<List<byte[]>> read(String host, File file, int addTimestamp, int eraseTimestamp)
+            throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Unexpected size " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            // nothing read from the file is trusted before its checksum
+            int end = (int) size - TRAILER_SIZE;
+            CRC32 crc = new CRC32();
+            byte[] body = new byte[end];
+            buffer.get(body);
+            crc.update(body);
+            if (crc.getValue() != buffer.getLong()) {
+                throw new IOException("Checksum mismatch");
+            }
+
+            buffer.position(0);
+            buffer.limit(end);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown format");
+            }
+            if (buffer.getInt() != addTimestamp || buffer.getInt() != eraseTimestamp) {
+                LOG.info("{} SDR repository changed since it was cached", host);
+                return Optional.absent();
+            }
+            int count = buffer.getInt();
+            // each record takes at least its length
+            if (count < 0 || count > buffer.remaining() / 2) {
+                throw new IOException("Unexpected record count " + count);
+            }
+            List<byte[]> records = Lists.newArrayListWithCapacity(count);
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < 2) {
+                    throw new IOException("File ends before record " + i);
+                }
+                int length = buffer.getShort() & 0xffff;
+                if (length > buffer.remaining()) {
+                    throw new IOException("Record " + i + " runs past the end of the file");
+                }
+                byte[] record = new byte[length];
+                buffer.get(record);
+                records.add(record);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException(buffer.remaining() + " bytes after the last record");
+            }
+            return Optional.of(records);
+        }
+    }
+
+    /**
+     * Replace the cached records of a BMC. The file is written aside and moved into place, so readers never see a
+     * partially written cache.
+     */
+    public void store(String host, int addTimestamp, int eraseTimestamp, List<byte[]> records) throws IOException {
+        File file = fileFor(host);
+        File tmp = new File(directory, file.getName() + ".tmp");
+
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            Checksummed body = new Checksummed(out, crc);
+            body.writeInt(MAGIC);
+            body.writeInt(VERSION);
+            body.writeInt(addTimestamp);
+            body.writeInt(eraseTimestamp);
+            body.writeInt(records.size());
+            for (byte[] record : records) {
+                body.writeShort(record.length);
+                body.write(record);
+            }
+            out.writeLong(crc.getValue());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File fileFor(String host) {
+        // IPv6 addresses contain characters that are not valid in file names on every platform
+        return new File(directory, host.replace(':', '_').replace('%', '_') + ".sdr");
+    }
+
+    /**
+     * Writes big endian values to the underlying stream while feeding them to the checksum.
+     */
+    private static class Checksummed {
+        private final DataOutputStream out;
+        private final CRC32 crc;
+        private final byte[] scratch = new byte[4];
+
+        Checksummed(DataOutputStream out, CRC32 crc) {
+            this.out = out;
+            this.crc = crc;
+        }
+
+        void writeInt(int v) throws IOException {
+            scratch[0] = (byte) (v >>> 24);
+            scratch[1] = (byte) (v >>> 16);
+            scratch[2] = (byte) (v >>> 8);
+            scratch[3] = (byte) v;
+            out.write(scratch, 0, 4);
+            crc.update(scratch, 0, 4);
+        }
+
+        void writeShort(int v) throws IOException {
+            scratch[0] = (byte) (v >>> 8);
+            scratch[1] = (byte) v;
+            out.write(scratch, 0, 2);
+            crc.update(scratch, 0, 2);
+        }
+
+        void write(byte[] b) throws IOException {
+            out.write(b);
+            crc.update(b);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.google.common.base.Optional;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers how each BMC wants its SDR records read: whether it answers a GetSdr for a whole record, and the
+ * biggest chunk it accepts otherwise.
+ *
+ * What one BMC teaches is also recorded for its model, if one is configured, so other BMCs of the same model start
+ * from the learned values instead of probing again. The strategy of a BMC lives as long as it is polled, so
+ * rediscoveries and restarts of its poller go straight to the right read size; those of models live as long as the
+ * process.
+ */
+public class SdrReadStrategies {
+
+    /**
+     * Smallest chunk tried before giving up on a record
+     */
+    public static final int MIN_CHUNK_SIZE = 8;
+
+    public static class Strategy {
+        private final Optional<Strategy> model;
+        private volatile boolean wholeRecord;
+        private volatile int chunkSize;
+
+        private Strategy(Optional<Strategy> model, boolean wholeRecord, int chunkSize) {
+            this.model = model;
+            this.wholeRecord = wholeRecord;
+            this.chunkSize = chunkSize;
+        }
+
+        public boolean readsWholeRecord() {
+            return wholeRecord;
+        }
+
+        public int chunkSize() {
+            return chunkSize;
+        }
+
+        /**
+         * The BMC could not return a whole record in one response
+         */
+        public void wholeRecordRejected() {
+            wholeRecord = false;
+            if (model.isPresent()) {
+                model.get().wholeRecordRejected();
+            }
+        }
+
+        /**
+         * The BMC could not return a chunk of the given size
+         *
+         * @return the chunk size to try next
+         */
+        public int chunkRejected(int size) {
+            int smaller = Math.max(MIN_CHUNK_SIZE, size / 2);
+            if (smaller < chunkSize) {
+                chunkSize = smaller;
+            }
+            if (model.isPresent()) {
+                model.get().chunkRejected(size);
+            }
+            return smaller;
+        }
+    }
+
+    private final int initialChunkSize;
+    private final ConcurrentMap<String, Strategy> bmcs = new ConcurrentHashMap<String, Strategy>();
+    private final ConcurrentMap<String, Strategy> models = new ConcurrentHashMap<String, Strategy>();
+
+    public SdrReadStrategies(int initialChunkSize) {
+        this.initialChunkSize = initialChunkSize;
+    }
+
+    public Strategy forBmc(String host, Optional<String> model) {
+        Strategy strategy = bmcs.get(host);
+        if (strategy != null) {
+            return strategy;
+        }
+
+        Optional<Strategy> modelStrategy = Optional.absent();
+        boolean wholeRecord = true;
+        int chunkSize = initialChunkSize;
+        if (model.isPresent()) {
+            Strategy created = new Strategy(Optional.<Strategy>absent(), true, initialChunkSize);
+            Strategy existing = models.putIfAbsent(model.get(), created);
+            modelStrategy = Optional.of(existing != null ? existing : created);
+            wholeRecord = modelStrategy.get().readsWholeRecord();
+            chunkSize = modelStrategy.get().chunkSize();
+        }
+
+        strategy = new Strategy(modelStrategy, wholeRecord, chunkSize);
+        Strategy existing = bmcs.putIfAbsent(host, strategy);
+        return existing != null ? existing : strategy;
+    }
+
+    /**
+     * Forget the strategy of a BMC that isn't polled anymore, what its model learned is kept
+     */
+    public void remove(String host) {
+        bmcs.remove(host);
+    }
+}
@@ -0,0 +1,52 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.FullSensorRecord;
+
+/**
+ * Raw-to-value conversion of one sensor, compiled once from its {@link FullSensorRecord}.
+ *
+ * The SDR formula is y = L[(M * x + B * 10^Bexp) * 10^Rexp] (section 36.3 of the IPMI specification ver. 2.0). For
+ * linear sensors with unsigned readings this is a straight line in the raw byte and is kept as a slope and an
+ * intercept. Anything else (non-linear L, signed analog formats) is tabulated over the 256 possible raw values.
+ * Either way converting a reading allocates nothing.
+ */
+public final class SensorConverter {
+
+    private static final int RAW_VALUES = 256;
+    private static final double TOLERANCE = 1e-9;
+
+    final double slope;
+    final double intercept;
+    /**
+     * Values of the raw readings, null for a straight line
+     */
+    final double[] table;
+
+    private SensorConverter(double slope, double intercept, double[] table) {
+        this.slope = slope;
+        this.intercept = intercept;
+        this.table = table;
+    }
+
+    public static SensorConverter compile(FullSensorRecord record) {
+        double[] values = new double[RAW_VALUES];
+        for (int raw = 0; raw < RAW_VALUES; raw++) {
+            values[raw] = record.calcFormula(raw);
+        }
+
+        double intercept = values[0];
+        double slope = values[1] - values[0];
+        for (int raw = 0; raw < RAW_VALUES; raw++) {
+            double expected = intercept + slope * raw;
+            if (Math.abs(values[raw] - expected) > TOLERANCE * Math.max(1.0, Math.abs(values[raw]))) {
+                return new SensorConverter(0, 0, values);
+            }
+        }
+        return new SensorConverter(slope, intercept, null);
+    }
+
+    public double convert(int raw) {
+        raw &= 0xff;
+        return table == null ? intercept + slope * raw : table[raw];
+    }
+}
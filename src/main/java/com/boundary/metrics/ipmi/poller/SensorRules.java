@@ -0,0 +1,119 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sensor configurations for the records of an SDR repository, from the configured
+ * {@link IPMIPollerConfiguration.SensorRuleConfiguration}s. Rules are tried in order, the first one matching a record
+ * applies.
+ */
+final class SensorRules {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(name|source|[1-9])\\}");
+    private static final Pattern NOT_ALPHANUMERIC = Pattern.compile("[^A-Z0-9]+");
+
+    private static class Rule {
+        final IPMIPollerConfiguration.SensorRuleConfiguration config;
+        final Optional<Pattern> name;
+
+        Rule(IPMIPollerConfiguration.SensorRuleConfiguration config) {
+            this.config = config;
+            this.name = config.namePattern != null
+                    ? Optional.of(Pattern.compile(config.namePattern))
+                    : Optional.<Pattern>absent();
+        }
+    }
+
+    private final List<Rule> rules;
+
+    SensorRules(List<IPMIPollerConfiguration.SensorRuleConfiguration> rules) {
+        ImmutableList.Builder<Rule> compiled = ImmutableList.builder();
+        for (IPMIPollerConfiguration.SensorRuleConfiguration rule : rules) {
+            compiled.add(new Rule(rule));
+        }
+        this.rules = compiled.build();
+    }
+
+    /**
+     * Configuration of a sensor of the given table, for an entity of the given source
+     *
+     * @return absent if no rule matches the sensor
+     */
+    Optional<IPMIPollerConfiguration.SensorConfiguration> map(SensorTable table, int sensor, String source) {
+        String name = Strings.nullToEmpty(table.name(sensor)).trim();
+        for (Rule rule : rules) {
+            if (!matches(rule.config.sensorType, table.type(sensor))
+                    || !matches(rule.config.sensorUnit, table.unit(sensor))) {
+                continue;
+            }
+            Matcher groups = null;
+            if (rule.name.isPresent()) {
+                groups = rule.name.get().matcher(name);
+                if (!groups.matches()) {
+                    continue;
+                }
+            }
+
+            IPMIPollerConfiguration.SensorRuleConfiguration r = rule.config;
+            IPMIPollerConfiguration.SensorConfiguration s = new IPMIPollerConfiguration.SensorConfiguration();
+            s.sensorId = sensor;
+            s.metric = expand(r.metric, name, source, groups);
+            s.description = expand(r.description, name, source, groups);
+            s.displayName = expand(r.displayName, name, source, groups);
+            s.displayNameShort = expand(r.displayNameShort, name, source, groups);
+            s.unit = r.unit;
+            s.defaultAggregate = r.defaultAggregate;
+            s.source = expand(r.source, name, source, groups);
+            s.deadband = r.deadband;
+            s.reportExtremes = r.reportExtremes;
+            return Optional.of(s);
+        }
+        return Optional.absent();
+    }
+
+    private static boolean matches(String expected, Enum<?> actual) {
+        return expected == null || (actual != null && actual.name().equalsIgnoreCase(expected));
+    }
+
+    private static String expand(String template, String name, String source, Matcher groups) {
+        if (template == null) {
+            return null;
+        }
+        Matcher placeholder = PLACEHOLDER.matcher(template);
+        StringBuffer expanded = new StringBuffer();
+        while (placeholder.find()) {
+            String key = placeholder.group(1);
+            String value;
+            if (key.equals("name")) {
+                value = normalize(name);
+            } else if (key.equals("source")) {
+                value = source;
+            } else {
+                int group = Integer.parseInt(key);
+                value = groups != null && group <= groups.groupCount()
+                        ? Strings.nullToEmpty(groups.group(group))
+                        : "";
+            }
+            placeholder.appendReplacement(expanded, Matcher.quoteReplacement(value));
+        }
+        placeholder.appendTail(expanded);
+        return expanded.toString();
+    }
+
+    /**
+     * "CPU1 Temp" becomes "CPU1_TEMP"
+     */
+    private static String normalize(String name) {
+        String upper = NOT_ALPHANUMERIC.matcher(name.toUpperCase(Locale.ROOT)).replaceAll("_");
+        return CharMatcher.is('_').trimFrom(upper);
+    }
+}
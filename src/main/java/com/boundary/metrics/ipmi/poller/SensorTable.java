@@ -0,0 +1,227 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.google.common.base.Optional;
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.FullSensorRecord;
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.RateUnit;
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.SensorRecord;
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.SensorType;
+import com.veraxsystems.vxipmi.coding.commands.sdr.record.SensorUnit;
+import com.veraxsystems.vxipmi.common.TypeConverter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The part of the SDR records of a BMC that polling needs, in parallel arrays: conversion, thresholds, name, type and
+ * units of each sensor with a full sensor record. Sensor numbers index a table of slots in those arrays, so a lookup
+ * is two array reads. Names are interned, BMCs of the same model share them.
+ *
+ * The raw records are kept, a few dozen bytes each, and parsed again by {@link #record(int)} for diagnostics.
+ * Immutable once built.
+ */
+public final class SensorTable {
+
+    static final int SENSORS = 256;
+    /**
+     * Thresholds of a sensor, from the lowest to the highest: lower non-recoverable, lower critical, lower
+     * non-critical, upper non-critical, upper critical, upper non-recoverable
+     */
+    static final int THRESHOLDS = 6;
+    /**
+     * Bit of each threshold, in the order above, in the readable threshold mask of a full sensor record
+     */
+    private static final int[] READABLE_BITS = {2, 1, 0, 3, 4, 5};
+    /**
+     * Offsets in a full sensor record, header included (see section 43.1 of the IPMI specification ver. 2.0)
+     */
+    private static final int CAPABILITIES_OFFSET = 11;
+    private static final int EVENT_READING_TYPE_OFFSET = 13;
+    private static final int READABLE_THRESHOLDS_OFFSET = 18;
+    private static final int THRESHOLD_BASED = 0x01;
+    private static final short ABSENT = -1;
+
+    private final short[] slots = new short[SENSORS];
+    private final int[] sensors;
+    private final int[] recordIds;
+    private final String[] names;
+    private final SensorType[] types;
+    private final SensorUnit[] units;
+    private final RateUnit[] rates;
+    private final double[] slopes;
+    private final double[] intercepts;
+    /**
+     * Values of the 256 raw readings of non-linear sensors, null for linear ones
+     */
+    private final double[][] curves;
+    private final double[] resolutions;
+    private final double[] thresholds;
+    private final byte[][] raw;
+
+    /**
+     * @param records raw SDR records, of any type. Records other than full sensor records are left out, and so are
+     *                those the IPMI library doesn't understand. The last record of a sensor number wins.
+     */
+    public SensorTable(List<byte[]> records) {
+        Arrays.fill(slots, ABSENT);
+        int[] sensors = new int[SENSORS];
+        FullSensorRecord[] parsed = new FullSensorRecord[SENSORS];
+        byte[][] raw = new byte[SENSORS][];
+        int size = 0;
+        for (byte[] data : records) {
+            SensorRecord record;
+            try {
+                record = SensorRecord.populateSensorRecord(data);
+            } catch (IllegalArgumentException e) {
+                // Skip it, one of the sensors isn't understood by this library
+                continue;
+            }
+
+            // Only full sensor records have the conversion factors of their
+            // readings (see IPMI specification for details).
+            if (record instanceof FullSensorRecord) {
+                FullSensorRecord fsr = (FullSensorRecord) record;
+                int sensor = TypeConverter.byteToInt(fsr.getSensorNumber());
+                int slot = slots[sensor];
+                if (slot == ABSENT) {
+                    slot = size++;
+                    slots[sensor] = (short) slot;
+                    sensors[slot] = sensor;
+                }
+                parsed[slot] = fsr;
+                raw[slot] = data;
+            }
+        }
+
+        this.sensors = Arrays.copyOf(sensors, size);
+        this.raw = Arrays.copyOf(raw, size);
+        recordIds = new int[size];
+        names = new String[size];
+        types = new SensorType[size];
+        units = new SensorUnit[size];
+        rates = new RateUnit[size];
+        slopes = new double[size];
+        intercepts = new double[size];
+        curves = new double[size][];
+        resolutions = new double[size];
+        thresholds = new double[size * THRESHOLDS];
+        for (int slot = 0; slot < size; slot++) {
+            FullSensorRecord r = parsed[slot];
+            recordIds[slot] = r.getId();
+            names[slot] = r.getName() != null ? MonitoredMetric.intern(r.getName()) : null;
+            types[slot] = r.getSensorType();
+            units[slot] = r.getSensorBaseUnit();
+            rates[slot] = r.getRateUnit();
+            SensorConverter converter = SensorConverter.compile(r);
+            slopes[slot] = converter.slope;
+            intercepts[slot] = converter.intercept;
+            curves[slot] = converter.table;
+            resolutions[slot] = Math.abs(r.getSensorResolution());
+            double[] values = {
+                    r.getLowerNonRecoverableThreshold(), r.getLowerCriticalThreshold(),
+                    r.getLowerNonCriticalThreshold(), r.getUpperNonCriticalThreshold(),
+                    r.getUpperCriticalThreshold(), r.getUpperNonRecoverableThreshold()
+            };
+            int readable = readableThresholds(this.raw[slot]);
+            for (int t = 0; t < THRESHOLDS; t++) {
+                double value = values[t];
+                boolean present = (readable & (1 << READABLE_BITS[t])) != 0 && !Double.isInfinite(value);
+                thresholds[slot * THRESHOLDS + t] = present ? value : Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Number of sensors in the table
+     */
+    public int size() {
+        return sensors.length;
+    }
+
+    /**
+     * Sensor numbers, in the order of their records in the repository
+     */
+    public int[] sensors() {
+        return sensors.clone();
+    }
+
+    public boolean contains(int sensor) {
+        return slot(sensor) != ABSENT;
+    }
+
+    /**
+     * @return the value of a raw reading of a sensor of the table
+     */
+    public double convert(int sensor, int raw) {
+        int slot = slots[sensor];
+        raw &= 0xff;
+        double[] curve = curves[slot];
+        return curve == null ? intercepts[slot] + slopes[slot] * raw : curve[raw];
+    }
+
+    public int recordId(int sensor) {
+        return recordIds[slots[sensor]];
+    }
+
+    /**
+     * @return null if the record has no name
+     */
+    public String name(int sensor) {
+        return names[slots[sensor]];
+    }
+
+    public SensorType type(int sensor) {
+        return types[slots[sensor]];
+    }
+
+    public SensorUnit unit(int sensor) {
+        return units[slots[sensor]];
+    }
+
+    public RateUnit rate(int sensor) {
+        return rates[slots[sensor]];
+    }
+
+    /**
+     * Absolute resolution of the sensor, NaN if unknown
+     */
+    double resolution(int sensor) {
+        return resolutions[slots[sensor]];
+    }
+
+    /**
+     * @param threshold index of the threshold, see {@link #THRESHOLDS}
+     * @return NaN if the sensor doesn't have this threshold, according to the readable threshold mask of its record
+     */
+    double threshold(int sensor, int threshold) {
+        return thresholds[slots[sensor] * THRESHOLDS + threshold];
+    }
+
+    /**
+     * Parse the full record of a sensor again
+     */
+    public Optional<FullSensorRecord> record(int sensor) {
+        int slot = slot(sensor);
+        if (slot == ABSENT) {
+            return Optional.absent();
+        }
+        return Optional.of((FullSensorRecord) SensorRecord.populateSensorRecord(raw[slot]));
+    }
+
+    /**
+     * Readable threshold mask of a full sensor record, 0 unless the sensor is threshold based and has thresholds. The
+     * threshold fields of the record are only meaningful for the thresholds of the mask.
+     */
+    private static int readableThresholds(byte[] record) {
+        if (record.length <= READABLE_THRESHOLDS_OFFSET
+                || (record[EVENT_READING_TYPE_OFFSET] & 0xff) != THRESHOLD_BASED
+                // threshold access support, 00b for no thresholds
+                || (record[CAPABILITIES_OFFSET] & 0x0c) == 0) {
+            return 0;
+        }
+        return record[READABLE_THRESHOLDS_OFFSET] & 0x3f;
+    }
+
+    private int slot(int sensor) {
+        return sensor >= 0 && sensor < SENSORS ? slots[sensor] : ABSENT;
+    }
+}
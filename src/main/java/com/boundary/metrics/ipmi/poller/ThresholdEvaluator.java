@@ -0,0 +1,144 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.boundary.metrics.ipmi.client.metrics.Event;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.Arrays;
+
+/**
+ * Compares readings with the thresholds of their SDR record, and tells when a sensor crosses into another threshold
+ * level: non-critical, critical, non-recoverable, or back to normal.
+ *
+ * A threshold is asserted when a reading reaches it, and only deasserted once readings clear it by the hysteresis
+ * margin, a fraction of the threshold and at least the sensor resolution, so a reading hovering around a threshold
+ * doesn't flap. Only the thresholds the SDR record of the sensor marks as readable are evaluated.
+ *
+ * Thresholds come from the {@link SensorTable} of the BMC, only the asserted level of each sensor is kept here, by
+ * sensor number, so it survives changes of the polled sensors. Not thread safe, a poller evaluates one cycle at a
+ * time.
+ */
+final class ThresholdEvaluator {
+
+    /**
+     * Thresholds in the order of their index, from the lowest to the highest value
+     */
+    private static final String[] NAMES = {
+            "lower non-recoverable", "lower critical", "lower non-critical",
+            "upper non-critical", "upper critical", "upper non-recoverable"
+    };
+    private static final int THRESHOLDS = SensorTable.THRESHOLDS;
+    private static final int NORMAL = -1;
+    private static final int SENSORS = SensorTable.SENSORS;
+
+    private final String address;
+    private final SensorTable table;
+    private final double hysteresis;
+    /**
+     * Asserted threshold of each sensor, NORMAL if none
+     */
+    private final byte[] states = new byte[SENSORS];
+
+    ThresholdEvaluator(String address, SensorTable table, double hysteresis) {
+        this.address = address;
+        this.table = table;
+        this.hysteresis = hysteresis;
+        Arrays.fill(states, (byte) NORMAL);
+    }
+
+    /**
+     * Evaluate a reading of a sensor
+     *
+     * @return the event to send if the sensor changed level
+     */
+    Optional<Event> evaluate(MonitoredMetric sensor, double value, long now) {
+        int id = sensor.ipmiid;
+        if (!table.contains(id) || Double.isNaN(value)) {
+            return Optional.absent();
+        }
+        int current = states[id];
+        int asserted = crossed(id, value, false);
+        int next;
+        if (severity(asserted) >= severity(current)) {
+            next = asserted;
+        } else {
+            // going back towards normal, as far as the hysteresis allows
+            int held = crossed(id, value, true);
+            next = severity(held) < severity(current) ? held : current;
+        }
+        if (next == current) {
+            return Optional.absent();
+        }
+        states[id] = (byte) next;
+        return Optional.of(event(sensor, next, value, now));
+    }
+
+    /**
+     * Most severe threshold the value crossed, NORMAL if none
+     *
+     * @param held whether the hysteresis margin still counts as crossed, for thresholds already asserted
+     */
+    private int crossed(int sensor, double value, boolean held) {
+        // from the most severe level: non-recoverable, critical, non-critical
+        for (int level = 0; level < THRESHOLDS / 2; level++) {
+            int upper = THRESHOLDS - 1 - level;
+            double t = table.threshold(sensor, upper);
+            if (!Double.isNaN(t) && (held ? value > t - margin(sensor, t) : value >= t)) {
+                return upper;
+            }
+            int lower = level;
+            t = table.threshold(sensor, lower);
+            if (!Double.isNaN(t) && (held ? value < t + margin(sensor, t) : value <= t)) {
+                return lower;
+            }
+        }
+        return NORMAL;
+    }
+
+    /**
+     * Hysteresis margin of a threshold
+     */
+    private double margin(int sensor, double threshold) {
+        double resolution = table.resolution(sensor);
+        return Math.max(hysteresis * Math.abs(threshold), Double.isNaN(resolution) ? 0 : resolution);
+    }
+
+    /**
+     * 0 for normal, up to 3 for non-recoverable
+     */
+    private static int severity(int threshold) {
+        if (threshold == NORMAL) {
+            return 0;
+        }
+        return threshold < THRESHOLDS / 2 ? THRESHOLDS / 2 - threshold : threshold - THRESHOLDS / 2 + 1;
+    }
+
+    private Event event(MonitoredMetric sensor, int threshold, double value, long now) {
+        String name = table.name(sensor.ipmiid) != null ? table.name(sensor.ipmiid) : "sensor " + sensor.ipmiid;
+        ImmutableMap.Builder<String, Object> properties = ImmutableMap.<String, Object>builder()
+                .put("host", address)
+                .put("sensorId", sensor.ipmiid)
+                .put("sensorName", name)
+                .put("reading", value);
+
+        String message;
+        Event.Severity severity;
+        if (threshold == NORMAL) {
+            message = String.format("%s is back to normal at %s", name, value);
+            severity = Event.Severity.INFO;
+        } else {
+            double t = table.threshold(sensor.ipmiid, threshold);
+            message = String.format("%s is %s, %s %s threshold %s", name, value,
+                    threshold < THRESHOLDS / 2 ? "below" : "above", NAMES[threshold], t);
+            severity = Event.Severity.values()[severity(threshold)];
+            properties.put("threshold", NAMES[threshold]).put("thresholdValue", t);
+        }
+        String source = sensor.source != null ? sensor.source : address;
+        return new Event(name + " on " + source, message, severity,
+                threshold == NORMAL ? Event.Status.OK : Event.Status.OPEN,
+                new DateTime(now, DateTimeZone.UTC).toString(), new Event.Source(source, "host"),
+                properties.build());
+    }
+}
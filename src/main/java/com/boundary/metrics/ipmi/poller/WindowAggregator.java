@@ -0,0 +1,159 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Downsampling of the readings of one poller: the polls of a report window are folded, per sensor, into the
+ * sensor's defaultAggregate, and one value per sensor is reported when the window closes. Sensors asking for it also
+ * report the window's minimum and maximum, through their companion metrics.
+ *
+ * The reported metrics are the sensors, in order, followed by the companions. Accumulators are primitive arrays
+ * matched to the sensors by position, so nothing is allocated per poll. Not thread safe, a poller aggregates one
+ * cycle at a time.
+ */
+final class WindowAggregator {
+
+    private static final int AVG = 0;
+    private static final int SUM = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+
+    /**
+     * A window closes with the last poll expected to fall in it. Polls come a period apart, so half a period of
+     * slack keeps a slightly late poll in its window.
+     */
+    private final long closeAfterMillis;
+    private final List<MonitoredMetric> reported;
+
+    private final int[] aggregates;
+    private final int[] minSlots;
+    private final int[] maxSlots;
+    private final int[] counts;
+    private final double[] sums;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] output;
+    private long windowStart = -1;
+
+    WindowAggregator(List<MonitoredMetric> sensors, long periodMillis, long windowMillis) {
+        closeAfterMillis = windowMillis - periodMillis - periodMillis / 2;
+
+        int n = sensors.size();
+        aggregates = new int[n];
+        minSlots = new int[n];
+        maxSlots = new int[n];
+        ImmutableList.Builder<MonitoredMetric> companions = ImmutableList.builder();
+        int slot = n;
+        for (int i = 0; i < n; i++) {
+            MonitoredMetric sensor = sensors.get(i);
+            aggregates[i] = aggregate(sensor.metric.aggregate);
+            minSlots[i] = -1;
+            maxSlots[i] = -1;
+            if (sensor.minimum.isPresent()) {
+                companions.add(new MonitoredMetric(sensor, sensor.minimum.get()));
+                minSlots[i] = slot++;
+            }
+            if (sensor.maximum.isPresent()) {
+                companions.add(new MonitoredMetric(sensor, sensor.maximum.get()));
+                maxSlots[i] = slot++;
+            }
+        }
+        reported = ImmutableList.<MonitoredMetric>builder().addAll(sensors).addAll(companions.build()).build();
+
+        counts = new int[n];
+        sums = new double[n];
+        mins = new double[n];
+        maxs = new double[n];
+        output = new double[slot];
+        reset();
+    }
+
+    /**
+     * Metrics reported by {@link #output()}, by position
+     */
+    List<MonitoredMetric> reported() {
+        return reported;
+    }
+
+    /**
+     * Fold the readings of a poll, NaN meaning no reading, into the current window
+     *
+     * @return true if the window closed, its values are then in {@link #output()} until the next call
+     */
+    boolean add(double[] readings, long now) {
+        if (windowStart < 0) {
+            windowStart = now;
+        }
+        for (int i = 0; i < readings.length; i++) {
+            double value = readings[i];
+            if (!Double.isNaN(value)) {
+                counts[i]++;
+                sums[i] += value;
+                mins[i] = Math.min(mins[i], value);
+                maxs[i] = Math.max(maxs[i], value);
+            }
+        }
+        if (now - windowStart < closeAfterMillis) {
+            return false;
+        }
+
+        Arrays.fill(output, Double.NaN);
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            switch (aggregates[i]) {
+                case SUM:
+                    output[i] = sums[i];
+                    break;
+                case MIN:
+                    output[i] = mins[i];
+                    break;
+                case MAX:
+                    output[i] = maxs[i];
+                    break;
+                default:
+                    output[i] = sums[i] / counts[i];
+            }
+            if (minSlots[i] >= 0) {
+                output[minSlots[i]] = mins[i];
+            }
+            if (maxSlots[i] >= 0) {
+                output[maxSlots[i]] = maxs[i];
+            }
+        }
+        reset();
+        return true;
+    }
+
+    /**
+     * Values of the last closed window, by position in {@link #reported()}. NaN when there is no value.
+     */
+    double[] output() {
+        return output;
+    }
+
+    private void reset() {
+        windowStart = -1;
+        Arrays.fill(counts, 0);
+        Arrays.fill(sums, 0);
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+    }
+
+    private static int aggregate(String name) {
+        switch (name) {
+            case "sum":
+                return SUM;
+            case "min":
+                return MIN;
+            case "max":
+                return MAX;
+            default:
+                return AVG;
+        }
+    }
+}
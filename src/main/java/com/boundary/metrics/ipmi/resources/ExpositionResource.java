@@ -0,0 +1,28 @@
+package com.boundary.metrics.ipmi.resources;
+
+import com.boundary.metrics.ipmi.exposition.TextExposition;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Latest readings in the Prometheus text format, for scrapers
+ */
+@Path("/measurements")
+public class ExpositionResource {
+
+    private final TextExposition exposition;
+
+    public ExpositionResource(TextExposition exposition) {
+        this.exposition = checkNotNull(exposition);
+    }
+
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public byte[] get() {
+        return exposition.render();
+    }
+}
@@ -1,9 +1,297 @@
 package com.boundary.metrics.ipmi.resources;
 
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.boundary.metrics.ipmi.history.RingBuffer;
+import com.boundary.metrics.ipmi.history.SensorHistory;
+import com.boundary.metrics.ipmi.poller.IPMIMetricsPoller;
+import com.boundary.metrics.ipmi.poller.MonitoredEntity;
+import com.boundary.metrics.ipmi.poller.MonitoredEntityFactory;
+import com.boundary.metrics.ipmi.shard.ShardCoordinator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.net.InetAddresses;
+import io.dropwizard.util.Duration;
+
+import javax.validation.Valid;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
+/**
+ * Lists and changes the monitored entities and their sensors while the poller runs. Entities are identified by the
+ * IP address of their BMC. Changes are serialized, so concurrent edits of the same entity don't lose each other.
+ */
 @Path("/")
+@Produces(MediaType.APPLICATION_JSON)
+@Consumes(MediaType.APPLICATION_JSON)
 public class MonitoredEntitiesResource {
 
+    /**
+     * An entity as returned by this resource. Credentials are left out.
+     */
+    public static class EntityView {
+        @JsonProperty
+        public final String host;
+        @JsonProperty
+        public final String username;
+        @JsonProperty
+        public final String source;
+        @JsonProperty
+        public final String model;
+        @JsonProperty
+        public final Duration pollFrequency;
+        @JsonProperty
+        public final Duration reportWindow;
+        @JsonProperty
+        public final boolean discoverSensors;
+        @JsonProperty
+        public final List<IPMIPollerConfiguration.SensorConfiguration> sensors;
+        @JsonProperty
+        public final boolean polled;
+
+        public EntityView(IPMIPollerConfiguration.EntityConfiguration e, boolean polled) {
+            this.host = e.host.getHostAddress();
+            this.username = e.username;
+            this.source = e.source;
+            this.model = e.model;
+            this.pollFrequency = e.pollFrequency;
+            this.reportWindow = e.reportWindow;
+            this.discoverSensors = e.discoverSensors;
+            this.sensors = e.sensors;
+            this.polled = polled;
+        }
+    }
+
+    private final ShardCoordinator coordinator;
+    private final MonitoredEntityFactory entityFactory;
+    private final Optional<SensorHistory> history;
+
+    public MonitoredEntitiesResource(ShardCoordinator coordinator, MonitoredEntityFactory entityFactory,
+                                     Optional<SensorHistory> history) {
+        this.coordinator = checkNotNull(coordinator);
+        this.entityFactory = checkNotNull(entityFactory);
+        this.history = checkNotNull(history);
+    }
+
+    @GET
+    @Path("assignment")
+    public ShardCoordinator.Assignment getAssignment() {
+        return coordinator.getAssignment();
+    }
+
+    @GET
+    @Path("entities")
+    public List<EntityView> getEntities() {
+        ImmutableList.Builder<EntityView> views = ImmutableList.builder();
+        for (IPMIPollerConfiguration.EntityConfiguration e : coordinator.configurations()) {
+            views.add(view(e));
+        }
+        return views.build();
+    }
+
+    @GET
+    @Path("entities/{host}")
+    public EntityView getEntity(@PathParam("host") String host) {
+        return view(entity(host));
+    }
+
+    /**
+     * Add an entity, or replace the configuration of an existing one
+     */
+    @PUT
+    @Path("entities/{host}")
+    public synchronized EntityView putEntity(@PathParam("host") String host,
+                                             @Valid IPMIPollerConfiguration.EntityConfiguration entity) {
+        if (!normalize(host).equals(entity.host.getHostAddress())) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                    .entity("Entity host " + entity.host.getHostAddress() + " doesn't match " + host).build());
+        }
+        return put(entity);
+    }
+
+    @DELETE
+    @Path("entities/{host}")
+    public synchronized Response deleteEntity(@PathParam("host") String host) {
+        if (!coordinator.remove(normalize(host))) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return Response.noContent().build();
+    }
+
+    @GET
+    @Path("entities/{host}/sensors")
+    public List<IPMIPollerConfiguration.SensorConfiguration> getSensors(@PathParam("host") String host) {
+        return entity(host).sensors;
+    }
+
+    /**
+     * Add a sensor to an entity, or replace the configuration of one of its sensors
+     */
+    @PUT
+    @Path("entities/{host}/sensors/{sensorId}")
+    public synchronized EntityView putSensor(@PathParam("host") String host, @PathParam("sensorId") int sensorId,
+                                             @Valid IPMIPollerConfiguration.SensorConfiguration sensor) {
+        sensor.sensorId = sensorId;
+        IPMIPollerConfiguration.EntityConfiguration updated = copy(entity(host));
+        boolean replaced = false;
+        for (int i = 0; i < updated.sensors.size(); i++) {
+            if (updated.sensors.get(i).sensorId == sensorId) {
+                updated.sensors.set(i, sensor);
+                replaced = true;
+            }
+        }
+        if (!replaced) {
+            updated.sensors.add(sensor);
+        }
+        return put(updated);
+    }
+
+    @DELETE
+    @Path("entities/{host}/sensors/{sensorId}")
+    public synchronized Response deleteSensor(@PathParam("host") String host, @PathParam("sensorId") int sensorId) {
+        IPMIPollerConfiguration.EntityConfiguration updated = copy(entity(host));
+        boolean removed = false;
+        for (Iterator<IPMIPollerConfiguration.SensorConfiguration> i = updated.sensors.iterator(); i.hasNext(); ) {
+            if (i.next().sensorId == sensorId) {
+                i.remove();
+                removed = true;
+            }
+        }
+        if (!removed) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        put(updated);
+        return Response.noContent().build();
+    }
+
+    /**
+     * Recent readings of a sensor polled by this instance: the last {@code last} ones if given, otherwise those
+     * between {@code from} (inclusive) and {@code to} (exclusive), in milliseconds since the epoch.
+     */
+    @GET
+    @Path("entities/{host}/sensors/{sensorId}/readings")
+    public RingBuffer.Points getReadings(@PathParam("host") String host, @PathParam("sensorId") int sensorId,
+                                         @QueryParam("last") Integer last, @QueryParam("from") Long from,
+                                         @QueryParam("to") Long to) {
+        RingBuffer buffer = buffer(host, sensorId);
+        if (last != null) {
+            return buffer.last(last);
+        }
+        return buffer.range(from != null ? from : Long.MIN_VALUE, to != null ? to : Long.MAX_VALUE);
+    }
+
+    /**
+     * Count, min, max and average of the recent readings of a sensor between {@code from} (inclusive) and {@code to}
+     * (exclusive), in milliseconds since the epoch.
+     */
+    @GET
+    @Path("entities/{host}/sensors/{sensorId}/readings/summary")
+    public RingBuffer.Summary getReadingsSummary(@PathParam("host") String host, @PathParam("sensorId") int sensorId,
+                                                 @QueryParam("from") Long from, @QueryParam("to") Long to) {
+        return buffer(host, sensorId).summarize(from != null ? from : Long.MIN_VALUE,
+                to != null ? to : Long.MAX_VALUE);
+    }
+
+    /**
+     * The full SDR record of a sensor of an entity polled by this instance, for diagnostics. Pollers only keep what
+     * polling needs of the records, the record is parsed again on each request.
+     */
+    @GET
+    @Path("entities/{host}/sensors/{sensorId}/record")
+    public Map<String, Object> getSensorRecord(@PathParam("host") String host, @PathParam("sensorId") int sensorId) {
+        Optional<IPMIMetricsPoller> poller = coordinator.poller(normalize(host));
+        Optional<Map<String, Object>> record = poller.isPresent()
+                ? poller.get().sensorRecord(sensorId)
+                : Optional.<Map<String, Object>>absent();
+        if (!record.isPresent()) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return record.get();
+    }
+
+    /**
+     * Current reading interval of each sensor of an entity polled by this instance with adaptive polling, in
+     * milliseconds, by sensor number
+     */
+    @GET
+    @Path("entities/{host}/poll-intervals")
+    public Map<Integer, Long> getPollIntervals(@PathParam("host") String host) {
+        Optional<IPMIMetricsPoller> poller = coordinator.poller(normalize(host));
+        Optional<Map<Integer, Long>> intervals = poller.isPresent()
+                ? poller.get().pollIntervals()
+                : Optional.<Map<Integer, Long>>absent();
+        if (!intervals.isPresent()) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return intervals.get();
+    }
+
+    private RingBuffer buffer(String host, int sensorId) {
+        Optional<RingBuffer> buffer = history.isPresent()
+                ? history.get().buffer(normalize(host), sensorId)
+                : Optional.<RingBuffer>absent();
+        if (!buffer.isPresent()) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return buffer.get();
+    }
+
+    private EntityView put(IPMIPollerConfiguration.EntityConfiguration entity) {
+        // created in the background, the first readings of new metrics may come before them
+        MonitoredEntity monitored = entityFactory.create(entity);
+        entityFactory.defineMetrics();
+        coordinator.put(entity, monitored);
+        return view(entity);
+    }
+
+    private IPMIPollerConfiguration.EntityConfiguration entity(String host) {
+        Optional<IPMIPollerConfiguration.EntityConfiguration> entity = coordinator.configuration(normalize(host));
+        if (!entity.isPresent()) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return entity.get();
+    }
+
+    private EntityView view(IPMIPollerConfiguration.EntityConfiguration e) {
+        return new EntityView(e, coordinator.isPolled(e.host.getHostAddress()));
+    }
+
+    /**
+     * Configurations in the catalogue are never modified in place, changes are made on a copy
+     */
+    private static IPMIPollerConfiguration.EntityConfiguration copy(IPMIPollerConfiguration.EntityConfiguration e) {
+        IPMIPollerConfiguration.EntityConfiguration copy = new IPMIPollerConfiguration.EntityConfiguration();
+        copy.host = e.host;
+        copy.username = e.username;
+        copy.password = e.password;
+        copy.source = e.source;
+        copy.model = e.model;
+        copy.pollFrequency = e.pollFrequency;
+        copy.reportWindow = e.reportWindow;
+        copy.discoverSensors = e.discoverSensors;
+        copy.sensors = Lists.newArrayList(e.sensors);
+        return copy;
+    }
 
+    /**
+     * Addresses are matched in their canonical form, so any spelling of an IPv6 address finds its entity
+     */
+    private static String normalize(String host) {
+        return InetAddresses.isInetAddress(host) ? InetAddresses.forString(host).getHostAddress() : host;
+    }
 }
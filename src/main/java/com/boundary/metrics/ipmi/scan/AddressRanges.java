@@ -0,0 +1,96 @@
+package com.boundary.metrics.ipmi.scan;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.net.InetAddresses;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * IPv4 addresses of a list of CIDR blocks (10.0.0.0/24) and ranges (10.0.0.10-10.0.0.99). Network and broadcast
+ * addresses of CIDR blocks are left out. Addresses are kept as unsigned ints in longs.
+ */
+final class AddressRanges implements Iterable<InetAddress> {
+
+    /**
+     * More than any sensible scan, a /12
+     */
+    static final long MAX_ADDRESSES = 1 << 20;
+
+    private final long[] firsts;
+    private final long[] lasts;
+    private final long size;
+
+    private AddressRanges(long[] firsts, long[] lasts, long size) {
+        this.firsts = firsts;
+        this.lasts = lasts;
+        this.size = size;
+    }
+
+    static AddressRanges parse(List<String> ranges) {
+        long[] firsts = new long[ranges.size()];
+        long[] lasts = new long[ranges.size()];
+        long size = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            String range = ranges.get(i).trim();
+            int slash = range.indexOf('/');
+            int dash = range.indexOf('-');
+            if (slash >= 0) {
+                int prefix = Integer.parseInt(range.substring(slash + 1));
+                checkArgument(prefix >= 0 && prefix <= 32, "Invalid prefix length in %s", range);
+                long mask = prefix == 0 ? 0 : (0xffffffffL << (32 - prefix)) & 0xffffffffL;
+                long network = address(range.substring(0, slash)) & mask;
+                long broadcast = network | (~mask & 0xffffffffL);
+                firsts[i] = prefix < 31 ? network + 1 : network;
+                lasts[i] = prefix < 31 ? broadcast - 1 : broadcast;
+            } else if (dash >= 0) {
+                firsts[i] = address(range.substring(0, dash));
+                lasts[i] = address(range.substring(dash + 1));
+                checkArgument(firsts[i] <= lasts[i], "Range %s ends before it starts", range);
+            } else {
+                firsts[i] = address(range);
+                lasts[i] = firsts[i];
+            }
+            size += lasts[i] - firsts[i] + 1;
+        }
+        checkArgument(size <= MAX_ADDRESSES, "Scan of %s addresses is too large, at most %s allowed", size,
+                MAX_ADDRESSES);
+        return new AddressRanges(firsts, lasts, size);
+    }
+
+    long size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<InetAddress> iterator() {
+        return new AbstractIterator<InetAddress>() {
+            private int range;
+            private long next = firsts.length > 0 ? firsts[0] : 0;
+
+            @Override
+            protected InetAddress computeNext() {
+                while (range < firsts.length && next > lasts[range]) {
+                    range++;
+                    if (range < firsts.length) {
+                        next = firsts[range];
+                    }
+                }
+                if (range == firsts.length) {
+                    return endOfData();
+                }
+                return InetAddresses.fromInteger((int) next++);
+            }
+        };
+    }
+
+    private static long address(String s) {
+        InetAddress address = InetAddresses.forString(s.trim());
+        checkArgument(address instanceof Inet4Address, "Only IPv4 addresses can be scanned, not %s", s);
+        return InetAddresses.coerceToInteger(address) & 0xffffffffL;
+    }
+}
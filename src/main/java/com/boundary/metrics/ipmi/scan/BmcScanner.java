@@ -0,0 +1,224 @@
+package com.boundary.metrics.ipmi.scan;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.boundary.metrics.ipmi.poller.MonitoredEntityFactory;
+import com.boundary.metrics.ipmi.shard.ShardCoordinator;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableMap;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Finds BMCs by probing address ranges, and adds those accepting RMCP+ sessions to the catalogue with the scan's
+ * credentials, their sensors discovered with the sensor rules. Addresses already in the catalogue aren't probed.
+ *
+ * A probe is a session-less Get Channel Authentication Capabilities request, the first message of every session
+ * setup: BMCs answer it without credentials, telling whether they support IPMI 2.0. Probes run on a fixed pool of
+ * threads, which bounds the number of addresses probed at the same time, and BMCs are added as soon as they answer.
+ */
+public class BmcScanner implements Managed, MetricSet {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BmcScanner.class);
+
+    private static final int RMCP_PORT = 623;
+
+    private static final byte[] GET_CHANNEL_AUTH_CAPABILITIES = {
+            // RMCP: version 1.0, no ACK, class IPMI
+            0x06, 0x00, (byte) 0xff, 0x07,
+            // IPMI 1.5 session: no authentication, sequence 0, session 0, 9 bytes of message
+            0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x09,
+            // BMC address, network function App, checksum
+            0x20, 0x18, (byte) 0xc8,
+            // remote console address, sequence, Get Channel Authentication Capabilities
+            (byte) 0x81, 0x00, 0x38,
+            // current channel with IPMI 2.0 data, Administrator level, checksum
+            (byte) 0x8e, 0x04, (byte) 0xb5
+    };
+
+    private final IPMIPollerConfiguration.ScanConfiguration config;
+    private final AddressRanges ranges;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService probes;
+    private final MonitoredEntityFactory entityFactory;
+    private final ShardCoordinator coordinator;
+    private final int timeoutMillis;
+
+    private final Timer scanTimer = new Timer();
+    private final Meter probed = new Meter();
+    private final Counter found = new Counter();
+
+    private volatile boolean running;
+    private ScheduledFuture<?> schedule;
+
+    /**
+     * @param scheduler runs the scans, blocking one of its threads while a scan runs
+     * @param probes    runs the probes, its thread count is the number of addresses probed at the same time
+     */
+    public BmcScanner(IPMIPollerConfiguration.ScanConfiguration config, ScheduledExecutorService scheduler,
+                      ExecutorService probes, MonitoredEntityFactory entityFactory, ShardCoordinator coordinator) {
+        this.config = checkNotNull(config);
+        this.ranges = AddressRanges.parse(config.ranges);
+        this.scheduler = checkNotNull(scheduler);
+        this.probes = checkNotNull(probes);
+        this.entityFactory = checkNotNull(entityFactory);
+        this.coordinator = checkNotNull(coordinator);
+        this.timeoutMillis = (int) config.probeTimeout.toMilliseconds();
+    }
+
+    @Override
+    public void start() throws Exception {
+        running = true;
+        Runnable scan = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    scan();
+                } catch (RuntimeException e) {
+                    LOG.error("BMC scan failed", e);
+                }
+            }
+        };
+        long interval = config.interval.toMilliseconds();
+        schedule = interval > 0
+                ? scheduler.scheduleWithFixedDelay(scan, 0, interval, TimeUnit.MILLISECONDS)
+                : scheduler.schedule(scan, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        running = false;
+        schedule.cancel(true);
+    }
+
+    /**
+     * Probe every address not in the catalogue yet and add the BMCs found
+     */
+    public void scan() {
+        Timer.Context timer = scanTimer.time();
+        CompletionService<InetAddress> completion = new ExecutorCompletionService<InetAddress>(probes);
+        int submitted = 0;
+        for (final InetAddress address : ranges) {
+            if (coordinator.configuration(address.getHostAddress()).isPresent()) {
+                continue;
+            }
+            completion.submit(new Callable<InetAddress>() {
+                @Override
+                public InetAddress call() {
+                    return running && probe(address) ? address : null;
+                }
+            });
+            submitted++;
+        }
+
+        int added = 0;
+        try {
+            for (int i = 0; i < submitted; i++) {
+                try {
+                    InetAddress bmc = completion.take().get();
+                    if (bmc != null && add(bmc)) {
+                        added++;
+                    }
+                } catch (ExecutionException e) {
+                    LOG.warn("BMC probe failed", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            timer.stop();
+        }
+        LOG.info("Probed {} of {} scanned addresses, found {} new BMCs", submitted, ranges.size(), added);
+    }
+
+    private boolean add(InetAddress host) {
+        IPMIPollerConfiguration.EntityConfiguration entity = new IPMIPollerConfiguration.EntityConfiguration();
+        entity.host = host;
+        entity.username = config.username;
+        entity.password = config.password;
+        entity.model = config.model;
+        entity.source = config.source.replace("{host}", host.getHostAddress());
+        entity.discoverSensors = true;
+        // no listed sensor, so no metric to define until the sensors are discovered
+        if (!coordinator.putIfAbsent(entity, entityFactory.create(entity))) {
+            return false;
+        }
+        LOG.info("Found BMC at {}, polling it", host.getHostAddress());
+        found.inc();
+        return true;
+    }
+
+    private boolean probe(InetAddress address) {
+        probed.mark();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeoutMillis);
+            socket.connect(address, RMCP_PORT);
+            byte[] buffer = new byte[128];
+            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+            for (int attempt = 0; attempt <= config.probeRetries; attempt++) {
+                socket.send(new DatagramPacket(GET_CHANNEL_AUTH_CAPABILITIES, GET_CHANNEL_AUTH_CAPABILITIES.length));
+                try {
+                    socket.receive(response);
+                    return supportsRmcpPlus(buffer, response.getLength());
+                } catch (SocketTimeoutException e) {
+                    // lost, or nothing listening
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("{} Probe failed: {}", address.getHostAddress(), e.toString());
+        }
+        return false;
+    }
+
+    /**
+     * Whether a Get Channel Authentication Capabilities response announces IPMI 2.0 support. See section 22.13 of the
+     * IPMI specification ver. 2.0.
+     */
+    static boolean supportsRmcpPlus(byte[] response, int length) {
+        if (length < 5 || response[3] != 0x07) {
+            return false;
+        }
+        // a 16 bytes authentication code follows the session header unless the authentication type is none
+        int message = response[4] == 0 ? 14 : 30;
+        if (length < message + 11) {
+            return false;
+        }
+        int command = response[message + 5];
+        int completionCode = response[message + 6];
+        int authenticationSupport = response[message + 8];
+        int extendedCapabilities = response[message + 10];
+        return command == 0x38 && completionCode == 0
+                && (authenticationSupport & 0x80) != 0 && (extendedCapabilities & 0x02) != 0;
+    }
+
+    @Override
+    public Map<String, Metric> getMetrics() {
+        return ImmutableMap.<String, Metric>builder()
+                .put("bmc-scan-timer", scanTimer)
+                .put("bmc-scan-probes", probed)
+                .put("bmc-scan-found", found)
+                .build();
+    }
+}
@@ -0,0 +1,47 @@
+package com.boundary.metrics.ipmi.shard;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Maps keys to members so that adding or removing a member only moves the keys of that member. Each member is
+ * placed on the ring many times (virtual nodes) to even out the share of keys each one gets.
+ */
+public class ConsistentHashRing {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final SortedMap<Long, String> ring = new TreeMap<Long, String>();
+
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        checkArgument(virtualNodes > 0, "virtualNodes must be positive");
+        for (String member : members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * Member owning the key, null if the ring is empty
+     */
+    public String owner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        SortedMap<Long, String> tail = ring.tailMap(hash(key));
+        return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail.firstKey());
+    }
+
+    private static long hash(String value) {
+        return HASH.hashString(value, Charsets.UTF_8).asLong();
+    }
+}
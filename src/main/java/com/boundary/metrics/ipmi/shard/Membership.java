@@ -0,0 +1,16 @@
+package com.boundary.metrics.ipmi.shard;
+
+import io.dropwizard.lifecycle.Managed;
+
+import java.util.Set;
+
+/**
+ * Tells which poller instances currently share the entity list.
+ */
+public interface Membership extends Managed {
+
+    /**
+     * Ids of the live members, this instance included
+     */
+    Set<String> members();
+}
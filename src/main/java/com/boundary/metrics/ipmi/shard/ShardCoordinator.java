@@ -0,0 +1,216 @@
+package com.boundary.metrics.ipmi.shard;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.boundary.metrics.ipmi.poller.IPMIMetricsPoller;
+import com.boundary.metrics.ipmi.poller.MonitoredEntity;
+import com.boundary.metrics.ipmi.poller.PollerManager;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.dropwizard.lifecycle.Managed;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the catalogue of monitored entities and decides which of them this instance polls.
+ *
+ * Entities are assigned to the members of the {@link Membership} by consistent hashing of their address, so a
+ * member joining or leaving only moves its own share of BMCs. Membership is checked periodically, unless the
+ * rebalance interval is 0, and pollers are started and stopped as the assignment changes. Each check also starts the
+ * pollers of assigned entities that failed to start before. A single instance is just a membership of one.
+ *
+ * Entities can be added, changed and removed at runtime. Only the poller of the entity concerned is touched; every
+ * other poller keeps its session, SDR records and schedule. The catalogue isn't shared between instances, so with
+ * several members a change must be made on each of them.
+ */
+public class ShardCoordinator implements Managed {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    public static class Assignment {
+        @JsonProperty
+        public final String nodeId;
+        @JsonProperty
+        public final Set<String> members;
+        @JsonProperty
+        public final int totalEntities;
+        @JsonProperty
+        public final List<String> assignedEntities;
+
+        public Assignment(String nodeId, Set<String> members, int totalEntities, List<String> assignedEntities) {
+            this.nodeId = nodeId;
+            this.members = members;
+            this.totalEntities = totalEntities;
+            this.assignedEntities = assignedEntities;
+        }
+    }
+
+    private final String nodeId;
+    private final Membership membership;
+    private final PollerManager pollers;
+    private final ScheduledExecutorService executor;
+    private final long rebalanceMillis;
+    private final int virtualNodes;
+
+    private final Map<String, IPMIPollerConfiguration.EntityConfiguration> configurations = Maps.newLinkedHashMap();
+    private final Map<String, MonitoredEntity> entities = Maps.newLinkedHashMap();
+    private Set<String> members = ImmutableSet.of();
+    private ConsistentHashRing ring;
+    private ScheduledFuture<?> rebalancing;
+
+    public ShardCoordinator(String nodeId, Membership membership, PollerManager pollers,
+                            ScheduledExecutorService executor, long rebalanceMillis, int virtualNodes) {
+        this.nodeId = nodeId;
+        this.membership = membership;
+        this.pollers = pollers;
+        this.executor = executor;
+        this.rebalanceMillis = rebalanceMillis;
+        this.virtualNodes = virtualNodes;
+    }
+
+    @Override
+    public void start() throws Exception {
+        membership.start();
+        rebalance();
+        if (rebalanceMillis <= 0) {
+            return;
+        }
+        rebalancing = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    rebalance();
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to rebalance entities", e);
+                }
+            }
+        }, rebalanceMillis, rebalanceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (rebalancing != null) {
+            rebalancing.cancel(false);
+        }
+        membership.stop();
+    }
+
+    /**
+     * Recompute the assignment if membership changed, and start or stop pollers accordingly. Assigned entities
+     * without a poller, because it couldn't be created, are started again.
+     */
+    public synchronized void rebalance() {
+        Set<String> current = membership.members();
+        boolean changed = !current.equals(members);
+        if (changed) {
+            LOG.info("Members changed from {} to {}", members, current);
+            members = ImmutableSortedSet.copyOf(current);
+            ring = new ConsistentHashRing(members, virtualNodes);
+            for (MonitoredEntity running : pollers.entities()) {
+                if (!isAssigned(running.address.getHostAddress())) {
+                    pollers.stop(running.address.getHostAddress());
+                }
+            }
+        }
+
+        List<MonitoredEntity> assigned = Lists.newArrayList();
+        for (Map.Entry<String, MonitoredEntity> e : entities.entrySet()) {
+            if (isAssigned(e.getKey())) {
+                assigned.add(e.getValue());
+            }
+        }
+        int started = pollers.startAll(assigned);
+        if (changed) {
+            LOG.info("Polling {} of {} entities", assigned.size(), entities.size());
+        } else if (started > 0) {
+            LOG.info("Started {} pollers that failed to start before", started);
+        }
+    }
+
+    public synchronized Assignment getAssignment() {
+        ImmutableList.Builder<String> assigned = ImmutableList.builder();
+        for (MonitoredEntity e : pollers.entities()) {
+            assigned.add(e.address.getHostAddress());
+        }
+        return new Assignment(nodeId, members, entities.size(), assigned.build());
+    }
+
+    /**
+     * Add an entity to the catalogue, or replace the one with the same address. If this instance is running and owns
+     * the entity, polling starts or follows the change right away.
+     */
+    public synchronized void put(IPMIPollerConfiguration.EntityConfiguration configuration, MonitoredEntity entity) {
+        String host = entity.address.getHostAddress();
+        configurations.put(host, configuration);
+        entities.put(host, entity);
+        if (isAssigned(host)) {
+            pollers.update(entity);
+        }
+    }
+
+    /**
+     * Add an entity to the catalogue unless there already is one with the same address
+     *
+     * @return false if there already is such an entity
+     */
+    public synchronized boolean putIfAbsent(IPMIPollerConfiguration.EntityConfiguration configuration,
+                                            MonitoredEntity entity) {
+        if (entities.containsKey(entity.address.getHostAddress())) {
+            return false;
+        }
+        put(configuration, entity);
+        return true;
+    }
+
+    /**
+     * Remove an entity from the catalogue and stop polling it
+     *
+     * @return false if there is no such entity
+     */
+    public synchronized boolean remove(String host) {
+        if (entities.remove(host) == null) {
+            return false;
+        }
+        configurations.remove(host);
+        pollers.stop(host);
+        return true;
+    }
+
+    public synchronized Optional<IPMIPollerConfiguration.EntityConfiguration> configuration(String host) {
+        return Optional.fromNullable(configurations.get(host));
+    }
+
+    public synchronized List<IPMIPollerConfiguration.EntityConfiguration> configurations() {
+        return ImmutableList.copyOf(configurations.values());
+    }
+
+    /**
+     * Whether this instance is currently polling the entity
+     */
+    public boolean isPolled(String host) {
+        return pollers.poller(host).isPresent();
+    }
+
+    /**
+     * The poller of the entity, if this instance is currently polling it
+     */
+    public Optional<IPMIMetricsPoller> poller(String host) {
+        return pollers.poller(host);
+    }
+
+    private boolean isAssigned(String host) {
+        // nothing is assigned until membership is known
+        return ring != null && nodeId.equals(ring.owner(host));
+    }
+}
@@ -0,0 +1,100 @@
+package com.boundary.metrics.ipmi.shard;
+
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Membership through a directory shared by all instances, e.g. on NFS or, for testing, on the local disk. Each
+ * instance keeps touching a file named after its id; members whose file wasn't touched within the expiry are
+ * considered gone.
+ */
+public class SharedDirectoryMembership implements Membership {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedDirectoryMembership.class);
+    private static final String SUFFIX = ".member";
+
+    private final String nodeId;
+    private final File directory;
+    private final File file;
+    private final ScheduledExecutorService executor;
+    private final long heartbeatMillis;
+    private final long expiryMillis;
+    private ScheduledFuture<?> heartbeat;
+
+    public SharedDirectoryMembership(String nodeId, File directory, ScheduledExecutorService executor,
+                                     long heartbeatMillis, long expiryMillis) {
+        checkArgument(expiryMillis > heartbeatMillis, "expiry must be longer than the heartbeat interval");
+        this.nodeId = nodeId;
+        this.directory = directory;
+        this.file = new File(directory, nodeId + SUFFIX);
+        this.executor = executor;
+        this.heartbeatMillis = heartbeatMillis;
+        this.expiryMillis = expiryMillis;
+    }
+
+    @Override
+    public Set<String> members() {
+        final long oldest = System.currentTimeMillis() - expiryMillis;
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        ImmutableSet.Builder<String> members = ImmutableSet.builder();
+        members.add(nodeId);
+        if (files != null) {
+            for (File f : files) {
+                if (f.lastModified() >= oldest) {
+                    members.add(f.getName().substring(0, f.getName().length() - SUFFIX.length()));
+                }
+            }
+        }
+        return members.build();
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create membership directory " + directory);
+        }
+        touch();
+        heartbeat = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                touch();
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
+        if (!file.delete()) {
+            LOG.warn("Unable to remove membership file {}", file);
+        }
+    }
+
+    private void touch() {
+        try {
+            if (!file.createNewFile() && !file.setLastModified(System.currentTimeMillis())) {
+                LOG.warn("Unable to refresh membership file {}", file);
+            }
+        } catch (IOException e) {
+            LOG.warn("Unable to refresh membership file {}", file, e);
+        }
+    }
+}
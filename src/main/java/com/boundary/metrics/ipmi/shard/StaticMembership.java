@@ -0,0 +1,29 @@
+package com.boundary.metrics.ipmi.shard;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Membership from a fixed peer list. Every instance must be configured with the same list.
+ */
+public class StaticMembership implements Membership {
+
+    private final Set<String> members;
+
+    public StaticMembership(String nodeId, Collection<String> peers) {
+        this.members = ImmutableSet.<String>builder().add(nodeId).addAll(peers).build();
+    }
+
+    @Override
+    public Set<String> members() {
+        return members;
+    }
+
+    @Override
+    public void start() throws Exception { }
+
+    @Override
+    public void stop() throws Exception { }
+}
@@ -0,0 +1,278 @@
+package com.boundary.metrics.ipmi.client.metrics;
+
+import com.boundary.metrics.ipmi.IPMIPollerConfiguration;
+import com.codahale.metrics.Gauge;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class MeasurementSpoolTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int WRITE_OFFSET = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IPMIPollerConfiguration.SpoolConfiguration config;
+    private final BlockingQueue<byte[]> sent = new LinkedBlockingQueue<byte[]>();
+    private final MeasurementSpool.Sender sender = new MeasurementSpool.Sender() {
+        @Override
+        public ListenableFuture<Void> send(byte[] payload) {
+            sent.add(payload);
+            return Futures.immediateFuture(null);
+        }
+    };
+    private final List<MeasurementSpool> started = new CopyOnWriteArrayList<MeasurementSpool>();
+
+    @Before
+    public void setUp() throws Exception {
+        config = new IPMIPollerConfiguration.SpoolConfiguration();
+        config.directory = folder.newFolder("spool");
+        config.segmentSize = Size.bytes(SEGMENT_SIZE);
+        config.maxSize = Size.bytes(SEGMENT_SIZE * 4);
+        config.replayRate = 1000;
+        config.retryInterval = Duration.milliseconds(10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (MeasurementSpool spool : started) {
+            spool.stop();
+        }
+    }
+
+    @Test
+    public void replaysPayloadsInOrder() throws Exception {
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+        spool.append(payload("a"));
+        spool.append(payload("b"));
+        assertThat(spool.isBacklogged()).isTrue();
+
+        start(spool);
+        spool.append(payload("c"));
+
+        assertThat(replayed(3)).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    public void resumesBacklogOfPreviousRun() throws Exception {
+        MeasurementSpool previous = new MeasurementSpool(config, sender);
+        previous.append(payload("a"));
+        previous.append(payload("b"));
+
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+
+        assertThat(spool.isBacklogged()).isTrue();
+        assertThat(pending(spool)).isEqualTo(2);
+        start(spool);
+        assertThat(replayed(2)).containsExactly("a", "b");
+    }
+
+    @Test
+    public void skipsPayloadsReplayedByPreviousRun() throws Exception {
+        MeasurementSpool previous = start(new MeasurementSpool(config, sender));
+        previous.append(payload("a"));
+        assertThat(replayed(1)).containsExactly("a");
+        previous.stop();
+        started.remove(previous);
+        previous.append(payload("b"));
+
+        start(new MeasurementSpool(config, sender));
+
+        assertThat(replayed(1)).containsExactly("b");
+        assertThat(sent.poll(100, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test
+    public void rollsOverToNewSegmentsAndReloadsThemInOrder() throws Exception {
+        MeasurementSpool previous = new MeasurementSpool(config, sender);
+        String[] names = new String[7];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "payload-" + i;
+            assertThat(previous.append(payload(names[i], 20 * 1024))).isTrue();
+        }
+        assertThat(segments()).hasSize(3);
+
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+
+        assertThat(pending(spool)).isEqualTo(names.length);
+        start(spool);
+        assertThat(replayed(names.length)).containsExactly(names);
+    }
+
+    @Test
+    public void evictsOldestSegmentWhenFull() throws Exception {
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+        // three payloads per segment, four segments at most
+        for (int i = 0; i < 13; i++) {
+            assertThat(spool.append(payload("payload-" + i, 20 * 1024))).isTrue();
+        }
+
+        assertThat(segments()).hasSize(4);
+        assertThat(pending(spool)).isEqualTo(10);
+        start(spool);
+        assertThat(replayed(10).get(0)).isEqualTo("payload-3");
+    }
+
+    @Test
+    public void rejectsPayloadLargerThanSegment() throws Exception {
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+
+        assertThat(spool.append(new byte[SEGMENT_SIZE])).isFalse();
+        assertThat(spool.isBacklogged()).isFalse();
+    }
+
+    @Test
+    public void truncatesSegmentAtRecordLengthPastItsEnd() throws Exception {
+        MeasurementSpool previous = new MeasurementSpool(config, sender);
+        previous.append(payload("a"));
+        previous.append(payload("b"));
+        previous.append(payload("c"));
+        int second = HEADER_SIZE + RECORD_HEADER_SIZE + 1;
+        writeInt(segments()[0], second, 1000);
+
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+
+        assertThat(pending(spool)).isEqualTo(1);
+        assertThat(readInt(segments()[0], WRITE_OFFSET)).isEqualTo(second);
+        start(spool);
+        assertThat(replayed(1)).containsExactly("a");
+        assertThat(sent.poll(100, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test
+    public void truncatesSegmentAtNegativeRecordLength() throws Exception {
+        MeasurementSpool previous = new MeasurementSpool(config, sender);
+        previous.append(payload("a"));
+        previous.append(payload("b"));
+        writeInt(segments()[0], HEADER_SIZE, -5);
+
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+
+        assertThat(spool.isBacklogged()).isFalse();
+        assertThat(readInt(segments()[0], WRITE_OFFSET)).isEqualTo(HEADER_SIZE);
+        // appending after the truncation still works
+        spool.append(payload("c"));
+        start(spool);
+        assertThat(replayed(1)).containsExactly("c");
+    }
+
+    @Test
+    public void truncatesSegmentEndingInPartialRecordHeader() throws Exception {
+        MeasurementSpool previous = new MeasurementSpool(config, sender);
+        previous.append(payload("a"));
+        int end = HEADER_SIZE + RECORD_HEADER_SIZE + 1;
+        // the header claims a few more bytes than the record written
+        writeInt(segments()[0], WRITE_OFFSET, end + 4);
+
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+
+        assertThat(pending(spool)).isEqualTo(1);
+        assertThat(readInt(segments()[0], WRITE_OFFSET)).isEqualTo(end);
+    }
+
+    @Test
+    public void ignoresSegmentWithCorruptHeader() throws Exception {
+        MeasurementSpool previous = new MeasurementSpool(config, sender);
+        previous.append(payload("a"));
+        writeInt(segments()[0], 0, 0x12345678);
+
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+
+        assertThat(spool.isBacklogged()).isFalse();
+    }
+
+    @Test
+    public void ignoresSegmentOfAnotherSize() throws Exception {
+        MeasurementSpool previous = new MeasurementSpool(config, sender);
+        previous.append(payload("a"));
+        config.segmentSize = Size.bytes(SEGMENT_SIZE * 2);
+
+        MeasurementSpool spool = new MeasurementSpool(config, sender);
+
+        assertThat(spool.isBacklogged()).isFalse();
+    }
+
+    private MeasurementSpool start(MeasurementSpool spool) throws Exception {
+        spool.start();
+        started.add(spool);
+        return spool;
+    }
+
+    private List<String> replayed(int count) throws InterruptedException {
+        String[] payloads = new String[count];
+        for (int i = 0; i < count; i++) {
+            byte[] payload = sent.poll(5, TimeUnit.SECONDS);
+            assertThat(payload).isNotNull();
+            payloads[i] = new String(payload, Charsets.UTF_8).trim();
+        }
+        return Arrays.asList(payloads);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int pending(MeasurementSpool spool) {
+        return ((Gauge<Integer>) spool.getMetrics().get("measurement-spool-payloads")).getValue();
+    }
+
+    private File[] segments() {
+        File[] files = config.directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".spool");
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static byte[] payload(String name) {
+        return name.getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * The name padded with spaces to the given size
+     */
+    private static byte[] payload(String name, int size) {
+        byte[] payload = new byte[size];
+        Arrays.fill(payload, (byte) ' ');
+        byte[] bytes = payload(name);
+        System.arraycopy(bytes, 0, payload, 0, bytes.length);
+        return payload;
+    }
+
+    private static void writeInt(File file, int offset, int value) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(offset);
+            raf.writeInt(value);
+        }
+    }
+
+    private static int readInt(File file, int offset) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            return raf.readInt();
+        }
+    }
+}
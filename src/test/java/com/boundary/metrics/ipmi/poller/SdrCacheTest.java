@@ -0,0 +1,202 @@
+package com.boundary.metrics.ipmi.poller;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SdrCacheTest {
+
+    private static final String HOST = "10.0.0.1";
+    private static final int ADDED = 1400000000;
+    private static final int ERASED = 1300000000;
+    /**
+     * Offset of the record count, after magic, version and the two timestamps
+     */
+    private static final int COUNT_OFFSET = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private SdrCache cache;
+    private final List<byte[]> records = ImmutableList.of(
+            new byte[]{1, 0, 0x51, 0x01, 3, 7, 8, 9},
+            new byte[]{2, 0, 0x51, 0x02, 1, 4},
+            new byte[0]);
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("sdr");
+        cache = new SdrCache(directory);
+    }
+
+    @Test
+    public void loadsStoredRecords() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+
+        Optional<List<byte[]>> loaded = cache.load(HOST, ADDED, ERASED);
+
+        assertThat(loaded.isPresent()).isTrue();
+        assertThat(loaded.get()).hasSize(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertThat(loaded.get().get(i)).isEqualTo(records.get(i));
+        }
+    }
+
+    @Test
+    public void loadsEmptyRepository() throws Exception {
+        cache.store(HOST, ADDED, ERASED, ImmutableList.<byte[]>of());
+
+        assertThat(cache.load(HOST, ADDED, ERASED).get()).isEmpty();
+    }
+
+    @Test
+    public void missesWithoutFile() {
+        assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+    }
+
+    @Test
+    public void missesAndKeepsFileWhenRepositoryChanged() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+
+        assertThat(cache.load(HOST, ADDED + 1, ERASED).isPresent()).isFalse();
+        assertThat(cache.load(HOST, ADDED, ERASED + 1).isPresent()).isFalse();
+        assertThat(file()).exists();
+    }
+
+    @Test
+    public void storesIpv6HostsUnderValidFileNames() throws Exception {
+        cache.store("fe80::1%eth0", ADDED, ERASED, records);
+
+        assertThat(cache.load("fe80::1%eth0", ADDED, ERASED).get()).hasSize(records.size());
+        assertThat(new File(directory, "fe80__1_eth0.sdr")).exists();
+    }
+
+    @Test
+    public void deletesTruncatedFile() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+        assertThat(file()).doesNotExist();
+    }
+
+    @Test
+    public void deletesFileTooShortForHeader() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.setLength(10);
+        }
+
+        assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+        assertThat(file()).doesNotExist();
+    }
+
+    @Test
+    public void deletesFileWithBadChecksum() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.seek(COUNT_OFFSET + 6);
+            raf.write(0x7f);
+        }
+
+        assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+        assertThat(file()).doesNotExist();
+    }
+
+    @Test
+    public void deletesFileWithCorruptCountBeforeTrustingIt() throws Exception {
+        // a count that would not fit in memory, and one that is negative
+        for (int count : new int[]{Integer.MAX_VALUE, -1}) {
+            cache.store(HOST, ADDED, ERASED, records);
+            try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+                raf.seek(COUNT_OFFSET);
+                raf.writeInt(count);
+            }
+
+            assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+            assertThat(file()).doesNotExist();
+        }
+    }
+
+    @Test
+    public void deletesFileWithCountPastTheRecordsEvenIfChecksummed() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.seek(COUNT_OFFSET);
+            raf.writeInt(records.size() + 1);
+        }
+        rewriteChecksum();
+
+        assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+        assertThat(file()).doesNotExist();
+    }
+
+    @Test
+    public void deletesFileWithRecordLengthPastTheEndEvenIfChecksummed() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.seek(COUNT_OFFSET + 4);
+            raf.writeShort(0xffff);
+        }
+        rewriteChecksum();
+
+        assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+        assertThat(file()).doesNotExist();
+    }
+
+    @Test
+    public void deletesFileOfUnknownFormat() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.writeInt(0x12345678);
+        }
+        rewriteChecksum();
+
+        assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+        assertThat(file()).doesNotExist();
+    }
+
+    @Test
+    public void replacesDeletedFileOnNextStore() throws Exception {
+        cache.store(HOST, ADDED, ERASED, records);
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertThat(cache.load(HOST, ADDED, ERASED).isPresent()).isFalse();
+
+        cache.store(HOST, ADDED, ERASED, records);
+
+        assertThat(cache.load(HOST, ADDED, ERASED).get()).hasSize(records.size());
+    }
+
+    private File file() {
+        return new File(directory, HOST + ".sdr");
+    }
+
+    /**
+     * Make the trailer match a body edited by a test, as if the file had been written that way
+     */
+    private void rewriteChecksum() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file(), "rw")) {
+            byte[] body = new byte[(int) raf.length() - 8];
+            raf.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            raf.writeLong(crc.getValue());
+        }
+    }
+}